@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ebay.bsonpatch;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for applying a patch with {@link BsonPatch}. Only loaded when the
+ * running JVM supports JFR, see {@link FlightRecorder}.
+ */
+@Name("com.ebay.bsonpatch.Apply")
+@Label("BSON Patch Application")
+@Category("BSON Patch")
+@Description("Application of a patch to a BSON value")
+@StackTrace(false)
+final class ApplyEvent extends jdk.jfr.Event {
+
+    @Label("In Place")
+    boolean inPlace;
+
+    @Label("Operations")
+    int operations;
+
+    @Label("Operations Applied")
+    int applied;
+
+    @Label("Failed")
+    boolean failed;
+
+    @Label("Failure")
+    String failure;
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+
+/**
+ * Holds a document shared by many threads as a chain of immutable, numbered snapshots.
+ * Readers get the latest snapshot with a single volatile read and never wait. Writers apply
+ * a patch to a copy of the latest snapshot and link the result in with compare-and-set,
+ * applying the patch again to the newer snapshot if another writer got there first. Each
+ * snapshot links to the next one, so the patches applied after a snapshot can be followed.
+ *
+ * <pre>
+ * AtomicBsonDocument prices = new AtomicBsonDocument(initial);
+ * prices.apply(patch);                                  // any thread
+ * BsonDocument current = prices.get().getDocument();    // any thread
+ * </pre>
+ *
+ * @since 0.5.0
+ */
+public final class AtomicBsonDocument {
+
+    private static final BsonDocumentCodec CODEC = new BsonDocumentCodec();
+
+    /** A version of the document. */
+    public static final class Snapshot {
+        private static final AtomicReferenceFieldUpdater<Snapshot, Snapshot> NEXT =
+                AtomicReferenceFieldUpdater.newUpdater(Snapshot.class, Snapshot.class, "next");
+
+        private final long version;
+        private final RawBsonDocument document;
+        private final BsonArray patch;
+        private volatile Snapshot next;
+
+        Snapshot(long version, RawBsonDocument document, BsonArray patch) {
+            this.version = version;
+            this.document = document;
+            this.patch = patch;
+        }
+
+        /** Returns the number of this version; the first one is {@code 0}. */
+        public long getVersion() {
+            return version;
+        }
+
+        /** Returns the document, which is immutable. */
+        public BsonDocument getDocument() {
+            return document;
+        }
+
+        /** Returns the patch applied to the previous version to get this one, empty for the first version. */
+        public BsonArray getPatch() {
+            return patch;
+        }
+
+        /** Returns the next version, or {@code null} if this is the latest one. */
+        public Snapshot getNext() {
+            return next;
+        }
+    }
+
+    // the latest snapshot or, briefly, the one before it while a writer is linking in a new one
+    private final AtomicReference<Snapshot> current;
+
+    /**
+     * @param document the first version, which is copied
+     */
+    public AtomicBsonDocument(BsonDocument document) {
+        current = new AtomicReference<Snapshot>(new Snapshot(0, new RawBsonDocument(document, CODEC), new BsonArray()));
+    }
+
+    /** Returns the latest snapshot. */
+    public Snapshot get() {
+        return current.get();
+    }
+
+    /** Applies {@code patch} to the latest version, returning the version it created. */
+    public Snapshot apply(BsonArray patch) throws BsonPatchApplicationException {
+        return apply(patch, CompatibilityFlags.defaults());
+    }
+
+    /**
+     * Applies {@code patch} to the latest version, returning the version it created. The patch
+     * may replace the whole document, but not with anything other than a document. If the
+     * patch fails, no version is created.
+     */
+    public Snapshot apply(BsonArray patch, EnumSet<CompatibilityFlags> flags) throws BsonPatchApplicationException {
+        BsonArray frozen = InternalUtils.freeze(patch);
+        for (;;) {
+            Snapshot latest = latest();
+            // the processor holds the new root if the patch replaced it
+            InPlaceApplyProcessor processor = new InPlaceApplyProcessor(latest.document.decode(CODEC), flags);
+            BsonPatch.process(frozen, processor, flags);
+            BsonValue result = processor.result();
+            if (!result.isDocument()) {
+                throw new BsonPatchApplicationException("Patch would replace the document with a " + result.getBsonType(),
+                        Operation.REPLACE, JsonPointer.ROOT);
+            }
+            Snapshot next = new Snapshot(latest.version + 1, new RawBsonDocument(result.asDocument(), CODEC), frozen);
+            if (Snapshot.NEXT.compareAndSet(latest, null, next)) {
+                current.compareAndSet(latest, next);
+                return next;
+            }
+        }
+    }
+
+    /** Returns the latest snapshot, helping a writer that linked in a new one to publish it. */
+    private Snapshot latest() {
+        for (;;) {
+            Snapshot snapshot = current.get();
+            Snapshot next = snapshot.next;
+            if (next == null) {
+                return snapshot;
+            }
+            current.compareAndSet(snapshot, next);
+        }
+    }
+}
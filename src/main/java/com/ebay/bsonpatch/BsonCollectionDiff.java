@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+/**
+ * Compares two sets of documents, such as the contents of a collection in two environments,
+ * matching documents by a key field. Both sets are read once and held in memory, the source
+ * documents by key, until the changes have been consumed. Matched documents are told apart
+ * by {@link BsonFingerprint}, those with the same fingerprint being confirmed equal with
+ * {@code equals}, and only those that differ are diffed; both happen in parallel.
+ *
+ * <pre>
+ * BsonCollectionDiff.diff(production, staging).forEachOrdered(change -&gt; ...);
+ * BsonCollectionDiff.diff(production.stream()::iterator, staging.stream()::iterator);
+ * </pre>
+ *
+ * @since 0.5.0
+ */
+public final class BsonCollectionDiff {
+
+    private static final String DEFAULT_KEY = "_id";
+
+    private BsonCollectionDiff() {}
+
+    /** A difference between the two sets of documents. */
+    public static final class Change {
+
+        /** The kinds of differences. */
+        public enum Type {
+            /** A document only in the target. */
+            INSERT,
+            /** A document only in the source. */
+            DELETE,
+            /** A document in both that differs. */
+            UPDATE
+        }
+
+        private final Type type;
+        private final BsonValue key;
+        private final BsonDocument document;
+        private final BsonArray patch;
+
+        Change(Type type, BsonValue key, BsonDocument document, BsonArray patch) {
+            this.type = type;
+            this.key = key;
+            this.document = document;
+            this.patch = patch;
+        }
+
+        /** Returns the kind of difference. */
+        public Type getType() {
+            return type;
+        }
+
+        /** Returns the value of the key field of the document. */
+        public BsonValue getKey() {
+            return key;
+        }
+
+        /**
+         * Returns the document inserted, the document deleted or, for an update, the target
+         * document.
+         */
+        public BsonDocument getDocument() {
+            return document;
+        }
+
+        /** Returns the patch from the source to the target document of an update, or {@code null}. */
+        public BsonArray getPatch() {
+            return patch;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + key + (patch != null ? " " + patch : "");
+        }
+    }
+
+    /** Compares two sets of documents keyed by {@code _id}. */
+    public static Stream<Change> diff(Iterable<? extends BsonDocument> source, Iterable<? extends BsonDocument> target) {
+        return diff(source, target, DEFAULT_KEY, DiffFlags.defaults());
+    }
+
+    /**
+     * Compares two sets of documents keyed by {@code keyField}. Both sets are read, and held
+     * in memory, before this method returns; the patches are computed as the returned stream
+     * is consumed.
+     *
+     * @return a parallel stream holding the inserts and updates in the order of the target
+     *  documents, followed by the deletes in the order of the source documents
+     * @throws IllegalArgumentException if a document has no {@code keyField} or two documents
+     *  on the same side have the same key
+     */
+    public static Stream<Change> diff(Iterable<? extends BsonDocument> source, Iterable<? extends BsonDocument> target,
+            String keyField, EnumSet<DiffFlags> flags) {
+        Objects.requireNonNull(flags, "flags");
+        Map<BsonValue, BsonDocument> unmatched = new LinkedHashMap<BsonValue, BsonDocument>();
+        for (BsonDocument document : source) {
+            if (unmatched.put(keyOf(document, keyField), document) != null) {
+                throw new IllegalArgumentException("duplicate source key " + keyOf(document, keyField));
+            }
+        }
+
+        // pairs of source (null for inserts) and target documents, in the order of the target
+        List<BsonDocument[]> pairs = new ArrayList<BsonDocument[]>();
+        Set<BsonValue> targetKeys = new HashSet<BsonValue>();
+        for (BsonDocument document : target) {
+            BsonValue key = keyOf(document, keyField);
+            if (!targetKeys.add(key)) {
+                throw new IllegalArgumentException("duplicate target key " + key);
+            }
+            pairs.add(new BsonDocument[] {unmatched.remove(key), document});
+        }
+
+        EnumSet<DiffFlags> diffFlags = flags.clone();
+        Stream<Change> changes = pairs.parallelStream()
+                .map(pair -> compare(pair[0], pair[1], keyField, diffFlags))
+                .filter(Objects::nonNull);
+        Stream<Change> deletes = unmatched.entrySet().stream()
+                .map(entry -> new Change(Change.Type.DELETE, entry.getKey(), entry.getValue(), null));
+        return Stream.concat(changes, deletes);
+    }
+
+    private static Change compare(BsonDocument source, BsonDocument target, String keyField, EnumSet<DiffFlags> flags) {
+        BsonValue key = target.get(keyField);
+        if (source == null) {
+            return new Change(Change.Type.INSERT, key, target, null);
+        }
+        Map<BsonValue, BsonFingerprint> sourceFingerprints = BsonFingerprint.ofAll(source);
+        Map<BsonValue, BsonFingerprint> targetFingerprints = BsonFingerprint.ofAll(target);
+        // a fingerprint match is only likely to mean equal documents
+        if (sourceFingerprints.get(source).equals(targetFingerprints.get(target)) && source.equals(target)) {
+            return null;
+        }
+        BsonArray patch = BsonDiff.asBson(source, target, flags, sourceFingerprints, targetFingerprints);
+        return new Change(Change.Type.UPDATE, key, target, patch);
+    }
+
+    private static BsonValue keyOf(BsonDocument document, String keyField) {
+        BsonValue key = document.get(keyField);
+        if (key == null) {
+            throw new IllegalArgumentException("document without " + keyField + ": " + document.toJson());
+        }
+        return key;
+    }
+}
@@ -22,24 +22,80 @@ package com.ebay.bsonpatch;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.apache.commons.collections4.Equator;
 import org.apache.commons.collections4.ListUtils;
 import org.bson.BsonArray;
 import org.bson.BsonDocument;
 import org.bson.BsonString;
 import org.bson.BsonValue;
+import org.bson.codecs.Encoder;
 
 
 public final class BsonDiff {
 
-    private final List<Diff> diffs = new ArrayList<Diff>();
+    private final List<Diff> diffs;
     private final EnumSet<DiffFlags> flags;
+    private final BsonPatchListener listener = BsonPatchListeners.get();
+    private final DiffExplainer explainer;
+    // timings are only taken while a listener is registered or the diff is explained
+    private final boolean timed;
+    private final long started;
+    private final Object flightEvent = FlightRecorder.beginDiff();
+    private long nodesVisited;
+    private long lcsCells;
+    private int lcsArrays;
+    private int largestLcsArray;
+    // fingerprints of the documents and arrays in the source and target, if computed beforehand
+    private final Map<BsonValue, BsonFingerprint> sourceFingerprints;
+    private final Map<BsonValue, BsonFingerprint> targetFingerprints;
+    // buffers reused from a previous diff, if any
+    private final DiffContext context;
+    private int arrayDepth;
+    // the paths of the arrays compared, with MINIMIZE_ARRAY_SHIFTS
+    private final Set<JsonPointer> arrayPaths;
+    // the paths of the arrays compared with PATIENCE_ARRAY_DIFF that have elements moved
+    private final Set<JsonPointer> reorderedArrays;
+    // compares array elements with same() when computing the LCS with ListUtils
+    private final Equator<BsonValue> sameEquator = new Equator<BsonValue>() {
+        @Override
+        public boolean equate(BsonValue first, BsonValue second) {
+            return same(first, second);
+        }
+
+        @Override
+        public int hash(BsonValue value) {
+            BsonFingerprint fingerprint = sourceFingerprints != null && (value.isDocument() || value.isArray()) ? fingerprint(value) : null;
+            return fingerprint != null ? fingerprint.hashCode() : value.hashCode();
+        }
+    };
 
     private BsonDiff(EnumSet<DiffFlags> flags) {
+        this(flags, null, null, null, null);
+    }
+
+    private BsonDiff(EnumSet<DiffFlags> flags, DiffExplainer explainer) {
+        this(flags, explainer, null, null, null);
+    }
+
+    private BsonDiff(EnumSet<DiffFlags> flags, DiffExplainer explainer,
+            Map<BsonValue, BsonFingerprint> sourceFingerprints, Map<BsonValue, BsonFingerprint> targetFingerprints,
+            DiffContext context) {
     	this.flags = flags.clone();
+        this.explainer = explainer;
+        this.sourceFingerprints = sourceFingerprints;
+        this.targetFingerprints = targetFingerprints;
+        this.context = context;
+        this.diffs = context != null ? context.diffs : new ArrayList<Diff>();
+        this.arrayPaths = flags.contains(DiffFlags.MINIMIZE_ARRAY_SHIFTS) ? new HashSet<JsonPointer>() : null;
+        this.reorderedArrays = flags.contains(DiffFlags.PATIENCE_ARRAY_DIFF) ? new HashSet<JsonPointer>() : null;
+        this.timed = explainer != null || listener != BsonPatchListener.NOOP;
+        this.started = now();
     }
     
     public static BsonArray asBson(final BsonValue source, final BsonValue target) {
@@ -47,22 +103,273 @@ public final class BsonDiff {
     }
 
     public static BsonArray asBson(final BsonValue source, final BsonValue target, EnumSet<DiffFlags> flags) {
-        BsonDiff diff = new BsonDiff(flags);
-        
+        BsonDiff diff = compute(new BsonDiff(flags), source, target);
+        long start = diff.now();
+        BsonArray patch = diff.getBsonNodes();
+        diff.completed(source, target, start);
+        return patch;
+    }
+
+    /**
+     * Computes the patch turning {@code source} into {@code target}, where both are plain Java
+     * trees of maps, lists and boxed values, such as {@link org.bson.Document}s. Fields whose
+     * Java values are equal are skipped without being converted to BSON; only what differs
+     * is converted, by a type switch rather than a codec, and diffed as usual. Skipped fields
+     * are therefore not used as the source of {@code copy} operations.
+     *
+     * @since 0.5.0
+     */
+    public static BsonArray asBsonOfMaps(final Map<String, ?> source, final Map<String, ?> target) {
+        return asBsonOfMaps(source, target, DiffFlags.defaults());
+    }
+
+    /**
+     * Computes the patch turning one Java tree into another.
+     *
+     * @see #asBsonOfMaps(Map, Map)
+     * @since 0.5.0
+     */
+    public static BsonArray asBsonOfMaps(final Map<String, ?> source, final Map<String, ?> target, EnumSet<DiffFlags> flags) {
+        BsonDocument sourceFields = new BsonDocument();
+        BsonDocument targetFields = new BsonDocument();
+        MapValues.putChangedFields(source, target, sourceFields, targetFields);
+        return asBson(sourceFields, targetFields, flags);
+    }
+
+    /**
+     * Computes the patch turning {@code source} into the document {@code encoder} writes for
+     * {@code value}, comparing the encoded values against {@code source} as they are written
+     * instead of building the target document first.
+     *
+     * @see DiffingBsonWriter
+     * @since 0.5.0
+     */
+    public static <T> BsonArray asBsonOfEncoded(final BsonDocument source, final T value, final Encoder<T> encoder) {
+        return asBsonOfEncoded(source, value, encoder, DiffFlags.defaults());
+    }
+
+    /**
+     * Computes the patch turning {@code source} into the document {@code encoder} writes for {@code value}.
+     *
+     * @see #asBsonOfEncoded(BsonDocument, Object, Encoder)
+     * @since 0.5.0
+     */
+    public static <T> BsonArray asBsonOfEncoded(final BsonDocument source, final T value, final Encoder<T> encoder, EnumSet<DiffFlags> flags) {
+        return DiffingBsonWriter.diff(source, value, encoder, flags);
+    }
+
+    /**
+     * Computes the patch between each pair of consecutive versions in {@code versions}, in
+     * parallel on the common fork/join pool. Each version is fingerprinted once, and
+     * documents and arrays with different fingerprints are told apart without walking them
+     * again; those with the same fingerprint are still compared with {@code equals}, so a
+     * collision cannot hide a change. Patch {@code i} turns version {@code i} into version
+     * {@code i + 1} and is the same as {@link #asBson(BsonValue, BsonValue)} returns.
+     * The versions must not change while the patches are computed.
+     *
+     * @return one patch less than there are versions, in order
+     * @since 0.5.0
+     */
+    public static List<BsonArray> asBsonChain(final List<? extends BsonValue> versions) {
+        return asBsonChain(versions, DiffFlags.defaults());
+    }
+
+    /**
+     * Computes the patch between each pair of consecutive versions in {@code versions}.
+     *
+     * @see #asBsonChain(List)
+     * @since 0.5.0
+     */
+    public static List<BsonArray> asBsonChain(final List<? extends BsonValue> versions, EnumSet<DiffFlags> flags) {
+        return ChainDiff.diff(versions, flags);
+    }
+
+    /**
+     * Computes the patch from {@code source} to {@code target}, telling documents and arrays
+     * apart by the fingerprints computed by {@link BsonFingerprint#ofAll}.
+     */
+    static BsonArray asBson(final BsonValue source, final BsonValue target, EnumSet<DiffFlags> flags,
+            Map<BsonValue, BsonFingerprint> sourceFingerprints, Map<BsonValue, BsonFingerprint> targetFingerprints) {
+        BsonDiff diff = compute(new BsonDiff(flags, null, sourceFingerprints, targetFingerprints, null), source, target);
+        long start = diff.now();
+        BsonArray patch = diff.getBsonNodes();
+        diff.completed(source, target, start);
+        return patch;
+    }
+
+    /** Computes the patch from {@code source} to {@code target} in the buffers of {@code context}. */
+    static BsonArray asBson(final BsonValue source, final BsonValue target, EnumSet<DiffFlags> flags, DiffContext context) {
+        BsonDiff diff = compute(new BsonDiff(flags, null, null, null, context), source, target);
+        long start = diff.now();
+        BsonArray patch = diff.getBsonNodes();
+        diff.completed(source, target, start);
+        return patch;
+    }
+
+    /**
+     * Computes the patch from {@code source} to {@code target} together with its inverse,
+     * the patch from {@code target} back to {@code source}, in a single pass.
+     *
+     * @since 0.5.0
+     */
+    public static ReversiblePatch asReversibleBson(final BsonValue source, final BsonValue target) {
+        return asReversibleBson(source, target, DiffFlags.defaults());
+    }
+
+    /**
+     * Computes the patch from {@code source} to {@code target} together with its inverse,
+     * the patch from {@code target} back to {@code source}, in a single pass. The flags apply
+     * to both patches.
+     *
+     * @since 0.5.0
+     */
+    public static ReversiblePatch asReversibleBson(final BsonValue source, final BsonValue target, EnumSet<DiffFlags> flags) {
+        BsonDiff diff = compute(new BsonDiff(flags), source, target);
+        long start = diff.now();
+        ReversiblePatch patch = new ReversiblePatch(diff.getBsonNodes(), diff.getInverseBsonNodes());
+        diff.completed(source, target, start);
+        return patch;
+    }
+
+    /**
+     * Computes the <a href="https://tools.ietf.org/html/rfc7396">RFC 7396</a> merge patch
+     * turning {@code source} into {@code target}. Nested documents are compared field by
+     * field; arrays and other values that changed are included as a whole.
+     *
+     * @throws IllegalArgumentException if {@code target} holds a {@code null} field value
+     *  that differs from {@code source}, since a merge patch cannot express it
+     * @since 0.5.0
+     */
+    public static BsonValue asMergePatch(final BsonValue source, final BsonValue target) {
+        return MergePatch.diff(source, target);
+    }
+
+    /**
+     * Computes the patch from {@code source} to {@code target} like {@link #asBson(BsonValue, BsonValue)},
+     * profiling where the time goes. The returned explanation holds the patch, the time taken by
+     * each {@link DiffPhase} and, for the root and every pair of documents or arrays compared,
+     * the time spent, the nodes compared, the size of the LCS table and the operations generated.
+     * Profiling adds the cost of reading the clock twice per document or array.
+     *
+     * @since 0.5.0
+     */
+    public static DiffExplanation explain(final BsonValue source, final BsonValue target) {
+        return explain(source, target, DiffFlags.defaults());
+    }
+
+    /**
+     * Computes the patch from {@code source} to {@code target}, profiling where the time goes.
+     *
+     * @see #explain(BsonValue, BsonValue)
+     * @since 0.5.0
+     */
+    public static DiffExplanation explain(final BsonValue source, final BsonValue target, EnumSet<DiffFlags> flags) {
+        BsonDiff diff = compute(new BsonDiff(flags, new DiffExplainer()), source, target);
+        long start = diff.now();
+        BsonArray patch = diff.getBsonNodes();
+        diff.completed(source, target, start);
+        return diff.explainer.explanation(patch, System.nanoTime() - diff.started);
+    }
+
+    private static BsonDiff compute(BsonDiff diff, final BsonValue source, final BsonValue target) {
+        EnumSet<DiffFlags> flags = diff.flags;
+
         // generating diffs in the order of their occurrence
+        long start = diff.now();
         diff.generateDiffs(JsonPointer.ROOT, source, target);
+        start = diff.phaseCompleted(DiffPhase.GENERATE_DIFFS, start);
 
         if (!flags.contains(DiffFlags.OMIT_MOVE_OPERATION)) {        
 	         // Merging remove & add to move operation
         	diff.introduceMoveOperation();
+        	start = diff.phaseCompleted(DiffPhase.INTRODUCE_MOVE_OPERATION, start);
         }
 
         if (!flags.contains(DiffFlags.OMIT_COPY_OPERATION)) {
 	         // Introduce copy operation
         	diff.introduceCopyOperation(source, target);
+        	start = diff.phaseCompleted(DiffPhase.INTRODUCE_COPY_OPERATION, start);
+        }
+
+        if (flags.contains(DiffFlags.MINIMIZE_ARRAY_SHIFTS)) {
+            diff.orderArrayOperations();
+            diff.phaseCompleted(DiffPhase.ORDER_ARRAY_OPERATIONS, start);
+        }
+
+        return diff;
+    }
+
+    private long now() {
+        return timed ? System.nanoTime() : 0;
+    }
+
+    private long phaseCompleted(DiffPhase phase, long start) {
+        if (!timed) return 0;
+        long end = System.nanoTime();
+        listener.diffPhaseCompleted(phase, end - start);
+        if (explainer != null) explainer.phase(phase, end - start);
+        return end;
+    }
+
+    private void completed(BsonValue source, BsonValue target, long renderStart) {
+        FlightRecorder.commitDiff(flightEvent, size(source), size(target), nodesVisited, lcsArrays, largestLcsArray, lcsCells, diffs.size());
+        if (!timed) return;
+        long end = phaseCompleted(DiffPhase.GET_BSON_NODES, renderStart);
+        if (listener == BsonPatchListener.NOOP) return;
+        for (Diff diff : diffs) {
+            listener.operationEmitted(diff.getOperation());
         }
+        listener.diffCompleted(nodesVisited, lcsCells, end - started);
+    }
+
+    private static int size(BsonValue value) {
+        if (value.isDocument()) return value.asDocument().size();
+        if (value.isArray()) return value.asArray().size();
+        return 1;
+    }
 
-        return diff.getBsonNodes();
+    /**
+     * Checks whether {@link #asBson(BsonValue, BsonValue)} would produce a non-empty patch,
+     * without generating one.
+     *
+     * @since 0.5.0
+     */
+    public static boolean hasDifferences(final BsonValue source, final BsonValue target) {
+        return !source.equals(target);
+    }
+
+    /**
+     * Locates the first difference between {@code source} and {@code target}, stopping
+     * the comparison as soon as it is found. Arrays that differ are the exception: the
+     * longest common subsequence of their elements between the common first and last ones
+     * is computed in full before any difference in them is found.
+     *
+     * @return the path of the first operation a patch from {@code source} to {@code target}
+     *  computed with a {@link DiffContext} would contain (before normalization into move and
+     *  copy operations), or {@code null} if both values are equal
+     * @since 0.5.0
+     */
+    public static JsonPointer firstDifference(final BsonValue source, final BsonValue target) {
+        DiffProbe probe = new DiffProbe(1);
+        probe.probe(source, target);
+        return probe.first();
+    }
+
+    /**
+     * Counts the differences between {@code source} and {@code target}, stopping the
+     * comparison once {@code limit} differences have been found. Differences are counted
+     * as the add, remove and replace operations a patch computed with a {@link DiffContext}
+     * would contain before normalization into move and copy operations. As for
+     * {@link #firstDifference}, arrays that differ cost a full longest common subsequence.
+     *
+     * @return the number of differences, capped at {@code limit}
+     * @since 0.5.0
+     */
+    public static int countAtMost(final BsonValue source, final BsonValue target, int limit) {
+        if (limit <= 0) throw new IllegalArgumentException("limit must be positive");
+        DiffProbe probe = new DiffProbe(limit);
+        probe.probe(source, target);
+        return probe.count();
     }
 
     private static JsonPointer getMatchingValuePath(Map<BsonValue, JsonPointer> unchangedValues, BsonValue value) {
@@ -76,18 +383,51 @@ public final class BsonDiff {
             if (Operation.ADD != diff.getOperation()) continue;
             
             JsonPointer matchingValuePath = getMatchingValuePath(unchangedValues, diff.getValue());
-            if (matchingValuePath != null && isAllowed(matchingValuePath, diff.getPath())) {
+            if (matchingValuePath != null && isAllowed(matchingValuePath, diff.getPath())
+                    && !withinReorderedArray(matchingValuePath, diff.getPath())) {
                 // Matching value found; replace add with copy
                 if (flags.contains(DiffFlags.EMIT_TEST_OPERATIONS)) {
                     // Prepend test node
                     diffs.add(i, new Diff(Operation.TEST, matchingValuePath, diff.getValue()));
                     i++;
                 }
-                diffs.set(i, new Diff(Operation.COPY, matchingValuePath, diff.getPath()));
+                diffs.set(i, new Diff(Operation.COPY, matchingValuePath, diff.getPath(), diff.getValue()));
             }            
         }
     }
 
+    /**
+     * Checks whether a value copied from {@code source} to {@code destination} would be taken
+     * from an array compared with {@link DiffFlags#PATIENCE_ARRAY_DIFF} while its elements are
+     * being moved. Its elements stay where they were in the source until moved, so the value
+     * at {@code source} may have changed by the time the copy is applied.
+     */
+    private boolean withinReorderedArray(JsonPointer source, JsonPointer destination) {
+        if (reorderedArrays == null || reorderedArrays.isEmpty()) {
+            return false;
+        }
+        for (JsonPointer array = source.getParent(); ; array = array.getParent()) {
+            if (reorderedArrays.contains(array) && isWithin(destination, array)) {
+                return true;
+            }
+            if (array.isRoot()) {
+                return false;
+            }
+        }
+    }
+
+    private static boolean isWithin(JsonPointer path, JsonPointer ancestor) {
+        if (path.size() <= ancestor.size()) {
+            return false;
+        }
+        for (int i = 0; i < ancestor.size(); i++) {
+            if (!path.get(i).equals(ancestor.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private static boolean isNumber(String str) {
         int size = str.length();
 
@@ -124,14 +464,14 @@ public final class BsonDiff {
     }
 
 
-    private static Map<BsonValue, JsonPointer> getUnchangedPart(BsonValue source, BsonValue target) {
-        Map<BsonValue, JsonPointer> unchangedValues = new HashMap<BsonValue, JsonPointer>();
+    private Map<BsonValue, JsonPointer> getUnchangedPart(BsonValue source, BsonValue target) {
+        Map<BsonValue, JsonPointer> unchangedValues = context != null ? context.unchangedValues : new HashMap<BsonValue, JsonPointer>();
         computeUnchangedValues(unchangedValues, JsonPointer.ROOT, source, target);
         return unchangedValues;
     }
 
-    private static void computeUnchangedValues(Map<BsonValue, JsonPointer> unchangedValues, JsonPointer path, BsonValue source, BsonValue target) {
-        if (source.equals(target)) {
+    private void computeUnchangedValues(Map<BsonValue, JsonPointer> unchangedValues, JsonPointer path, BsonValue source, BsonValue target) {
+        if (same(source, target)) {
             if (!unchangedValues.containsKey(target)) {
             	unchangedValues.put(target, path);
             }
@@ -152,7 +492,7 @@ public final class BsonDiff {
         }
     }
 
-    private static void computeArray(Map<BsonValue, JsonPointer> unchangedValues, JsonPointer path, BsonValue source, BsonValue target) {
+    private void computeArray(Map<BsonValue, JsonPointer> unchangedValues, JsonPointer path, BsonValue source, BsonValue target) {
         final int size = Math.min(source.asArray().size(), target.asArray().size());
 
         for (int i = 0; i < size; i++) {
@@ -161,7 +501,7 @@ public final class BsonDiff {
         }
     }
 
-    private static void computeDocument(Map<BsonValue, JsonPointer> unchangedValues, JsonPointer path, BsonValue source, BsonValue target) {
+    private void computeDocument(Map<BsonValue, JsonPointer> unchangedValues, JsonPointer path, BsonValue source, BsonValue target) {
         final Iterator<String> firstFields = source.asDocument().keySet().iterator();
         while (firstFields.hasNext()) {
             String name = firstFields.next();
@@ -188,7 +528,7 @@ public final class BsonDiff {
 
             for (int j = i + 1; j < diffs.size(); j++) {
                 Diff diff2 = diffs.get(j);
-                if (!diff1.getValue().equals(diff2.getValue())) {
+                if (!diff1.getValue().equals(diff2.getValue()) || containsMove(i + 1, j)) {
                     continue;
                 }
 
@@ -196,20 +536,123 @@ public final class BsonDiff {
                 if (Operation.REMOVE == diff1.getOperation() &&
                         Operation.ADD == diff2.getOperation()) {
                 	JsonPointer relativePath = computeRelativePath(diff2.getPath(), i + 1, j - 1, diffs);
-                    moveDiff = new Diff(Operation.MOVE, diff1.getPath(), relativePath);
+                    moveDiff = new Diff(Operation.MOVE, diff1.getPath(), relativePath, diff1.getValue());
 
                 } else if (Operation.ADD == diff1.getOperation() &&
                         Operation.REMOVE == diff2.getOperation()) {
                 	JsonPointer relativePath = computeRelativePath(diff2.getPath(), i, j - 1, diffs); // diff1's add should also be considered
-                    moveDiff = new Diff(Operation.MOVE, relativePath, diff1.getPath());
+                    moveDiff = new Diff(Operation.MOVE, relativePath, diff1.getPath(), diff1.getValue());
                 }
                 if (moveDiff != null) {
                     diffs.remove(j);
                     diffs.set(i, moveDiff);
+                    if (Operation.ADD == diff1.getOperation() && isTestGuarding(diffs.get(j - 1), diff2)) {
+                        // the test guarding the merged remove has to guard the move instead
+                        diffs.remove(j - 1);
+                        diffs.add(i, new Diff(Operation.TEST, moveDiff.getPath(), diff2.getValue()));
+                        i++;
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks for moves among the diffs in {@code [from, to)}, which only arrays compared with
+     * {@link DiffFlags#PATIENCE_ARRAY_DIFF} emit before this phase. Paths cannot be adjusted
+     * across these, so removals and additions around them are not merged.
+     */
+    private boolean containsMove(int from, int to) {
+        for (int k = from; k < to; k++) {
+            if (Operation.MOVE == diffs.get(k).getOperation()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reorders each run of additions to and removals from the same array, removing elements
+     * from the highest index down and then adding the new ones from the lowest index up. A
+     * run ends where an operation comes before the position of the previous one, as
+     * operations on arrays are generated from left to right: up to there, the index of an
+     * element removed from the array as it was before the run is its index at removal
+     * corrected by the additions and removals before it, and the index of an element added
+     * is already its index at the end of the run.
+     */
+    private void orderArrayOperations() {
+        List<Diff> ordered = new ArrayList<Diff>(diffs.size());
+        List<Diff> guards = new ArrayList<Diff>();
+        List<Diff> removals = new ArrayList<Diff>();
+        List<Diff> additions = new ArrayList<Diff>();
+        int k = 0;
+        while (k < diffs.size()) {
+            JsonPointer array = getArrayOperatedOn(k);
+            if (array == null) {
+                ordered.add(diffs.get(k++));
+                continue;
+            }
+            int added = 0;
+            int removed = 0;
+            int floor = 0;
+            while (k < diffs.size() && array.equals(getArrayOperatedOn(k))) {
+                Diff guard = Operation.TEST == diffs.get(k).getOperation() ? diffs.get(k) : null;
+                Diff diff = diffs.get(guard != null ? k + 1 : k);
+                int index = diff.getPath().last().getIndex();
+                if (index < floor) {
                     break;
                 }
+                if (Operation.ADD == diff.getOperation()) {
+                    additions.add(diff);
+                    added++;
+                    floor = index + 1;
+                } else {
+                    JsonPointer original = array.append(index - added + removed);
+                    guards.add(guard != null ? new Diff(Operation.TEST, original, guard.getValue()) : null);
+                    removals.add(Diff.generateDiff(Operation.REMOVE, original, diff.getValue()));
+                    removed++;
+                    floor = index;
+                }
+                k += guard != null ? 2 : 1;
+            }
+            for (int r = removals.size() - 1; r >= 0; r--) {
+                if (guards.get(r) != null) {
+                    ordered.add(guards.get(r));
+                }
+                ordered.add(removals.get(r));
             }
+            ordered.addAll(additions);
+            guards.clear();
+            removals.clear();
+            additions.clear();
         }
+        diffs.clear();
+        diffs.addAll(ordered);
+    }
+
+    /**
+     * Returns the array the diff at {@code k} adds an element to or removes one from, or the
+     * removal it guards does, or {@code null}.
+     */
+    private JsonPointer getArrayOperatedOn(int k) {
+        Diff diff = diffs.get(k);
+        if (Operation.TEST == diff.getOperation() && k + 1 < diffs.size()
+                && Operation.REMOVE == diffs.get(k + 1).getOperation() && isTestGuarding(diff, diffs.get(k + 1))) {
+            diff = diffs.get(k + 1);
+        }
+        if ((Operation.ADD == diff.getOperation() || Operation.REMOVE == diff.getOperation()) && !diff.getPath().isRoot()) {
+            JsonPointer parent = diff.getPath().getParent();
+            if (arrayPaths.contains(parent)) {
+                return parent;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isTestGuarding(Diff test, Diff diff) {
+        return Operation.TEST == test.getOperation() &&
+                test.getPath().equals(diff.getPath()) && test.getValue().equals(diff.getValue());
     }
 
     //Note : only to be used for arrays
@@ -282,8 +725,47 @@ public final class BsonDiff {
         return patch;
     }
 
+    /**
+     * Renders the patch undoing {@link #diffs}: the inverse of each operation, in reverse order.
+     * Test operations guarding the forward patch are dropped and, if requested, re-emitted
+     * to guard the inverse operations instead.
+     */
+    private BsonArray getInverseBsonNodes() {
+        final BsonArray patch = new BsonArray();
+        for (int i = diffs.size() - 1; i >= 0; i--) {
+            Diff diff = diffs.get(i);
+            Diff inverse;
+            switch (diff.getOperation()) {
+                case ADD:
+                    inverse = new Diff(Operation.REMOVE, diff.getPath(), diff.getValue());
+                    break;
+                case REMOVE:
+                    inverse = new Diff(Operation.ADD, diff.getPath(), diff.getValue());
+                    break;
+                case REPLACE:
+                    inverse = new Diff(Operation.REPLACE, diff.getPath(), diff.getValue(), diff.getSrcValue());
+                    break;
+                case MOVE:
+                    inverse = new Diff(Operation.MOVE, diff.getToPath(), diff.getPath(), diff.getValue());
+                    break;
+                case COPY:
+                    inverse = new Diff(Operation.REMOVE, diff.getToPath(), diff.getValue());
+                    break;
+                default:
+                    continue;
+            }
+            if (flags.contains(DiffFlags.EMIT_TEST_OPERATIONS) && inverse.getOperation() != Operation.ADD) {
+                // for a move the path is the "from" location, which holds the moved value
+                BsonValue expected = inverse.getOperation() == Operation.REPLACE ? inverse.getSrcValue() : inverse.getValue();
+                patch.add(getBsonNode(new Diff(Operation.TEST, inverse.getPath(), expected), flags));
+            }
+            patch.add(getBsonNode(inverse, flags));
+        }
+        return patch;
+    }
+
     @SuppressWarnings("fallthrough")
-    private static BsonDocument getBsonNode(Diff diff, EnumSet<DiffFlags> flags) {
+    static BsonDocument getBsonNode(Diff diff, EnumSet<DiffFlags> flags) {
     	BsonDocument bsonNode = new BsonDocument();
         bsonNode.put(Constants.OP, new BsonString(diff.getOperation().rfcName()));
 
@@ -319,10 +801,17 @@ public final class BsonDiff {
     }
 
     private void generateDiffs(JsonPointer path, BsonValue source, BsonValue target) {
-        if (!source.equals(target)) {
+        nodesVisited++;
+        boolean explained = explainer != null && explainer.enter(path, source, target, nodesVisited, diffs.size());
+        if (!same(source, target)) {
             if (source.isArray() && target.isArray()) {
                 //both are arrays
-                compareArray(path, source, target);
+                if (flags.contains(DiffFlags.MINIMIZE_ARRAY_SHIFTS)) {
+                    arrayPaths.add(path);
+                }
+                if (!flags.contains(DiffFlags.PATIENCE_ARRAY_DIFF) || !compareUniqueElements(path, source.asArray(), target.asArray())) {
+                    compareArray(path, source, target);
+                }
             } else if (source.isDocument() && target.isDocument()) {
                 //both are json
                 compareDocuments(path, source, target);
@@ -334,10 +823,17 @@ public final class BsonDiff {
                 diffs.add(Diff.generateDiff(Operation.REPLACE, path, source, target));
             }
         }
+        if (explained) explainer.exit(nodesVisited, diffs.size());
     }
 
     private void compareArray(JsonPointer path, BsonValue source, BsonValue target) {
-        List<BsonValue> lcs = getLCS(source, target);
+        lcsCells += (long) source.asArray().size() * target.asArray().size();
+        lcsArrays++;
+        largestLcsArray = Math.max(largestLcsArray, Math.max(source.asArray().size(), target.asArray().size()));
+        if (explainer != null) explainer.lcs(source.asArray().size(), target.asArray().size());
+        List<BsonValue> lcs = context != null ? LongestCommonSubsequence.of(source.asArray(), target.asArray(), context.subsequence(arrayDepth++), context)
+                : sourceFingerprints == null ? getLCS(source, target)
+                : ListUtils.longestCommonSubsequence(InternalUtils.toList(source.asArray()), InternalUtils.toList(target.asArray()), sameEquator);
         int srcIdx = 0;
         int targetIdx = 0;
         int lcsIdx = 0;
@@ -352,19 +848,19 @@ public final class BsonDiff {
             BsonValue targetNode = target.asArray().get(targetIdx);
 
 
-            if (lcsNode.equals(srcNode) && lcsNode.equals(targetNode)) { // Both are same as lcs node, nothing to do here
+            if (same(lcsNode, srcNode) && same(lcsNode, targetNode)) { // Both are same as lcs node, nothing to do here
                 srcIdx++;
                 targetIdx++;
                 lcsIdx++;
                 pos++;
             } else {
-                if (lcsNode.equals(srcNode)) { // src node is same as lcs, but not targetNode
+                if (same(lcsNode, srcNode)) { // src node is same as lcs, but not targetNode
                     //addition
                 	JsonPointer currPath = path.append(pos);
                     diffs.add(Diff.generateDiff(Operation.ADD, currPath, targetNode));
                     pos++;
                     targetIdx++;
-                } else if (lcsNode.equals(targetNode)) { //targetNode node is same as lcs, but not src
+                } else if (same(lcsNode, targetNode)) { //targetNode node is same as lcs, but not src
                     //removal,
                 	JsonPointer currPath = path.append(pos);
                 	if (flags.contains(DiffFlags.EMIT_TEST_OPERATIONS)) {
@@ -394,6 +890,69 @@ public final class BsonDiff {
         }
         pos = addRemaining(path, target, pos, targetIdx, targetSize);
         removeRemaining(path, pos, srcIdx, srcSize, source);
+        if (context != null) {
+            lcs.clear();
+            arrayDepth--;
+        }
+    }
+
+    /**
+     * Compares arrays matched by {@link PatienceMatch}, walking its slots to remove, move and
+     * insert elements, and to diff those paired with a different element, in the order of
+     * their positions.
+     *
+     * @return {@code false} if the arrays have too few unique elements to be compared this way
+     */
+    private boolean compareUniqueElements(JsonPointer path, BsonArray source, BsonArray target) {
+        PatienceMatch match = PatienceMatch.match(source, target);
+        if (match == null) {
+            return false;
+        }
+        for (int i = 0; i < source.size(); i++) {
+            if (match.targetOf[i] >= 0 && !match.kept[i]) {
+                reorderedArrays.add(path);
+                break;
+            }
+        }
+        PatienceMatch.Positions positions = new PatienceMatch.Positions(match.slots.length);
+        for (int i = 0; i < source.size(); i++) {
+            positions.add(match.sourceSlot[i], 1);
+        }
+        for (int slot = 0; slot < match.slots.length; slot++) {
+            int owner = match.slots[slot];
+            if (owner >= 0) {
+                if (match.targetOf[owner] < 0) {
+                    JsonPointer currPath = path.append(positions.before(slot));
+                    if (flags.contains(DiffFlags.EMIT_TEST_OPERATIONS)) {
+                        diffs.add(new Diff(Operation.TEST, currPath, source.get(owner)));
+                    }
+                    diffs.add(Diff.generateDiff(Operation.REMOVE, currPath, source.get(owner)));
+                    positions.add(slot, -1);
+                } else if (match.kept[owner] && match.changed[owner]) {
+                    generateDiffs(path.append(positions.before(slot)), source.get(owner), target.get(match.targetOf[owner]));
+                }
+                // elements moved elsewhere stay until the slot they move to is reached
+                continue;
+            }
+            int j = -1 - owner;
+            int i = match.sourceOf[j];
+            if (i >= 0) {
+                int from = positions.before(match.sourceSlot[i]);
+                positions.add(match.sourceSlot[i], -1);
+                int to = positions.before(slot);
+                if (from != to) {
+                    JsonPointer fromPath = path.append(from);
+                    if (flags.contains(DiffFlags.EMIT_TEST_OPERATIONS)) {
+                        diffs.add(new Diff(Operation.TEST, fromPath, source.get(i)));
+                    }
+                    diffs.add(new Diff(Operation.MOVE, fromPath, path.append(to), source.get(i)));
+                }
+            } else {
+                diffs.add(Diff.generateDiff(Operation.ADD, path.append(positions.before(slot)), target.get(j)));
+            }
+            positions.add(slot, 1);
+        }
+        return true;
     }
 
     private void removeRemaining(JsonPointer path, int pos, int srcIdx, int srcSize, BsonValue source) {
@@ -446,7 +1005,28 @@ public final class BsonDiff {
         }
     }
 
-    private static List<BsonValue> getLCS(final BsonValue first, final BsonValue second) {
+    /**
+     * Compares values with {@code equals}, after ruling out documents and arrays whose
+     * fingerprints differ if these were computed beforehand. Equal fingerprints are only
+     * likely to mean equal values.
+     */
+    private boolean same(BsonValue first, BsonValue second) {
+        if (sourceFingerprints != null && (first.isDocument() || first.isArray()) && (second.isDocument() || second.isArray())) {
+            BsonFingerprint firstFingerprint = fingerprint(first);
+            BsonFingerprint secondFingerprint = fingerprint(second);
+            if (firstFingerprint != null && secondFingerprint != null && !firstFingerprint.equals(secondFingerprint)) {
+                return false;
+            }
+        }
+        return first.equals(second);
+    }
+
+    private BsonFingerprint fingerprint(BsonValue value) {
+        BsonFingerprint fingerprint = sourceFingerprints.get(value);
+        return fingerprint != null ? fingerprint : targetFingerprints.get(value);
+    }
+
+    static List<BsonValue> getLCS(final BsonValue first, final BsonValue second) {
         return ListUtils.longestCommonSubsequence(InternalUtils.toList(first.asArray()), InternalUtils.toList(second.asArray()));
     }
 }
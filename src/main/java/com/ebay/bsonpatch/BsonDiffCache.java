@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bson.BsonArray;
+import org.bson.BsonValue;
+
+/**
+ * A size-bounded cache of the patches computed by {@link BsonDiff#asBson}, for when the same
+ * pair of values is compared over and over. Entries are keyed by the {@link BsonFingerprint}
+ * of both values and the flags, and the least recently used entry is evicted once
+ * {@code maximumSize} is reached. Each entry keeps an immutable copy of both values, which
+ * a hit is checked against, so values whose fingerprints collide never share a patch. A
+ * single instance can be shared by all threads.
+ * <p>
+ * The patches returned are immutable, as are the values in them, and shared by all callers
+ * asking for the same diff. Applying them with {@link BsonPatch} gives mutable values.
+ *
+ * <pre>
+ * BsonDiffCache cache = new BsonDiffCache(10000);
+ * BsonArray patch = cache.asBson(source, target);
+ * </pre>
+ *
+ * @since 0.5.0
+ */
+public final class BsonDiffCache {
+
+    private final int maximumSize;
+    private final Map<Key, CachedPatch> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maximumSize the number of patches kept at most
+     */
+    public BsonDiffCache(int maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+        this.entries = new LinkedHashMap<Key, CachedPatch>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedPatch> eldest) {
+                if (size() > BsonDiffCache.this.maximumSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    private static final class Key {
+        private final BsonFingerprint source;
+        private final BsonFingerprint target;
+        private final EnumSet<DiffFlags> flags;
+
+        Key(BsonFingerprint source, BsonFingerprint target, EnumSet<DiffFlags> flags) {
+            this.source = source;
+            this.target = target;
+            this.flags = flags;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key that = (Key) o;
+            return source.equals(that.source) && target.equals(that.target) && flags.equals(that.flags);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * source.hashCode() + target.hashCode()) + flags.hashCode();
+        }
+    }
+
+    private static final class CachedPatch {
+        private final BsonValue source;
+        private final BsonValue target;
+        private final BsonArray patch;
+
+        CachedPatch(BsonValue source, BsonValue target, BsonArray patch) {
+            this.source = source;
+            this.target = target;
+            this.patch = patch;
+        }
+    }
+
+    /** Like {@link BsonDiff#asBson(BsonValue, BsonValue)}, but returns a cached patch if there is one. */
+    public BsonArray asBson(BsonValue source, BsonValue target) {
+        return asBson(source, target, DiffFlags.defaults());
+    }
+
+    /**
+     * Like {@link BsonDiff#asBson(BsonValue, BsonValue, EnumSet)}, but returns a cached patch
+     * if there is one. A cached patch is only returned after checking that its values equal
+     * {@code source} and {@code target}, which takes time linear in their size. Threads
+     * missing the same entry at the same time each compute it.
+     */
+    public BsonArray asBson(BsonValue source, BsonValue target, EnumSet<DiffFlags> flags) {
+        Key key = new Key(BsonFingerprint.of(source), BsonFingerprint.of(target), EnumSet.copyOf(flags));
+        CachedPatch entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        // the fingerprints of different values may collide
+        if (entry != null && entry.source.equals(source) && entry.target.equals(target)) {
+            hits.increment();
+            return entry.patch;
+        }
+        misses.increment();
+        BsonArray patch = InternalUtils.freeze(BsonDiff.asBson(source, target, flags));
+        entry = new CachedPatch(InternalUtils.freeze(source), InternalUtils.freeze(target), patch);
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+        return patch;
+    }
+
+    /** Returns the number of patches cached. */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /** Discards all cached patches. The counters are kept. */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /** Returns how many patches were served from the cache. */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /** Returns how many patches had to be computed. */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /** Returns how many patches were discarded to make room for others. */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import java.util.ArrayDeque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+import com.ebay.bsonpatch.BsonCollectionDiff.Change;
+
+/**
+ * A stream operator turning a stream of document versions into a stream of patches between
+ * consecutive versions of the same document, for change pipelines. Versions are matched by a
+ * key field, {@code _id} by default. The first version of a key is passed on as an
+ * {@link Change.Type#INSERT insert}, and each later one as an {@link Change.Type#UPDATE update}
+ * holding the patch from the version before it, empty if nothing changed.
+ * <p>
+ * Patches are computed on the given executor: versions of different keys are diffed in
+ * parallel, those of the same key one after the other, and the changes of a key are passed on
+ * in the order its versions arrived. Changes of different keys may be reordered.
+ * <p>
+ * The operator follows the <a href="https://www.reactive-streams.org/">Reactive Streams</a>
+ * rules, including backpressure: it requests {@code bufferSize} versions upstream, and one more
+ * only once a change has been passed on downstream, so a slow subscriber holds at most
+ * {@code bufferSize} versions and changes in memory. The operator receives versions through
+ * {@link #onSubscribe(Subscription)}, {@link #onNext(BsonDocument)}, {@link #onError(Throwable)}
+ * and {@link #onComplete()}, and passes changes to a {@link Subscriber}. {@code Subscriber} and
+ * {@link Subscription} have the methods of their {@code java.util.concurrent.Flow} and
+ * {@code org.reactivestreams} namesakes, which this library, built for Java 8 without
+ * dependencies on either, cannot implement; adapting them takes a method reference per
+ * method. The latest version of every key seen is kept for the life of the operator, and
+ * only a single downstream subscriber is supported.
+ *
+ * @since 0.5.0
+ */
+public final class BsonDiffProcessor {
+
+    /** The link between a subscriber and the stream it receives, as in Reactive Streams. */
+    public interface Subscription {
+        /** Asks for {@code n} more items. */
+        void request(long n);
+
+        /** Asks for no more items. */
+        void cancel();
+    }
+
+    /** A receiver of a stream of items, as in Reactive Streams. */
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    private static final String DEFAULT_KEY = "_id";
+
+    private final String keyField;
+    private final EnumSet<DiffFlags> flags;
+    private final Executor executor;
+    private final int bufferSize;
+
+    private final Map<BsonValue, Key> keys = new HashMap<BsonValue, Key>();
+    private final Queue<Change> ready = new ConcurrentLinkedQueue<Change>();
+    // versions received but not yet diffed into ready
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger drains = new AtomicInteger();
+
+    private volatile Subscription upstream;
+    private volatile Subscriber<? super Change> downstream;
+    private volatile boolean done;
+    private volatile boolean terminated;
+    private volatile Throwable error;
+
+    /** Creates an operator matching versions by {@code _id}. */
+    public BsonDiffProcessor(Executor executor, int bufferSize) {
+        this(DEFAULT_KEY, DiffFlags.defaults(), executor, bufferSize);
+    }
+
+    /**
+     * Creates an operator matching versions by {@code keyField}, diffing them with
+     * {@code flags} on {@code executor}.
+     *
+     * @param bufferSize the most versions and changes held at once
+     */
+    public BsonDiffProcessor(String keyField, EnumSet<DiffFlags> flags, Executor executor, int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+        }
+        this.keyField = Objects.requireNonNull(keyField, "keyField");
+        this.flags = flags.clone();
+        this.executor = Objects.requireNonNull(executor, "executor");
+        this.bufferSize = bufferSize;
+    }
+
+    /** The versions of a single key; guarded by {@code keys} except for {@code previous}. */
+    private static final class Key {
+        final BsonValue key;
+        final Queue<BsonDocument> versions = new ArrayDeque<BsonDocument>();
+        boolean scheduled;
+        // only touched by the task diffing the key
+        BsonDocument previous;
+
+        Key(BsonValue key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Subscribes the receiver of the changes. A second subscriber is refused with an
+     * {@link IllegalStateException}.
+     */
+    public void subscribe(Subscriber<? super Change> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        synchronized (this) {
+            if (downstream != null) {
+                subscriber.onSubscribe(new Subscription() {
+                    @Override public void request(long n) {}
+                    @Override public void cancel() {}
+                });
+                subscriber.onError(new IllegalStateException("BsonDiffProcessor supports a single subscriber"));
+                return;
+            }
+            downstream = subscriber;
+        }
+        subscriber.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    fail(new IllegalArgumentException("non-positive request: " + n));
+                    return;
+                }
+                long current;
+                do {
+                    current = demand.get();
+                } while (current != Long.MAX_VALUE && !demand.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                terminated = true;
+                cancelUpstream();
+            }
+        });
+        drain();
+    }
+
+    /** Receives the subscription to the versions, of which it requests {@code bufferSize}. */
+    public void onSubscribe(Subscription subscription) {
+        synchronized (this) {
+            if (upstream != null) {
+                subscription.cancel();
+                return;
+            }
+            upstream = subscription;
+        }
+        if (terminated) {
+            subscription.cancel();
+        } else {
+            subscription.request(bufferSize);
+        }
+    }
+
+    /** Receives a version, failing the stream if it has no key field. */
+    public void onNext(BsonDocument version) {
+        if (done || terminated) {
+            return;
+        }
+        BsonValue keyValue = version.get(keyField);
+        if (keyValue == null) {
+            fail(new IllegalArgumentException("document without " + keyField + ": " + version.toJson()));
+            return;
+        }
+        pending.incrementAndGet();
+        Key key;
+        boolean schedule;
+        synchronized (keys) {
+            key = keys.get(keyValue);
+            if (key == null) {
+                key = new Key(keyValue);
+                keys.put(keyValue, key);
+            }
+            key.versions.add(version);
+            schedule = !key.scheduled;
+            key.scheduled = true;
+        }
+        if (schedule) {
+            final Key scheduled = key;
+            try {
+                executor.execute(() -> diff(scheduled));
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+    }
+
+    /** Fails the stream, without waiting for the changes not yet passed on. */
+    public void onError(Throwable throwable) {
+        if (error == null) {
+            error = throwable;
+        }
+        done = true;
+        drain();
+    }
+
+    /** Ends the stream once the changes of all versions received are passed on. */
+    public void onComplete() {
+        done = true;
+        drain();
+    }
+
+    /** Diffs the queued versions of a key in order, until there are none left. */
+    private void diff(Key key) {
+        while (!terminated && error == null) {
+            BsonDocument version;
+            synchronized (keys) {
+                version = key.versions.poll();
+                if (version == null) {
+                    key.scheduled = false;
+                    return;
+                }
+            }
+            Change change;
+            try {
+                if (key.previous == null) {
+                    change = new Change(Change.Type.INSERT, key.key, version, null);
+                } else {
+                    BsonArray patch = BsonDiff.asBson(key.previous, version, flags);
+                    change = new Change(Change.Type.UPDATE, key.key, version, patch);
+                }
+            } catch (RuntimeException e) {
+                fail(e);
+                return;
+            }
+            key.previous = version;
+            ready.offer(change);
+            pending.decrementAndGet();
+            drain();
+        }
+    }
+
+    private void fail(Throwable throwable) {
+        if (error == null) {
+            error = throwable;
+        }
+        cancelUpstream();
+        drain();
+    }
+
+    private void cancelUpstream() {
+        Subscription subscription = upstream;
+        if (subscription != null) {
+            subscription.cancel();
+        }
+    }
+
+    /**
+     * Passes ready changes downstream as far as demand allows, and the end of the stream
+     * once everything has been passed on. Only one thread drains at a time; the others leave
+     * their work to it.
+     */
+    private void drain() {
+        if (drains.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            Subscriber<? super Change> subscriber = downstream;
+            if (subscriber != null && !terminated) {
+                long delivered = 0;
+                long requested = demand.get();
+                while (true) {
+                    Throwable failure = error;
+                    if (failure != null) {
+                        terminate();
+                        subscriber.onError(failure);
+                        break;
+                    }
+                    // read before polling, so that an empty queue means all is passed on
+                    boolean finished = done && pending.get() == 0;
+                    if (finished && ready.isEmpty()) {
+                        terminate();
+                        subscriber.onComplete();
+                        break;
+                    }
+                    if (delivered == requested) {
+                        break;
+                    }
+                    Change change = ready.poll();
+                    if (change == null) {
+                        break;
+                    }
+                    subscriber.onNext(change);
+                    delivered++;
+                }
+                if (delivered > 0) {
+                    if (requested != Long.MAX_VALUE) {
+                        demand.addAndGet(-delivered);
+                    }
+                    Subscription subscription = upstream;
+                    if (subscription != null && !done && !terminated) {
+                        subscription.request(delivered);
+                    }
+                }
+            }
+            missed = drains.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void terminate() {
+        terminated = true;
+        ready.clear();
+        synchronized (keys) {
+            keys.clear();
+        }
+    }
+}
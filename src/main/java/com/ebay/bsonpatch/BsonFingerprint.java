@@ -0,0 +1,292 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.bson.BsonBinary;
+import org.bson.BsonDbPointer;
+import org.bson.BsonDocument;
+import org.bson.BsonJavaScriptWithScope;
+import org.bson.BsonRegularExpression;
+import org.bson.BsonValue;
+import org.bson.types.Decimal128;
+
+/**
+ * A 128-bit hash of the content of a {@link BsonValue}, computed in a single walk over the
+ * value without encoding it. Values that are {@linkplain BsonValue#equals equal} have the
+ * same fingerprint; like {@code equals}, the fingerprint of a document does not depend on
+ * the order of its fields. Different values have the same fingerprint with negligible
+ * probability, so fingerprints can stand in for values as cache keys. They are not
+ * cryptographic hashes and must not be relied on for values chosen by an adversary.
+ * The fingerprint of a document or array is computed from the fingerprints of the
+ * documents and arrays in it, so these can be computed once and reused.
+ *
+ * @since 0.5.0
+ */
+public final class BsonFingerprint {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final long SEED1 = 0x9e3779b97f4a7c15L;
+    private static final long SEED2 = 0xc2b2ae3d27d4eb4fL;
+
+    private final long high;
+    private final long low;
+
+    private BsonFingerprint(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /** Computes the fingerprint of {@code value}. */
+    public static BsonFingerprint of(BsonValue value) {
+        return of(value, null);
+    }
+
+    /**
+     * Computes the fingerprints of {@code value} and of every document and array in it,
+     * keyed by identity. The values must not change while the fingerprints are in use.
+     */
+    static Map<BsonValue, BsonFingerprint> ofAll(BsonValue value) {
+        Map<BsonValue, BsonFingerprint> fingerprints = new IdentityHashMap<BsonValue, BsonFingerprint>();
+        of(value, fingerprints);
+        return fingerprints;
+    }
+
+    private static BsonFingerprint of(BsonValue value, Map<BsonValue, BsonFingerprint> fingerprints) {
+        BsonFingerprint fingerprint = fingerprints == null ? null : fingerprints.get(value);
+        if (fingerprint != null) {
+            return fingerprint;
+        }
+        Hasher hasher = new Hasher();
+        hash(value, hasher, fingerprints);
+        hasher.finish();
+        fingerprint = new BsonFingerprint(hasher.h1, hasher.h2);
+        if (fingerprints != null && isContainer(value)) {
+            fingerprints.put(value, fingerprint);
+        }
+        return fingerprint;
+    }
+
+    private static boolean isContainer(BsonValue value) {
+        return value.isDocument() || value.isArray();
+    }
+
+    /**
+     * Two lanes of the MurmurHash3 x64 128-bit block mix, fed one {@code long} at a time.
+     */
+    private static final class Hasher {
+        long h1 = SEED1;
+        long h2 = SEED2;
+        long length;
+
+        void add(long k) {
+            long k1 = Long.rotateLeft(k * C1, 31) * C2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52dce729;
+            long k2 = Long.rotateLeft(k * C2, 33) * C1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495ab5;
+            length++;
+        }
+
+        void add(String s) {
+            add(s.length());
+            long packed = 0;
+            for (int i = 0; i < s.length(); i++) {
+                packed = packed << 16 | s.charAt(i);
+                if ((i & 3) == 3) {
+                    add(packed);
+                    packed = 0;
+                }
+            }
+            if ((s.length() & 3) != 0) {
+                add(packed);
+            }
+        }
+
+        void add(byte[] bytes) {
+            add(bytes.length);
+            long packed = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                packed = packed << 8 | (bytes[i] & 0xff);
+                if ((i & 7) == 7) {
+                    add(packed);
+                    packed = 0;
+                }
+            }
+            if ((bytes.length & 7) != 0) {
+                add(packed);
+            }
+        }
+
+        void finish() {
+            h1 ^= length;
+            h2 ^= length;
+            h1 += h2;
+            h2 += h1;
+            h1 = fmix(h1);
+            h2 = fmix(h2);
+            h1 += h2;
+            h2 += h1;
+        }
+
+        private static long fmix(long k) {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+    }
+
+    private static void hash(BsonValue value, Hasher hasher, Map<BsonValue, BsonFingerprint> fingerprints) {
+        hasher.add(value.getBsonType().getValue());
+        switch (value.getBsonType()) {
+            case DOCUMENT:
+                hashDocument(value.asDocument(), hasher, fingerprints);
+                break;
+            case ARRAY:
+                hasher.add(value.asArray().size());
+                for (BsonValue element : value.asArray()) {
+                    hashElement(element, hasher, fingerprints);
+                }
+                break;
+            case DOUBLE:
+                hasher.add(Double.doubleToLongBits(value.asDouble().getValue()));
+                break;
+            case STRING:
+                hasher.add(value.asString().getValue());
+                break;
+            case BINARY:
+                BsonBinary binary = value.asBinary();
+                hasher.add(binary.getType());
+                hasher.add(binary.getData());
+                break;
+            case OBJECT_ID:
+                hasher.add(value.asObjectId().getValue().toByteArray());
+                break;
+            case BOOLEAN:
+                hasher.add(value.asBoolean().getValue() ? 1 : 0);
+                break;
+            case DATE_TIME:
+                hasher.add(value.asDateTime().getValue());
+                break;
+            case REGULAR_EXPRESSION:
+                BsonRegularExpression regex = value.asRegularExpression();
+                hasher.add(regex.getPattern());
+                hasher.add(regex.getOptions());
+                break;
+            case DB_POINTER:
+                BsonDbPointer pointer = value.asDBPointer();
+                hasher.add(pointer.getNamespace());
+                hasher.add(pointer.getId().toByteArray());
+                break;
+            case JAVASCRIPT:
+                hasher.add(value.asJavaScript().getCode());
+                break;
+            case SYMBOL:
+                hasher.add(value.asSymbol().getSymbol());
+                break;
+            case JAVASCRIPT_WITH_SCOPE:
+                BsonJavaScriptWithScope code = value.asJavaScriptWithScope();
+                hasher.add(code.getCode());
+                hashDocument(code.getScope(), hasher, null);
+                break;
+            case INT32:
+                hasher.add(value.asInt32().getValue());
+                break;
+            case TIMESTAMP:
+                hasher.add(value.asTimestamp().getValue());
+                break;
+            case INT64:
+                hasher.add(value.asInt64().getValue());
+                break;
+            case DECIMAL128:
+                Decimal128 decimal = value.asDecimal128().getValue();
+                hasher.add(decimal.getHigh());
+                hasher.add(decimal.getLow());
+                break;
+            default:
+                // null, undefined, min and max key have no content besides their type
+                break;
+        }
+    }
+
+    /**
+     * Fields are hashed separately and summed up, so their order does not matter, as it
+     * does not for {@link BsonDocument#equals}.
+     */
+    private static void hashDocument(BsonDocument document, Hasher hasher, Map<BsonValue, BsonFingerprint> fingerprints) {
+        long sum1 = 0;
+        long sum2 = 0;
+        for (Map.Entry<String, BsonValue> entry : document.entrySet()) {
+            Hasher field = new Hasher();
+            field.add(entry.getKey());
+            hashElement(entry.getValue(), field, fingerprints);
+            field.finish();
+            sum1 += field.h1;
+            sum2 += field.h2;
+        }
+        hasher.add(document.size());
+        hasher.add(sum1);
+        hasher.add(sum2);
+    }
+
+    /**
+     * Documents and arrays in a value contribute their type and fingerprint; other values are
+     * hashed in line.
+     */
+    private static void hashElement(BsonValue element, Hasher hasher, Map<BsonValue, BsonFingerprint> fingerprints) {
+        if (isContainer(element)) {
+            BsonFingerprint fingerprint = of(element, fingerprints);
+            hasher.add(element.getBsonType().getValue());
+            hasher.add(fingerprint.high);
+            hasher.add(fingerprint.low);
+        } else {
+            hash(element, hasher, fingerprints);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        BsonFingerprint that = (BsonFingerprint) o;
+        return high == that.high && low == that.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (low ^ (low >>> 32));
+    }
+
+    /** Returns the fingerprint as 32 hexadecimal digits. */
+    @Override
+    public String toString() {
+        return String.format("%016x%016x", high, low);
+    }
+}
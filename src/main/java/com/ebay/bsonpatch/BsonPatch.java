@@ -23,6 +23,7 @@ import static com.ebay.bsonpatch.InPlaceApplyProcessor.cloneBsonValue;
 
 import java.util.EnumSet;
 import java.util.Iterator;
+import java.util.Map;
 
 import org.bson.BsonArray;
 import org.bson.BsonNull;
@@ -47,70 +48,121 @@ public final class BsonPatch {
             return child;
     }
 
-    private static void process(BsonArray patch, BsonPatchProcessor processor, EnumSet<CompatibilityFlags> flags)
+    static void process(BsonArray patch, BsonPatchProcessor processor, EnumSet<CompatibilityFlags> flags)
             throws InvalidBsonPatchException {
 
+        // validation does not apply anything, so it is not reported
+        boolean validating = processor == NoopProcessor.INSTANCE;
+        BsonPatchListener listener = validating ? BsonPatchListener.NOOP : BsonPatchListeners.get();
+        Object flightEvent = validating ? null : FlightRecorder.beginApply();
+        boolean inPlace = !(processor instanceof CopyingApplyProcessor);
+        int applied = 0;
         Iterator<BsonValue> operations = patch.iterator();
-        while (operations.hasNext()) {
-        	BsonValue bsonNode = operations.next();
-            if (!bsonNode.isDocument()) throw new InvalidBsonPatchException("Invalid BSON Patch payload (not an object)");
-            Operation operation = Operation.fromRfcName(getPatchAttr(bsonNode, Constants.OP).asString().getValue().replaceAll("\"", ""));
-            JsonPointer path = JsonPointer.parse(getPatchAttr(bsonNode, Constants.PATH).asString().getValue());
-
-            try {
-	            switch (operation) {
-		            case REMOVE: {
-		                processor.remove(path);
-		                break;
-		            }
-		
-		            case ADD: {
-		            	BsonValue value;
-		                if (!flags.contains(CompatibilityFlags.MISSING_VALUES_AS_NULLS))
-		                    value = getPatchAttr(bsonNode, Constants.VALUE);
-		                else
-		                    value = getPatchAttrWithDefault(bsonNode, Constants.VALUE, BsonNull.VALUE);
-		                processor.add(path, cloneBsonValue(value));
-		                break;
-		            }
-		
-		            case REPLACE: {
-		            	BsonValue value;
-		                if (!flags.contains(CompatibilityFlags.MISSING_VALUES_AS_NULLS))
-		                    value = getPatchAttr(bsonNode, Constants.VALUE);
-		                else
-		                    value = getPatchAttrWithDefault(bsonNode, Constants.VALUE, BsonNull.VALUE);
-		                processor.replace(path, cloneBsonValue(value));
-		                break;
-		            }
-		
-		            case MOVE: {
-		                JsonPointer fromPath = JsonPointer.parse(getPatchAttr(bsonNode, Constants.FROM).asString().getValue());
-		                processor.move(fromPath, path);
-		                break;
-		            }
-		
-		            case COPY: {
-		                JsonPointer fromPath = JsonPointer.parse(getPatchAttr(bsonNode, Constants.FROM).asString().getValue());
-		                processor.copy(fromPath, path);
-		                break;
-		            }
-		
-		            case TEST: {
-		            	BsonValue value;
-		                if (!flags.contains(CompatibilityFlags.MISSING_VALUES_AS_NULLS))
-		                    value = getPatchAttr(bsonNode, Constants.VALUE);
-		                else
-		                    value = getPatchAttrWithDefault(bsonNode, Constants.VALUE, BsonNull.VALUE);
-		                processor.test(path, cloneBsonValue(value));
-		                break;
-		            }
-	            }
+        try {
+            while (operations.hasNext()) {
+                DecodedOperation operation = decode(operations.next(), flags);
+                perform(processor, operation.operation, operation.path, operation.fromPath, operation.value, listener);
+                applied++;
             }
-            catch (JsonPointerEvaluationException e) {
-                throw new BsonPatchApplicationException(e.getMessage(), operation, e.getPath());
+        } catch (RuntimeException e) {
+            FlightRecorder.commitApply(flightEvent, inPlace, patch.size(), applied, e);
+            throw e;
+        }
+        FlightRecorder.commitApply(flightEvent, inPlace, patch.size(), applied, null);
+    }
+
+    /** An operation of a patch, with its paths parsed. */
+    static final class DecodedOperation {
+        final Operation operation;
+        final JsonPointer path;
+        final JsonPointer fromPath;
+        final BsonValue value;
+
+        DecodedOperation(Operation operation, JsonPointer path, JsonPointer fromPath, BsonValue value) {
+            this.operation = operation;
+            this.path = path;
+            this.fromPath = fromPath;
+            this.value = value;
+        }
+    }
+
+    static DecodedOperation decode(BsonValue bsonNode, EnumSet<CompatibilityFlags> flags) throws InvalidBsonPatchException {
+        if (!bsonNode.isDocument()) throw new InvalidBsonPatchException("Invalid BSON Patch payload (not an object)");
+        Operation operation = Operation.fromRfcName(getPatchAttr(bsonNode, Constants.OP).asString().getValue().replaceAll("\"", ""));
+        JsonPointer path = JsonPointer.parse(getPatchAttr(bsonNode, Constants.PATH).asString().getValue());
+        JsonPointer fromPath = null;
+        BsonValue value = null;
+
+        switch (operation) {
+            case ADD:
+            case REPLACE:
+            case TEST: {
+                if (!flags.contains(CompatibilityFlags.MISSING_VALUES_AS_NULLS))
+                    value = getPatchAttr(bsonNode, Constants.VALUE);
+                else
+                    value = getPatchAttrWithDefault(bsonNode, Constants.VALUE, BsonNull.VALUE);
+                break;
+            }
+
+            case MOVE:
+            case COPY: {
+                fromPath = JsonPointer.parse(getPatchAttr(bsonNode, Constants.FROM).asString().getValue());
+                break;
+            }
+
+            default:
+                break;
+        }
+        return new DecodedOperation(operation, path, fromPath, value);
+    }
+
+    /**
+     * Hands a single, already decoded operation to the processor, reporting it to the
+     * listener. Values are cloned so the patch is never aliased into the document it is
+     * applied to.
+     */
+    static void perform(BsonPatchProcessor processor, Operation operation, JsonPointer path, JsonPointer fromPath, BsonValue value,
+            BsonPatchListener listener) {
+        if (listener == BsonPatchListener.NOOP) {
+            perform(processor, operation, path, fromPath, value);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            perform(processor, operation, path, fromPath, value);
+        } catch (RuntimeException e) {
+            listener.operationFailed(operation, e);
+            throw e;
+        }
+        listener.operationApplied(operation, System.nanoTime() - start);
+    }
+
+    private static void perform(BsonPatchProcessor processor, Operation operation, JsonPointer path, JsonPointer fromPath, BsonValue value) {
+        try {
+            switch (operation) {
+	            case REMOVE:
+	                processor.remove(path);
+	                break;
+	            case ADD:
+	                processor.add(path, cloneBsonValue(value));
+	                break;
+	            case REPLACE:
+	                processor.replace(path, cloneBsonValue(value));
+	                break;
+	            case MOVE:
+	                processor.move(fromPath, path);
+	                break;
+	            case COPY:
+	                processor.copy(fromPath, path);
+	                break;
+	            case TEST:
+	                processor.test(path, cloneBsonValue(value));
+	                break;
             }
-         }
+        }
+        catch (JsonPointerEvaluationException e) {
+            throw new BsonPatchApplicationException(e.getMessage(), operation, e.getPath());
+        }
     }
 
     public static void validate(BsonArray patch, EnumSet<CompatibilityFlags> flags) throws InvalidBsonPatchException {
@@ -140,4 +192,130 @@ public final class BsonPatch {
         process(patch, processor, flags);
     }
 
+    /**
+     * Applies the patch to a copy of {@code source}, a plain Java tree of maps, lists and
+     * boxed values such as a {@link org.bson.Document}, without converting it to BSON. Values
+     * added by the patch are converted the way the driver's {@code DocumentCodec} decodes
+     * them: documents become {@code Document}s and arrays {@code ArrayList}s.
+     *
+     * @return the patched copy, a {@code Document} unless the patch replaces the root
+     * @since 0.5.0
+     */
+    public static Object applyToMap(BsonArray patch, Map<String, ?> source) throws BsonPatchApplicationException {
+        return applyToMap(patch, source, CompatibilityFlags.defaults());
+    }
+
+    /**
+     * Applies the patch to a copy of a Java tree.
+     *
+     * @see #applyToMap(BsonArray, Map)
+     * @since 0.5.0
+     */
+    public static Object applyToMap(BsonArray patch, Map<String, ?> source, EnumSet<CompatibilityFlags> flags) throws BsonPatchApplicationException {
+        MapApplyProcessor processor = new MapApplyProcessor(MapValues.copy(source), flags);
+        process(patch, processor, flags);
+        return processor.result();
+    }
+
+    /**
+     * Applies the patch to {@code source}, a plain Java tree of maps and lists, mutating it.
+     *
+     * @see #applyToMap(BsonArray, Map)
+     * @since 0.5.0
+     */
+    public static void applyInPlaceToMap(BsonArray patch, Map<String, ?> source) {
+        applyInPlaceToMap(patch, source, CompatibilityFlags.defaults());
+    }
+
+    /**
+     * Applies the patch to a Java tree, mutating it.
+     *
+     * @see #applyToMap(BsonArray, Map)
+     * @since 0.5.0
+     */
+    public static void applyInPlaceToMap(BsonArray patch, Map<String, ?> source, EnumSet<CompatibilityFlags> flags) {
+        process(patch, new MapApplyProcessor(source, flags), flags);
+    }
+
+    /**
+     * Applies the patch to {@code source} in place, applying the groups of operations found
+     * independent by {@link PatchAnalysis} at the same time on the common fork/join pool.
+     * This pays off for large patches with changes spread over many subtrees, e.g. the
+     * elements of a large array.
+     * <p>
+     * The whole patch is validated before any operation is applied. If operations fail, the
+     * groups they are not in are still applied, and the failure of the first one in the patch
+     * is thrown.
+     *
+     * @since 0.5.0
+     */
+    public static void applyInPlaceInParallel(BsonArray patch, BsonValue source) {
+        applyInPlaceInParallel(patch, source, CompatibilityFlags.defaults());
+    }
+
+    /**
+     * Applies the patch to {@code source} in place, applying independent operations at the same time.
+     *
+     * @see #applyInPlaceInParallel(BsonArray, BsonValue)
+     * @since 0.5.0
+     */
+    public static void applyInPlaceInParallel(BsonArray patch, BsonValue source, EnumSet<CompatibilityFlags> flags) {
+        ParallelApply.apply(patch, source, flags);
+    }
+
+    /**
+     * Applies an <a href="https://tools.ietf.org/html/rfc7396">RFC 7396</a> merge patch to a
+     * copy of {@code source}. Merging never fails: a patch that is not a document replaces
+     * the whole value.
+     *
+     * @since 0.5.0
+     */
+    public static BsonValue applyMerge(BsonValue mergePatch, BsonValue source) {
+        return MergePatch.apply(source.isDocument() ? source.asDocument().clone() : null, mergePatch);
+    }
+
+    /**
+     * Applies an <a href="https://tools.ietf.org/html/rfc7396">RFC 7396</a> merge patch to
+     * {@code source}, mutating it.
+     *
+     * @throws BsonPatchApplicationException if the merge would replace the root, which cannot
+     *  be done in place; this is the case unless both {@code mergePatch} and {@code source}
+     *  are documents
+     * @since 0.5.0
+     */
+    public static void applyMergeInPlace(BsonValue mergePatch, BsonValue source) {
+        if (!mergePatch.isDocument() || !source.isDocument()) {
+            throw new BsonPatchApplicationException("Merge patch would replace the root in place", Operation.REPLACE, JsonPointer.ROOT);
+        }
+        MergePatch.apply(source, mergePatch);
+    }
+
+    /**
+     * Applies the patch to {@code source} in place with all-or-nothing semantics: if any operation
+     * fails, the mutations already performed are rolled back before the exception is rethrown,
+     * leaving {@code source} as it was. Unlike {@link #apply(BsonArray, BsonValue)} this does not
+     * copy the document; only the values overwritten or removed by the patch are retained.
+     *
+     * @since 0.5.0
+     */
+    public static void applyInPlaceAtomically(BsonArray patch, BsonValue source) {
+        applyInPlaceAtomically(patch, source, CompatibilityFlags.defaults());
+    }
+
+    /**
+     * Applies the patch to {@code source} in place with all-or-nothing semantics.
+     *
+     * @see #applyInPlaceAtomically(BsonArray, BsonValue)
+     * @since 0.5.0
+     */
+    public static void applyInPlaceAtomically(BsonArray patch, BsonValue source, EnumSet<CompatibilityFlags> flags) {
+        TransactionalApplyProcessor processor = new TransactionalApplyProcessor(source, flags);
+        try {
+            process(patch, processor, flags);
+        } catch (RuntimeException e) {
+            processor.rollback();
+            throw e;
+        }
+    }
+
 }
@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ebay.bsonpatch;
+
+/**
+ * Receives events from {@link BsonDiff} and {@link BsonPatch}, for metrics and tracing.
+ * Register an implementation with {@link BsonPatchListeners#set(BsonPatchListener)}.
+ *
+ * <p>All methods do nothing by default. They are called synchronously on the thread doing
+ * the work, possibly from many threads at once, so implementations must be thread-safe,
+ * fast and must not throw. While no listener is registered no events are created, and
+ * no timings are taken.
+ *
+ * @see BsonPatchStatistics
+ * @since 0.5.0
+ */
+public interface BsonPatchListener {
+
+    /** A listener ignoring all events; the one in use while no other is registered. */
+    BsonPatchListener NOOP = new BsonPatchListener() {};
+
+    /** Called once a phase of computing a patch has completed. */
+    default void diffPhaseCompleted(DiffPhase phase, long elapsedNanos) {}
+
+    /** Called for every operation of a computed patch, before {@link #diffCompleted}. */
+    default void operationEmitted(Operation operation) {}
+
+    /**
+     * Called once a patch has been computed.
+     *
+     * @param nodesVisited the number of value pairs compared
+     * @param lcsCells the number of cells of the longest common subsequence tables
+     *  computed for arrays
+     * @param elapsedNanos the time taken by all phases together
+     */
+    default void diffCompleted(long nodesVisited, long lcsCells, long elapsedNanos) {}
+
+    /** Called after an operation of a patch has been applied. */
+    default void operationApplied(Operation operation, long elapsedNanos) {}
+
+    /** Called when an operation of a patch failed to apply, before the failure is thrown. */
+    default void operationFailed(Operation operation, RuntimeException failure) {}
+}
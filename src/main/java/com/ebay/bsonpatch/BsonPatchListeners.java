@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ebay.bsonpatch;
+
+/**
+ * Holds the {@link BsonPatchListener} notified by {@link BsonDiff} and {@link BsonPatch}.
+ * The listener is read once per diff or patch application, so changing it does not
+ * affect work already in progress.
+ *
+ * @since 0.5.0
+ */
+public final class BsonPatchListeners {
+
+    private static volatile BsonPatchListener listener = BsonPatchListener.NOOP;
+
+    private BsonPatchListeners() {}
+
+    /** Registers the listener, replacing the current one; {@code null} unregisters it. */
+    public static void set(BsonPatchListener listener) {
+        BsonPatchListeners.listener = listener == null ? BsonPatchListener.NOOP : listener;
+    }
+
+    /** Returns the registered listener, or {@link BsonPatchListener#NOOP}. */
+    public static BsonPatchListener get() {
+        return listener;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ebay.bsonpatch;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link BsonPatchListener} aggregating events in memory: counters of diffs, compared
+ * nodes, LCS cells and operations emitted, applied and failed per type, and latency
+ * histograms per diff phase and per applied operation type. Updates are lock-free, so a
+ * single instance can be shared by all threads.
+ *
+ * <pre>
+ * BsonPatchStatistics statistics = new BsonPatchStatistics();
+ * BsonPatchListeners.set(statistics);
+ * </pre>
+ *
+ * @since 0.5.0
+ */
+public final class BsonPatchStatistics implements BsonPatchListener {
+
+    private final LongAdder diffs = new LongAdder();
+    private final LongAdder nodesVisited = new LongAdder();
+    private final LongAdder lcsCells = new LongAdder();
+    private final LatencyHistogram diffLatency = new LatencyHistogram();
+    private final Map<DiffPhase, LatencyHistogram> phaseLatency = new EnumMap<DiffPhase, LatencyHistogram>(DiffPhase.class);
+    private final Map<Operation, LongAdder> emitted = new EnumMap<Operation, LongAdder>(Operation.class);
+    private final Map<Operation, LongAdder> failed = new EnumMap<Operation, LongAdder>(Operation.class);
+    private final Map<Operation, LatencyHistogram> applyLatency = new EnumMap<Operation, LatencyHistogram>(Operation.class);
+
+    public BsonPatchStatistics() {
+        for (DiffPhase phase : DiffPhase.values()) {
+            phaseLatency.put(phase, new LatencyHistogram());
+        }
+        for (Operation operation : Operation.values()) {
+            emitted.put(operation, new LongAdder());
+            failed.put(operation, new LongAdder());
+            applyLatency.put(operation, new LatencyHistogram());
+        }
+    }
+
+    @Override
+    public void diffPhaseCompleted(DiffPhase phase, long elapsedNanos) {
+        phaseLatency.get(phase).record(elapsedNanos);
+    }
+
+    @Override
+    public void operationEmitted(Operation operation) {
+        emitted.get(operation).increment();
+    }
+
+    @Override
+    public void diffCompleted(long nodesVisited, long lcsCells, long elapsedNanos) {
+        diffs.increment();
+        this.nodesVisited.add(nodesVisited);
+        this.lcsCells.add(lcsCells);
+        diffLatency.record(elapsedNanos);
+    }
+
+    @Override
+    public void operationApplied(Operation operation, long elapsedNanos) {
+        applyLatency.get(operation).record(elapsedNanos);
+    }
+
+    @Override
+    public void operationFailed(Operation operation, RuntimeException failure) {
+        failed.get(operation).increment();
+    }
+
+    /** Returns the number of patches computed. */
+    public long getDiffCount() {
+        return diffs.sum();
+    }
+
+    /** Returns the number of value pairs compared while computing patches. */
+    public long getNodesVisited() {
+        return nodesVisited.sum();
+    }
+
+    /** Returns the number of LCS table cells computed while comparing arrays. */
+    public long getLcsCells() {
+        return lcsCells.sum();
+    }
+
+    /** Returns the number of operations of the given type in computed patches. */
+    public long getEmittedCount(Operation operation) {
+        return emitted.get(operation).sum();
+    }
+
+    /** Returns the number of operations of the given type applied successfully. */
+    public long getAppliedCount(Operation operation) {
+        return applyLatency.get(operation).getCount();
+    }
+
+    /** Returns the number of operations of the given type that failed to apply. */
+    public long getFailedCount(Operation operation) {
+        return failed.get(operation).sum();
+    }
+
+    /** Returns the latencies of computing whole patches. */
+    public LatencyHistogram getDiffLatency() {
+        return diffLatency;
+    }
+
+    /** Returns the latencies of the given phase of computing patches. */
+    public LatencyHistogram getPhaseLatency(DiffPhase phase) {
+        return phaseLatency.get(phase);
+    }
+
+    /** Returns the latencies of applying operations of the given type. */
+    public LatencyHistogram getApplyLatency(Operation operation) {
+        return applyLatency.get(operation);
+    }
+
+    /** Clears all counters and histograms. */
+    public void reset() {
+        diffs.reset();
+        nodesVisited.reset();
+        lcsCells.reset();
+        diffLatency.reset();
+        for (LatencyHistogram histogram : phaseLatency.values()) {
+            histogram.reset();
+        }
+        for (Operation operation : Operation.values()) {
+            emitted.get(operation).reset();
+            failed.get(operation).reset();
+            applyLatency.get(operation).reset();
+        }
+    }
+}
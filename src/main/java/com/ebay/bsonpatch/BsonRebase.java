@@ -0,0 +1,487 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+
+/**
+ * Rebases a patch over a patch committed concurrently, i.e. computed from the same version
+ * of a document, so it can be applied after it. This is the transformation of operational
+ * transform: paths are shifted past elements inserted into or removed from arrays and
+ * follow values that were moved. Where both patches change the same value, or one changes
+ * a value the other removes or changes inside, there is no such transformation and a
+ * {@link Conflict} is reported instead.
+ * <p>
+ * Patches are rebased without the document, so reference tokens that are numbers, or
+ * {@code -}, are taken to be array indexes.
+ *
+ * <pre>
+ * BsonRebase.Result rebased = BsonRebase.rebase(mine, committed);
+ * if (!rebased.hasConflicts()) {
+ *     BsonPatch.applyInPlace(rebased.getPatch(), latest);
+ * }
+ * </pre>
+ *
+ * @since 0.5.0
+ */
+public final class BsonRebase {
+
+    private BsonRebase() {}
+
+    /** The outcome of a rebase. */
+    public static final class Result {
+        private final BsonArray patch;
+        private final List<Conflict> conflicts;
+
+        Result(BsonArray patch, List<Conflict> conflicts) {
+            this.patch = patch;
+            this.conflicts = Collections.unmodifiableList(conflicts);
+        }
+
+        /**
+         * Returns the rebased patch. Operations already carried out by the concurrent patch
+         * are left out, and so are operations in conflict with it.
+         */
+        public BsonArray getPatch() {
+            return patch;
+        }
+
+        /** Returns whether any operation is in conflict with the concurrent patch. */
+        public boolean hasConflicts() {
+            return !conflicts.isEmpty();
+        }
+
+        /** Returns the conflicts, in the order of the operations of the rebased patch. */
+        public List<Conflict> getConflicts() {
+            return conflicts;
+        }
+    }
+
+    /** An operation that cannot be rebased over an operation of the concurrent patch. */
+    public static final class Conflict {
+        private final int operation;
+        private final int concurrentOperation;
+        private final String reason;
+
+        Conflict(int operation, int concurrentOperation, String reason) {
+            this.operation = operation;
+            this.concurrentOperation = concurrentOperation;
+            this.reason = reason;
+        }
+
+        /** Returns the index of the operation in the patch rebased. */
+        public int getOperation() {
+            return operation;
+        }
+
+        /** Returns the index of the operation in the concurrent patch. */
+        public int getConcurrentOperation() {
+            return concurrentOperation;
+        }
+
+        /** Returns why the operations conflict. */
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return "operation " + operation + " conflicts with concurrent operation " + concurrentOperation + ": " + reason;
+        }
+    }
+
+    /**
+     * Rebases {@code patch} over {@code over}. Both must have been computed from the same
+     * version of a document; the rebased patch then applies to that version with
+     * {@code over} applied.
+     *
+     * @throws InvalidBsonPatchException if either patch is malformed
+     */
+    public static Result rebase(BsonArray patch, BsonArray over) throws InvalidBsonPatchException {
+        List<Op> concurrent = new ArrayList<Op>(over.size());
+        for (int i = 0; i < over.size(); i++) {
+            concurrent.add(new Op(over.get(i), i));
+        }
+        BsonArray rebased = new BsonArray();
+        List<Conflict> conflicts = new ArrayList<Conflict>();
+        for (int i = 0; i < patch.size(); i++) {
+            Op op = new Op(patch.get(i), i);
+            List<Op> transformed = new ArrayList<Op>(concurrent.size());
+            for (Op other : concurrent) {
+                if (op == null) {
+                    transformed.add(other);
+                    continue;
+                }
+                Transform forward = new Transform(op, other, true);
+                if (forward.conflict != null) {
+                    conflicts.add(new Conflict(i, other.index, forward.conflict));
+                    op = null;
+                    transformed.add(other);
+                    continue;
+                }
+                // the concurrent operation as it applies after this one, to rebase the next ones over
+                Transform backward = new Transform(other, op, false);
+                if (backward.result != null && backward.conflict == null) {
+                    transformed.add(backward.result);
+                }
+                op = forward.result;
+            }
+            concurrent = transformed;
+            if (op != null) {
+                rebased.add(op.render());
+            }
+        }
+        return new Result(rebased, conflicts);
+    }
+
+    /** An operation of one of the patches, with the index it had there. */
+    private static final class Op {
+        final BsonDocument node;
+        final BsonPatch.DecodedOperation decoded;
+        final int index;
+
+        Op(BsonValue node, int index) {
+            this(node.asDocument(), BsonPatch.decode(node, CompatibilityFlags.defaults()), index);
+        }
+
+        Op(BsonDocument node, BsonPatch.DecodedOperation decoded, int index) {
+            this.node = node;
+            this.decoded = decoded;
+            this.index = index;
+        }
+
+        Operation operation() {
+            return decoded.operation;
+        }
+
+        JsonPointer path() {
+            return decoded.path;
+        }
+
+        JsonPointer from() {
+            return decoded.fromPath;
+        }
+
+        BsonValue value() {
+            return decoded.value;
+        }
+
+        /** Whether the path of this operation is a position in an array to insert at. */
+        boolean inserts() {
+            Operation operation = operation();
+            return (operation == Operation.ADD || operation == Operation.COPY || operation == Operation.MOVE) && isIndex(path());
+        }
+
+        /** Returns the location this operation replaces, removes or tests, or {@code null} if it inserts. */
+        JsonPointer target() {
+            return operation() == Operation.MOVE || operation() == Operation.COPY || operation() == Operation.ADD
+                    ? (inserts() ? null : path()) : path();
+        }
+
+        Op with(JsonPointer path, JsonPointer from) {
+            return new Op(node, new BsonPatch.DecodedOperation(operation(), path, from, value()), index);
+        }
+
+        BsonDocument render() {
+            BsonDocument rendered = new BsonDocument();
+            for (Map.Entry<String, BsonValue> entry : node.entrySet()) {
+                rendered.put(entry.getKey(), entry.getValue());
+            }
+            rendered.put(Constants.PATH, new BsonString(path().toString()));
+            if (from() != null) {
+                rendered.put(Constants.FROM, new BsonString(from().toString()));
+            }
+            return rendered;
+        }
+    }
+
+    private static boolean isIndex(JsonPointer path) {
+        return !path.isRoot() && path.last().isArrayIndex();
+    }
+
+    /** Whether {@code path} is {@code prefix} or below it. */
+    private static boolean startsWith(JsonPointer path, JsonPointer prefix) {
+        if (path.size() < prefix.size()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.size(); i++) {
+            if (!path.get(i).equals(prefix.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isBelow(JsonPointer path, JsonPointer ancestor) {
+        return path.size() > ancestor.size() && startsWith(path, ancestor);
+    }
+
+    private static JsonPointer withToken(JsonPointer path, int level, String token) {
+        List<JsonPointer.RefToken> tokens = new ArrayList<JsonPointer.RefToken>(path.decompose());
+        tokens.set(level, new JsonPointer.RefToken(token));
+        return new JsonPointer(tokens);
+    }
+
+    private static JsonPointer relocate(JsonPointer path, JsonPointer from, JsonPointer to) {
+        List<JsonPointer.RefToken> tokens = new ArrayList<JsonPointer.RefToken>(to.decompose());
+        List<JsonPointer.RefToken> rest = path.decompose();
+        tokens.addAll(rest.subList(from.size(), rest.size()));
+        return new JsonPointer(tokens);
+    }
+
+    /**
+     * Transforms an operation so it applies after a concurrent one. Exactly one of
+     * {@link #result} and {@link #conflict} is set, unless the operation is dropped because
+     * the concurrent one already carried it out.
+     */
+    private static final class Transform {
+        Op result;
+        String conflict;
+        private final boolean after;
+        private String lost;
+
+        /**
+         * @param after whether an insert at the same position as one of {@code other} goes
+         *  after it
+         */
+        Transform(Op op, Op other, boolean after) {
+            this.after = after;
+            if (other.operation() == Operation.TEST) {
+                result = op;
+                return;
+            }
+            if (!checkOverlap(op, other)) {
+                return;
+            }
+            JsonPointer path = op.inserts() ? mapPosition(op.path(), other) : mapElement(op.path(), other);
+            JsonPointer from = op.from() == null ? null : mapElement(op.from(), other);
+            if (path == null || (op.from() != null && from == null)) {
+                if (!(op.operation() == Operation.REMOVE && "removed concurrently".equals(lost))) {
+                    conflict = lost;
+                }
+                return;
+            }
+            result = op.with(path, from);
+        }
+
+        /**
+         * Checks the operations changing the same value, or one inside the value of the
+         * other. Returns whether {@code op} still has to be transformed.
+         */
+        private boolean checkOverlap(Op op, Op other) {
+            JsonPointer target = op.target();
+            JsonPointer otherTarget = other.target();
+            if (target != null && otherTarget != null && target.equals(otherTarget) && other.operation() != Operation.MOVE) {
+                if (other.operation() == Operation.REMOVE) {
+                    if (op.operation() != Operation.REMOVE) {
+                        conflict = "removed concurrently";
+                    }
+                    return false;
+                }
+                if (op.operation() == Operation.REMOVE) {
+                    conflict = "changed concurrently";
+                    return false;
+                }
+                boolean same = op.value() != null && other.value() != null && op.value().equals(other.value());
+                if (op.operation() == Operation.TEST) {
+                    if (!same) {
+                        conflict = "changed concurrently";
+                    } else {
+                        result = op;
+                    }
+                    return false;
+                }
+                if (!same) {
+                    conflict = "changed concurrently";
+                }
+                return false;
+            }
+            if (target != null && other.operation() == Operation.MOVE && !other.inserts() && target.equals(other.path())) {
+                conflict = "changed concurrently";
+                return false;
+            }
+            if (target != null && op.operation() != Operation.REMOVE) {
+                for (JsonPointer changed : changes(other)) {
+                    if (isBelow(changed, target)) {
+                        conflict = "changed inside concurrently";
+                        return false;
+                    }
+                }
+            }
+            if (op.operation() == Operation.MOVE && isIndex(op.from())) {
+                JsonPointer array = op.from().getParent();
+                for (JsonPointer changed : shifts(other)) {
+                    if (changed.getParent().equals(array)) {
+                        conflict = "array moved from changed concurrently";
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private static List<JsonPointer> changes(Op op) {
+            List<JsonPointer> changes = new ArrayList<JsonPointer>(2);
+            if (op.from() != null && op.operation() == Operation.MOVE) {
+                changes.add(op.from());
+            }
+            if (op.operation() != Operation.TEST) {
+                changes.add(op.path());
+            }
+            return changes;
+        }
+
+        /** Returns the array positions where {@code op} inserts or removes an element. */
+        private static List<JsonPointer> shifts(Op op) {
+            List<JsonPointer> shifts = new ArrayList<JsonPointer>(2);
+            JsonPointer removed = op.operation() == Operation.REMOVE ? op.path() : op.operation() == Operation.MOVE ? op.from() : null;
+            if (removed != null && isIndex(removed)) {
+                shifts.add(removed);
+            }
+            if (op.inserts()) {
+                shifts.add(op.path());
+            }
+            return shifts;
+        }
+
+        /** Maps the location of a value, or returns {@code null} if the value is lost. */
+        private JsonPointer mapElement(JsonPointer path, Op other) {
+            switch (other.operation()) {
+                case REMOVE:
+                    return delete(path, other.path());
+                case REPLACE:
+                    return overwrite(path, other.path());
+                case ADD:
+                case COPY:
+                    return other.inserts() ? insert(path, other.path()) : overwrite(path, other.path());
+                case MOVE:
+                    if (startsWith(path, other.from())) {
+                        return relocate(path, other.from(), other.path());
+                    }
+                    path = delete(path, other.from());
+                    return other.inserts() ? insert(path, other.path()) : overwrite(path, other.path());
+                default:
+                    return path;
+            }
+        }
+
+        private JsonPointer delete(JsonPointer path, JsonPointer removed) {
+            if (startsWith(path, removed)) {
+                lost = "removed concurrently";
+                return null;
+            }
+            return shift(path, removed, -1);
+        }
+
+        private JsonPointer overwrite(JsonPointer path, JsonPointer replaced) {
+            if (isBelow(path, replaced)) {
+                lost = "replaced concurrently";
+                return null;
+            }
+            return path;
+        }
+
+        private static JsonPointer insert(JsonPointer path, JsonPointer inserted) {
+            return shift(path, inserted, 1);
+        }
+
+        /** Shifts the index of {@code path} in the array of {@code changed} if it is at or past {@code changed}. */
+        private static JsonPointer shift(JsonPointer path, JsonPointer changed, int by) {
+            if (!isIndex(changed) || changed.last().getIndex() == JsonPointer.LAST_INDEX) {
+                return path;
+            }
+            JsonPointer array = changed.getParent();
+            if (!isBelow(path, array)) {
+                return path;
+            }
+            JsonPointer.RefToken token = path.get(array.size());
+            if (!token.isArrayIndex() || token.getIndex() == JsonPointer.LAST_INDEX) {
+                return path;
+            }
+            int index = token.getIndex();
+            int at = changed.last().getIndex();
+            if (by < 0 ? index > at : index >= at) {
+                return withToken(path, array.size(), Integer.toString(index + by));
+            }
+            return path;
+        }
+
+        /** Maps a position to insert at, or returns {@code null} if the array it is in is lost. */
+        private JsonPointer mapPosition(JsonPointer path, Op other) {
+            if (other.operation() == Operation.MOVE) {
+                if (startsWith(path.getParent(), other.from())) {
+                    return relocate(path, other.from(), other.path());
+                }
+                path = shiftPosition(path, other.from(), -1);
+                if (path == null) {
+                    return null;
+                }
+                return other.inserts() ? shiftPosition(path, other.path(), 1) : parentOverwritten(path, other.path());
+            }
+            switch (other.operation()) {
+                case REMOVE:
+                    return shiftPosition(path, other.path(), -1);
+                case ADD:
+                case COPY:
+                    return other.inserts() ? shiftPosition(path, other.path(), 1) : parentOverwritten(path, other.path());
+                case REPLACE:
+                    return parentOverwritten(path, other.path());
+                default:
+                    return path;
+            }
+        }
+
+        private JsonPointer parentOverwritten(JsonPointer path, JsonPointer replaced) {
+            JsonPointer parent = overwrite(path.getParent(), replaced);
+            if (parent == null || startsWith(path.getParent(), replaced)) {
+                lost = "replaced concurrently";
+                return null;
+            }
+            return path;
+        }
+
+        private JsonPointer shiftPosition(JsonPointer path, JsonPointer changed, int by) {
+            JsonPointer parent = path.getParent();
+            if (by < 0 && startsWith(parent, changed)) {
+                lost = "removed concurrently";
+                return null;
+            }
+            int index = path.last().getIndex();
+            if (isIndex(changed) && changed.getParent().equals(parent) && index != JsonPointer.LAST_INDEX
+                    && changed.last().getIndex() != JsonPointer.LAST_INDEX) {
+                int at = changed.last().getIndex();
+                if (index > at || (by > 0 && index == at && after)) {
+                    index += by;
+                }
+            }
+            JsonPointer shifted = shift(parent, changed, by);
+            return shifted.append(index == JsonPointer.LAST_INDEX ? "-" : Integer.toString(index));
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+
+/**
+ * The history of a single document, kept in a directory as a log of versions. Each version
+ * is stored as the patch from the previous one or, when the {@link SnapshotPolicy} asks for
+ * it, as a full snapshot. A version is rebuilt by applying the patches following the
+ * nearest snapshot before it. The log is a memory-mapped file, so appending a version does
+ * not wait for the disk; {@link #flush()} does.
+ * <p>
+ * A store is safe for use by multiple threads, but not by multiple processes.
+ *
+ * <pre>
+ * try (BsonVersionStore store = BsonVersionStore.open(directory)) {
+ *     long version = store.append(document);
+ *     BsonDocument previous = store.get(version - 1);
+ * }
+ * </pre>
+ *
+ * @since 0.5.0
+ */
+public final class BsonVersionStore implements Closeable {
+
+    private static final String LOG_FILE = "versions.log";
+    private static final String VERSION = "v";
+    private static final String SNAPSHOT = "s";
+    private static final String PATCH = "p";
+    private static final BsonDocumentCodec CODEC = new BsonDocumentCodec();
+
+    private final MappedLog log;
+    private final SnapshotPolicy policy;
+    private final NavigableSet<Long> snapshots = new TreeSet<Long>();
+    private BsonDocument latest;
+    private int versionsSinceSnapshot;
+    private long patchBytesSinceSnapshot;
+
+    private BsonVersionStore(MappedLog log, SnapshotPolicy policy) {
+        this.log = log;
+        this.policy = policy;
+    }
+
+    /**
+     * Opens the store in {@code directory}, creating it if needed, with the
+     * {@linkplain SnapshotPolicy#defaults() default} snapshot policy.
+     */
+    public static BsonVersionStore open(Path directory) throws IOException {
+        return open(directory, SnapshotPolicy.defaults());
+    }
+
+    /**
+     * Opens the store in {@code directory}, creating it if needed. Versions cut short by a
+     * crash are discarded. The policy only applies to versions appended from now on.
+     */
+    public static BsonVersionStore open(Path directory, SnapshotPolicy policy) throws IOException {
+        Files.createDirectories(directory);
+        MappedLog log = new MappedLog(directory.resolve(LOG_FILE));
+        BsonVersionStore store = new BsonVersionStore(log, policy);
+        try {
+            store.recover();
+        } catch (RuntimeException e) {
+            log.close();
+            throw e;
+        }
+        return store;
+    }
+
+    private void recover() {
+        for (int i = 0; i < log.size(); i++) {
+            RawBsonDocument record = record(i);
+            if (record.getInt64(VERSION).getValue() != i + 1) {
+                throw new IllegalStateException("Version log is corrupt at version " + (i + 1));
+            }
+            if (record.containsKey(SNAPSHOT)) {
+                snapshots.add((long) i + 1);
+                versionsSinceSnapshot = 0;
+                patchBytesSinceSnapshot = 0;
+            } else {
+                versionsSinceSnapshot++;
+                patchBytesSinceSnapshot += size(record);
+            }
+        }
+        if (log.size() > 0) {
+            latest = get(log.size());
+        }
+    }
+
+    private RawBsonDocument record(int index) {
+        return new RawBsonDocument(log.read(index));
+    }
+
+    private static int size(RawBsonDocument document) {
+        return document.getByteBuffer().remaining();
+    }
+
+    private static byte[] bytes(BsonDocument record) {
+        ByteBuffer buffer = new RawBsonDocument(record, CODEC).getByteBuffer().asNIO();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Appends {@code document} as the next version.
+     *
+     * @return the number of the new version; the first version is {@code 1}
+     */
+    public synchronized long append(BsonDocument document) throws IOException {
+        long version = log.size() + 1;
+        RawBsonDocument snapshot = new RawBsonDocument(document, CODEC);
+        byte[] record = null;
+        if (latest != null) {
+            BsonArray patch = BsonDiff.asBson(latest, document);
+            record = bytes(new BsonDocument(VERSION, new BsonInt64(version)).append(PATCH, patch));
+            if (policy.shouldSnapshot(versionsSinceSnapshot + 1, patchBytesSinceSnapshot + record.length, size(snapshot))) {
+                record = null;
+            }
+        }
+        if (record == null) {
+            log.append(bytes(new BsonDocument(VERSION, new BsonInt64(version)).append(SNAPSHOT, snapshot)));
+            snapshots.add(version);
+            versionsSinceSnapshot = 0;
+            patchBytesSinceSnapshot = 0;
+        } else {
+            log.append(record);
+            versionsSinceSnapshot++;
+            patchBytesSinceSnapshot += record.length;
+        }
+        latest = snapshot.decode(CODEC);
+        return version;
+    }
+
+    /** Returns the number of the latest version, or {@code 0} if there is none. */
+    public synchronized long getLatestVersion() {
+        return log.size();
+    }
+
+    /**
+     * Rebuilds a version of the document.
+     *
+     * @throws IllegalArgumentException if there is no such version
+     */
+    public synchronized BsonDocument get(long version) {
+        if (version < 1 || version > log.size()) {
+            throw new IllegalArgumentException("No version " + version + ", latest is " + log.size());
+        }
+        if (version == log.size() && latest != null) {
+            return latest.clone();
+        }
+        long base = snapshots.floor(version);
+        BsonDocument document = ((RawBsonDocument) record((int) base - 1).getDocument(SNAPSHOT)).decode(CODEC);
+        for (long v = base + 1; v <= version; v++) {
+            BsonPatch.applyInPlace(record((int) v - 1).getArray(PATCH), document);
+        }
+        return document;
+    }
+
+    /**
+     * Returns the versions stored as snapshots. Rebuilding a version replays the patches
+     * following the latest snapshot before it.
+     */
+    public synchronized List<Long> getSnapshotVersions() {
+        return new ArrayList<Long>(snapshots);
+    }
+
+    /** Writes the appended versions through to the disk. */
+    public synchronized void flush() {
+        log.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        log.close();
+    }
+}
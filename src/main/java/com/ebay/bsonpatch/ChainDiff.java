@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.bson.BsonArray;
+import org.bson.BsonValue;
+
+/**
+ * Computes the patches between consecutive versions of a value on the common fork/join
+ * pool. Every version is fingerprinted once, in parallel, and the fingerprints are then
+ * shared by the diffs on either side of it, which also run in parallel.
+ */
+final class ChainDiff {
+
+    private final List<BsonValue> versions;
+    private final EnumSet<DiffFlags> flags;
+    private final List<Map<BsonValue, BsonFingerprint>> fingerprints;
+    private final BsonArray[] patches;
+
+    private ChainDiff(List<BsonValue> versions, EnumSet<DiffFlags> flags) {
+        this.versions = versions;
+        this.flags = flags.clone();
+        this.fingerprints = new ArrayList<Map<BsonValue, BsonFingerprint>>(versions.size());
+        for (int i = 0; i < versions.size(); i++) {
+            fingerprints.add(null);
+        }
+        this.patches = new BsonArray[Math.max(versions.size() - 1, 0)];
+    }
+
+    static List<BsonArray> diff(List<? extends BsonValue> versions, EnumSet<DiffFlags> flags) {
+        ChainDiff chain = new ChainDiff(new ArrayList<BsonValue>(versions), flags);
+        if (chain.patches.length > 0) {
+            ForkJoinPool.commonPool().invoke(new Task(chain, false, 0, versions.size()));
+            ForkJoinPool.commonPool().invoke(new Task(chain, true, 0, chain.patches.length));
+        }
+        return Arrays.asList(chain.patches);
+    }
+
+    /** Fingerprints the versions, or diffs the pairs of versions, in a range. */
+    private static final class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ChainDiff chain;
+        private final boolean diffing;
+        private final int from;
+        private final int to;
+
+        Task(ChainDiff chain, boolean diffing, int from, int to) {
+            this.chain = chain;
+            this.diffing = diffing;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int split = (from + to) >>> 1;
+                invokeAll(new Task(chain, diffing, from, split), new Task(chain, diffing, split, to));
+            } else if (diffing) {
+                chain.patches[from] = BsonDiff.asBson(chain.versions.get(from), chain.versions.get(from + 1), chain.flags,
+                        chain.fingerprints.get(from), chain.fingerprints.get(from + 1));
+            } else {
+                chain.fingerprints.set(from, BsonFingerprint.ofAll(chain.versions.get(from)));
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import static com.ebay.bsonpatch.InPlaceApplyProcessor.cloneBsonValue;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.bson.BsonArray;
+import org.bson.BsonValue;
+
+/**
+ * The operations recorded by the views of a {@link TrackedBsonDocument}, shared by all of
+ * them. Each new operation is coalesced with the earlier ones it depends on: a value added
+ * or replaced and then changed again is recorded once with its final content, and changes
+ * inside a value that is later replaced or removed are dropped.
+ */
+final class ChangeLog {
+
+    /** How many earlier operations are looked at for coalescing a new one. */
+    private static final int WINDOW = 64;
+
+    private static final EnumSet<DiffFlags> FLAGS = EnumSet.of(DiffFlags.OMIT_VALUE_ON_REMOVE);
+
+    private static final class Change {
+        final Operation operation;
+        final JsonPointer path;
+        final BsonValue value;
+        // an add or remove of an array element, which shifts the elements after it
+        final boolean shifts;
+
+        Change(Operation operation, JsonPointer path, BsonValue value, boolean shifts) {
+            this.operation = operation;
+            this.path = path;
+            this.value = value;
+            this.shifts = shifts;
+        }
+    }
+
+    private final List<Change> changes = new ArrayList<Change>();
+
+    /**
+     * Records an operation that has already been carried out on the tracked document.
+     * {@code value} is copied, so later changes to the document do not alter the record.
+     */
+    void record(Operation operation, JsonPointer path, BsonValue value, boolean shifts) {
+        Change change = new Change(operation, path, value == null ? null : cloneBsonValue(value), shifts);
+        int last = Math.max(0, changes.size() - WINDOW);
+        for (int i = changes.size() - 1; i >= last; i--) {
+            Change earlier = changes.get(i);
+            if (earlier.path.equals(path)) {
+                if (merge(i, earlier, change)) {
+                    return;
+                }
+                break;
+            }
+            if (isAncestor(earlier.path, path) && earlier.operation != Operation.REMOVE) {
+                if (fold(i, earlier, change)) {
+                    return;
+                }
+                break;
+            }
+            if (isAncestor(path, earlier.path) && operation != Operation.ADD) {
+                // the earlier change is inside the value now replaced or removed
+                changes.remove(i);
+                continue;
+            }
+            if (dependsOn(earlier, change) || dependsOn(change, earlier)) {
+                break;
+            }
+        }
+        changes.add(change);
+    }
+
+    private boolean merge(int index, Change earlier, Change change) {
+        switch (earlier.operation) {
+            case ADD:
+                if (change.operation == Operation.REPLACE) {
+                    changes.set(index, new Change(Operation.ADD, earlier.path, change.value, earlier.shifts));
+                    return true;
+                }
+                if (change.operation == Operation.REMOVE) {
+                    changes.remove(index);
+                    return true;
+                }
+                return false;
+            case REPLACE:
+                if (change.operation == Operation.REPLACE || change.operation == Operation.REMOVE) {
+                    changes.set(index, change);
+                    return true;
+                }
+                return false;
+            case REMOVE:
+                if (change.operation == Operation.ADD && earlier.shifts == change.shifts) {
+                    changes.set(index, new Change(Operation.REPLACE, earlier.path, change.value, false));
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /** Applies {@code change} to the value of the earlier add or replace of one of its ancestors. */
+    private boolean fold(int index, Change earlier, Change change) {
+        if (!earlier.value.isDocument() && !earlier.value.isArray()) {
+            return false;
+        }
+        List<JsonPointer.RefToken> tokens = change.path.decompose();
+        JsonPointer relative = new JsonPointer(tokens.subList(earlier.path.size(), tokens.size()));
+        InPlaceApplyProcessor processor = new InPlaceApplyProcessor(earlier.value);
+        try {
+            switch (change.operation) {
+                case ADD:
+                    processor.add(relative, change.value);
+                    break;
+                case REPLACE:
+                    processor.replace(relative, change.value);
+                    break;
+                case REMOVE:
+                    processor.remove(relative);
+                    break;
+                default:
+                    return false;
+            }
+        } catch (JsonPointerEvaluationException e) {
+            throw new IllegalStateException("Recorded changes do not match the tracked document", e);
+        }
+        return true;
+    }
+
+    /** Whether moving {@code other} in front of {@code change} could change its outcome. */
+    private static boolean dependsOn(Change change, Change other) {
+        return change.shifts && isAncestor(change.path.getParent(), other.path);
+    }
+
+    private static boolean isAncestor(JsonPointer ancestor, JsonPointer path) {
+        if (ancestor.size() >= path.size()) {
+            return false;
+        }
+        for (int i = 0; i < ancestor.size(); i++) {
+            if (!ancestor.get(i).equals(path.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    void clear() {
+        changes.clear();
+    }
+
+    /** Renders the recorded operations, with copies of their values. */
+    BsonArray toPatch() {
+        BsonArray patch = new BsonArray();
+        for (Change change : changes) {
+            BsonValue value = change.value == null ? null : cloneBsonValue(change.value);
+            patch.add(BsonDiff.getBsonNode(new Diff(change.operation, change.path, value), FLAGS));
+        }
+        return patch;
+    }
+
+    /** Returns the path of a view, or {@code null} if it has been detached from its document. */
+    static JsonPointer pathOf(BsonValue parent, String field, BsonValue view) {
+        if (parent == null) {
+            return JsonPointer.ROOT;
+        }
+        if (parent instanceof TrackedBsonDocument) {
+            JsonPointer path = ((TrackedBsonDocument) parent).path();
+            return path == null ? null : path.append(field);
+        }
+        TrackedBsonArray array = (TrackedBsonArray) parent;
+        JsonPointer path = array.path();
+        return path == null ? null : path.append(array.indexOfView(view));
+    }
+
+    /** Returns a value that can be stored in a tracked document, copying views of other values. */
+    static BsonValue unwrap(BsonValue value) {
+        if (value == null) {
+            throw new IllegalArgumentException("The value can not be null");
+        }
+        return value instanceof TrackedBsonDocument || value instanceof TrackedBsonArray ? cloneBsonValue(value) : value;
+    }
+
+    /** Stops a view of a value no longer part of its document from recording changes. */
+    static void detach(BsonValue view) {
+        if (view instanceof TrackedBsonDocument) {
+            ((TrackedBsonDocument) view).detached = true;
+        } else if (view instanceof TrackedBsonArray) {
+            ((TrackedBsonArray) view).detached = true;
+        }
+    }
+}
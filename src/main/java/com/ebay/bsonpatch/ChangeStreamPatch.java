@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonNull;
+import org.bson.BsonValue;
+
+/**
+ * Converts the {@code updateDescription} of a MongoDB change stream update event into an
+ * RFC 6902 patch, so that the change can be applied or passed on without fetching the full
+ * document and diffing it.
+ * <p>
+ * An update description holds the net effect of an update as dotted paths: the arrays
+ * truncated to a new size, the fields removed and the fields set to a new value, in that
+ * order of application. Paths are split on dots unless the event carries
+ * {@code disambiguatedPaths} for them (MongoDB 6.1 and later, with
+ * {@code showExpandedEvents}), which tell field names containing dots and numeric field
+ * names apart from array indexes.
+ * <p>
+ * Dotted paths do not say whether a numeric component is an array index or a field name, nor
+ * whether an indexed element was replaced or appended. Given the document the update was
+ * applied to, e.g. the copy the patch is meant for, {@link #fromUpdateDescription(BsonDocument,
+ * BsonDocument)} resolves both exactly, walking only the paths changed. Without it, numeric
+ * components are taken for array indexes of existing elements, which fails to apply rather
+ * than corrupting the document if an element was in fact appended, and truncated arrays
+ * cannot be converted.
+ *
+ * @since 0.5.0
+ */
+public final class ChangeStreamPatch {
+
+    private static final String UPDATED_FIELDS = "updatedFields";
+    private static final String REMOVED_FIELDS = "removedFields";
+    private static final String TRUNCATED_ARRAYS = "truncatedArrays";
+    private static final String DISAMBIGUATED_PATHS = "disambiguatedPaths";
+    private static final String FIELD = "field";
+    private static final String NEW_SIZE = "newSize";
+
+    private static final EnumSet<DiffFlags> FLAGS = DiffFlags.defaults();
+
+    private ChangeStreamPatch() {}
+
+    /**
+     * Converts an update description on its own, taking numeric path components for indexes
+     * of existing array elements.
+     *
+     * @throws IllegalArgumentException if the description truncates arrays, which needs the
+     *  size the arrays had
+     */
+    public static BsonArray fromUpdateDescription(BsonDocument updateDescription) {
+        return new Conversion(updateDescription, null).convert();
+    }
+
+    /**
+     * Converts an update description, resolving its paths against {@code document}, the
+     * document as it was before the update. The document is not modified.
+     *
+     * @throws IllegalArgumentException if a path does not fit {@code document}, e.g. it
+     *  indexes a document or goes through a scalar value
+     */
+    public static BsonArray fromUpdateDescription(BsonDocument updateDescription, BsonDocument document) {
+        return new Conversion(updateDescription, Objects.requireNonNull(document, "document")).convert();
+    }
+
+    private static final class Conversion {
+        private final BsonDocument description;
+        private final BsonDocument disambiguatedPaths;
+        private final BsonDocument document;
+        private final BsonArray patch = new BsonArray();
+        // sizes of the arrays changed so far, as the patch leaves them
+        private final Map<JsonPointer, Integer> sizes = new HashMap<JsonPointer, Integer>();
+        // documents the patch creates for paths through missing fields
+        private final Set<JsonPointer> created = new HashSet<JsonPointer>();
+
+        Conversion(BsonDocument description, BsonDocument document) {
+            this.description = description;
+            this.disambiguatedPaths = description.getDocument(DISAMBIGUATED_PATHS, new BsonDocument());
+            this.document = document;
+        }
+
+        BsonArray convert() {
+            for (BsonValue truncated : description.getArray(TRUNCATED_ARRAYS, new BsonArray())) {
+                truncate(truncated.asDocument().getString(FIELD).getValue(), truncated.asDocument().getNumber(NEW_SIZE).intValue());
+            }
+            for (BsonValue removed : description.getArray(REMOVED_FIELDS, new BsonArray())) {
+                remove(removed.asString().getValue());
+            }
+            for (Map.Entry<String, BsonValue> updated : description.getDocument(UPDATED_FIELDS, new BsonDocument()).entrySet()) {
+                set(updated.getKey(), updated.getValue());
+            }
+            return patch;
+        }
+
+        /** Splits a dotted path into field names (strings) and, where known, array indexes (integers). */
+        private List<Object> components(String path) {
+            BsonValue disambiguated = disambiguatedPaths.get(path);
+            if (disambiguated == null) {
+                return Arrays.<Object>asList((Object[]) path.split("\\.", -1));
+            }
+            List<Object> components = new ArrayList<Object>();
+            for (BsonValue component : disambiguated.asArray()) {
+                components.add(component.isString() ? component.asString().getValue() : (Object) component.asNumber().intValue());
+            }
+            return components;
+        }
+
+        private void truncate(String path, int newSize) {
+            if (document == null) {
+                throw new IllegalArgumentException("Truncating " + path + " needs the document the update was applied to");
+            }
+            JsonPointer pointer = JsonPointer.ROOT;
+            BsonValue current = document;
+            for (Object component : components(path)) {
+                BsonValue parent = current;
+                current = child(pointer, parent, component, path);
+                pointer = append(pointer, parent, component);
+                if (current == null) {
+                    throw new IllegalArgumentException("Truncated array " + path + " is missing");
+                }
+            }
+            if (!current.isArray()) {
+                throw new IllegalArgumentException("Truncated field " + path + " is not an array");
+            }
+            for (int i = current.asArray().size() - 1; i >= newSize; i--) {
+                emit(new Diff(Operation.REMOVE, pointer.append(i), current.asArray().get(i)));
+            }
+            sizes.put(pointer, Math.min(newSize, current.asArray().size()));
+        }
+
+        private void remove(String path) {
+            List<Object> components = components(path);
+            if (document == null) {
+                emit(new Diff(Operation.REMOVE, pointer(components), BsonNull.VALUE));
+                return;
+            }
+            JsonPointer pointer = JsonPointer.ROOT;
+            BsonValue current = document;
+            for (Object component : components) {
+                BsonValue parent = current;
+                current = child(pointer, parent, component, path);
+                pointer = append(pointer, parent, component);
+                if (current == null) {
+                    // nothing to remove
+                    return;
+                }
+            }
+            emit(new Diff(Operation.REMOVE, pointer, current));
+        }
+
+        private void set(String path, BsonValue value) {
+            List<Object> components = components(path);
+            if (document == null) {
+                // disambiguated paths hold field names as strings and indexes as integers
+                Object last = components.get(components.size() - 1);
+                boolean index = last instanceof Integer || !disambiguatedPaths.containsKey(path) && isIndex((String) last);
+                Operation operation = index ? Operation.REPLACE : Operation.ADD;
+                emit(new Diff(operation, pointer(components), value));
+                return;
+            }
+            JsonPointer pointer = JsonPointer.ROOT;
+            BsonValue current = document;
+            for (int i = 0; i < components.size(); i++) {
+                Object component = components.get(i);
+                boolean last = i == components.size() - 1;
+                BsonValue parent = current;
+                JsonPointer parentPointer = pointer;
+                current = child(parentPointer, parent, component, path);
+                pointer = append(pointer, parent, component);
+                if (current != null) {
+                    if (last) {
+                        emit(new Diff(Operation.REPLACE, pointer, value));
+                    }
+                    continue;
+                }
+                if (parent != null && parent.isArray()) {
+                    // MongoDB pads the array with nulls up to the index set
+                    int index = pointer.last().getIndex();
+                    for (int pad = size(parentPointer, parent); pad < index; pad++) {
+                        emit(new Diff(Operation.ADD, parentPointer.append(pad), BsonNull.VALUE));
+                    }
+                    sizes.put(parentPointer, index + 1);
+                }
+                if (last) {
+                    emit(new Diff(Operation.ADD, pointer, value));
+                } else if (!created.contains(pointer)) {
+                    emit(new Diff(Operation.ADD, pointer, new BsonDocument()));
+                    created.add(pointer);
+                }
+            }
+        }
+
+        private int size(JsonPointer pointer, BsonValue array) {
+            Integer size = sizes.get(pointer);
+            return size != null ? size : array.asArray().size();
+        }
+
+        /** Appends a component to the pointer of {@code parent}, which is null inside documents the patch creates. */
+        private static JsonPointer append(JsonPointer pointer, BsonValue parent, Object component) {
+            if (parent != null && parent.isArray()) {
+                return pointer.append(component instanceof Integer ? (Integer) component : Integer.parseInt((String) component));
+            }
+            return pointer.append(component.toString());
+        }
+
+        /**
+         * Returns the child of {@code parent}, found at {@code pointer}, named by {@code component},
+         * or null if it has none or {@code parent} is itself missing.
+         */
+        private BsonValue child(JsonPointer pointer, BsonValue parent, Object component, String path) {
+            if (parent == null) {
+                return null;
+            }
+            if (parent.isArray()) {
+                if (!(component instanceof Integer) && !isIndex((String) component)) {
+                    throw new IllegalArgumentException("Path " + path + " has field " + component + " in an array");
+                }
+                int index = component instanceof Integer ? (Integer) component : Integer.parseInt((String) component);
+                if (index >= size(pointer, parent)) {
+                    return null;
+                }
+                // elements past the end of the document's array were added by the patch, as nulls or values set
+                return index < parent.asArray().size() ? parent.asArray().get(index) : BsonNull.VALUE;
+            }
+            if (!parent.isDocument()) {
+                throw new IllegalArgumentException("Path " + path + " goes through a scalar value at " + pointer);
+            }
+            if (component instanceof Integer) {
+                throw new IllegalArgumentException("Path " + path + " indexes a document with " + component);
+            }
+            return parent.asDocument().get((String) component);
+        }
+
+        private JsonPointer pointer(List<Object> components) {
+            JsonPointer pointer = JsonPointer.ROOT;
+            for (Object component : components) {
+                pointer = component instanceof Integer ? pointer.append((Integer) component) : pointer.append((String) component);
+            }
+            return pointer;
+        }
+
+        private void emit(Diff diff) {
+            patch.add(BsonDiff.getBsonNode(diff, FLAGS));
+        }
+    }
+
+    private static boolean isIndex(String component) {
+        if (component.isEmpty() || component.length() > 9) {
+            return false;
+        }
+        for (int i = 0; i < component.length(); i++) {
+            if (component.charAt(i) < '0' || component.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return component.length() == 1 || component.charAt(0) != '0';
+    }
+}
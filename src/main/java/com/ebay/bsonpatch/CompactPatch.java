@@ -0,0 +1,373 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ebay.bsonpatch;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonArray;
+import org.bson.BsonBinary;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+
+/**
+ * A compact encoding of RFC 6902 patches for storage and replication. Instead of repeating
+ * operation names and full path strings on every operation, the encoded document holds
+ *
+ * <ul>
+ * <li>{@code "v"}: the format version, currently {@code 1}</li>
+ * <li>{@code "k"}: the distinct field names used by the paths</li>
+ * <li>{@code "n"}: a tree of path nodes, as binary data holding a {@code parent, token} pair of
+ *  unsigned LEB128 varints per node. The {@code i}-th node is referenced as {@code i + 1}, and
+ *  {@code 0} stands for the root. Tokens are zigzag encoded: a token {@code t >= 0} is field
+ *  {@code k[t]}, a token {@code t < 0} is array index {@code -(t + 1)}</li>
+ * <li>{@code "o"}: the operations, flattened into one array. Each operation starts with an int32
+ *  header holding the op code in bits 0-2 and its path node from bit 5 on. If bit 3 is set,
+ *  a value follows for add, remove, replace and test, or a {@code from} path node for move and
+ *  copy. A move or copy without it takes the path of the preceding operation as {@code from}.
+ *  If bit 4 is set, the original value of a replace, as {@link BsonDiff} can emit it, follows
+ *  as well</li>
+ * </ul>
+ *
+ * Op codes are {@code 0} add, {@code 1} remove, {@code 2} replace, {@code 3} move,
+ * {@code 4} copy and {@code 5} test. For a patch of many operations on the same few fields,
+ * such as a wide array edit, this is a fraction of the size of the RFC 6902 form.
+ *
+ * @since 0.5.0
+ */
+public final class CompactPatch {
+
+    private static final String VERSION = "v";
+    private static final String KEYS = "k";
+    private static final String NODES = "n";
+    private static final String OPERATIONS = "o";
+    private static final int CURRENT_VERSION = 1;
+
+    private static final int OP_CODE_MASK = 0x7;
+    private static final int OPERAND = 1 << 3;
+    private static final int FROM_VALUE = 1 << 4;
+    private static final int NODE_SHIFT = 5;
+    private static final int MAX_NODE = Integer.MAX_VALUE >>> NODE_SHIFT;
+
+    private static final Operation[] OP_CODES = {
+        Operation.ADD, Operation.REMOVE, Operation.REPLACE, Operation.MOVE, Operation.COPY, Operation.TEST
+    };
+
+    private CompactPatch() {}
+
+    /**
+     * Encodes an RFC 6902 patch.
+     *
+     * @throws InvalidBsonPatchException if the patch is malformed
+     */
+    @SuppressWarnings("fallthrough")
+    public static BsonDocument encode(BsonArray patch) {
+        Encoder encoder = new Encoder();
+        BsonArray operations = new BsonArray();
+        int previousPath = -1;
+        for (BsonValue bsonNode : patch) {
+            if (!bsonNode.isDocument()) throw new InvalidBsonPatchException("Invalid BSON Patch payload (not an object)");
+            BsonDocument node = bsonNode.asDocument();
+            Operation operation = Operation.fromRfcName(getString(node, Constants.OP));
+            int path = encoder.node(JsonPointer.parse(getString(node, Constants.PATH)));
+            if (path > MAX_NODE) throw new IllegalArgumentException("Patch has too many distinct paths for the compact encoding");
+
+            int header = (path << NODE_SHIFT) | opCode(operation);
+            BsonValue operand = null;
+            BsonValue fromValue = null;
+            switch (operation) {
+                case MOVE:
+                case COPY:
+                    int from = encoder.node(JsonPointer.parse(getString(node, Constants.FROM)));
+                    if (from != previousPath) operand = new BsonInt32(from);
+                    break;
+                case REPLACE:
+                    fromValue = node.get(Constants.FROM_VALUE);
+                    // fall through intentional
+                default:
+                    // a missing value is kept missing, for MISSING_VALUES_AS_NULLS to handle on apply
+                    operand = node.get(Constants.VALUE);
+            }
+            if (operand != null) header |= OPERAND;
+            if (fromValue != null) header |= FROM_VALUE;
+            operations.add(new BsonInt32(header));
+            if (operand != null) operations.add(operand);
+            if (fromValue != null) operations.add(fromValue);
+            previousPath = path;
+        }
+
+        BsonDocument compact = new BsonDocument(VERSION, new BsonInt32(CURRENT_VERSION));
+        compact.put(KEYS, encoder.keys);
+        compact.put(NODES, new BsonBinary(encoder.nodes.toByteArray()));
+        compact.put(OPERATIONS, operations);
+        return compact;
+    }
+
+    /**
+     * Decodes a compact patch back into the equivalent RFC 6902 patch.
+     *
+     * @throws InvalidBsonPatchException if {@code compact} is not a valid compact patch
+     */
+    public static BsonArray decode(BsonDocument compact) {
+        final BsonArray patch = new BsonArray();
+        process(compact, new Visitor() {
+            @Override
+            public void visit(Operation operation, JsonPointer path, JsonPointer fromPath, BsonValue value, BsonValue fromValue) {
+                BsonDocument node = new BsonDocument(Constants.OP, new BsonString(operation.rfcName()));
+                if (fromPath != null) node.put(Constants.FROM, new BsonString(fromPath.toString()));
+                node.put(Constants.PATH, new BsonString(path.toString()));
+                if (fromValue != null) node.put(Constants.FROM_VALUE, fromValue);
+                if (value != null) node.put(Constants.VALUE, value);
+                patch.add(node);
+            }
+        });
+        return patch;
+    }
+
+    /**
+     * Applies a compact patch to a copy of {@code source}, without decoding it first.
+     *
+     * @see BsonPatch#apply(BsonArray, BsonValue)
+     */
+    public static BsonValue apply(BsonDocument compact, BsonValue source) {
+        return apply(compact, source, CompatibilityFlags.defaults());
+    }
+
+    /**
+     * Applies a compact patch to a copy of {@code source}, without decoding it first.
+     *
+     * @see BsonPatch#apply(BsonArray, BsonValue, EnumSet)
+     */
+    public static BsonValue apply(BsonDocument compact, BsonValue source, EnumSet<CompatibilityFlags> flags) {
+        CopyingApplyProcessor processor = new CopyingApplyProcessor(source, flags);
+        process(compact, new ProcessorVisitor(processor, flags));
+        return processor.result();
+    }
+
+    /**
+     * Applies a compact patch to {@code source} in place, without decoding it first.
+     *
+     * @see BsonPatch#applyInPlace(BsonArray, BsonValue)
+     */
+    public static void applyInPlace(BsonDocument compact, BsonValue source) {
+        applyInPlace(compact, source, CompatibilityFlags.defaults());
+    }
+
+    /**
+     * Applies a compact patch to {@code source} in place, without decoding it first.
+     *
+     * @see BsonPatch#applyInPlace(BsonArray, BsonValue, EnumSet)
+     */
+    public static void applyInPlace(BsonDocument compact, BsonValue source, EnumSet<CompatibilityFlags> flags) {
+        process(compact, new ProcessorVisitor(new InPlaceApplyProcessor(source, flags), flags));
+    }
+
+    private interface Visitor {
+        void visit(Operation operation, JsonPointer path, JsonPointer fromPath, BsonValue value, BsonValue fromValue);
+    }
+
+    private static final class ProcessorVisitor implements Visitor {
+        private final BsonPatchProcessor processor;
+        private final EnumSet<CompatibilityFlags> flags;
+        private final BsonPatchListener listener = BsonPatchListeners.get();
+
+        ProcessorVisitor(BsonPatchProcessor processor, EnumSet<CompatibilityFlags> flags) {
+            this.processor = processor;
+            this.flags = flags;
+        }
+
+        @Override
+        public void visit(Operation operation, JsonPointer path, JsonPointer fromPath, BsonValue value, BsonValue fromValue) {
+            if (value == null && (operation == Operation.ADD || operation == Operation.REPLACE || operation == Operation.TEST)) {
+                if (!flags.contains(CompatibilityFlags.MISSING_VALUES_AS_NULLS))
+                    throw new InvalidBsonPatchException("Invalid BSON Patch payload (missing '" + Constants.VALUE + "' field)");
+                value = BsonNull.VALUE;
+            }
+            BsonPatch.perform(processor, operation, path, fromPath, value, listener);
+        }
+    }
+
+    private static void process(BsonDocument compact, Visitor visitor) {
+        if (!compact.isInt32(VERSION) || compact.getInt32(VERSION).getValue() != CURRENT_VERSION)
+            throw new InvalidBsonPatchException("Invalid compact patch (unsupported version)");
+        if (!compact.isArray(KEYS) || !compact.isBinary(NODES) || !compact.isArray(OPERATIONS))
+            throw new InvalidBsonPatchException("Invalid compact patch (missing '" + KEYS + "', '" + NODES + "' or '" + OPERATIONS + "' field)");
+        List<JsonPointer> pointers = decodeNodes(compact.getArray(KEYS), compact.getBinary(NODES).getData());
+        BsonArray operations = compact.getArray(OPERATIONS);
+
+        JsonPointer previousPath = null;
+        int i = 0;
+        while (i < operations.size()) {
+            BsonValue headerValue = operations.get(i++);
+            if (!headerValue.isInt32()) throw new InvalidBsonPatchException("Invalid compact patch (expected an operation header)");
+            int header = headerValue.asInt32().getValue();
+            int opCode = header & OP_CODE_MASK;
+            if (opCode >= OP_CODES.length)
+                throw new InvalidBsonPatchException("Invalid compact patch (unknown op code " + opCode + ")");
+            Operation operation = OP_CODES[opCode];
+            JsonPointer path = pointer(pointers, header >>> NODE_SHIFT);
+            JsonPointer fromPath = null;
+            BsonValue value = null;
+            BsonValue fromValue = null;
+            switch (operation) {
+                case MOVE:
+                case COPY:
+                    if ((header & OPERAND) != 0) {
+                        BsonValue from = operand(operations, i++);
+                        if (!from.isInt32()) throw new InvalidBsonPatchException("Invalid compact patch (expected a from node)");
+                        fromPath = pointer(pointers, from.asInt32().getValue());
+                    } else {
+                        fromPath = previousPath;
+                    }
+                    if (fromPath == null)
+                        throw new InvalidBsonPatchException("Invalid compact patch (missing from of " + operation.rfcName() + ")");
+                    break;
+                default:
+                    if ((header & OPERAND) != 0) value = operand(operations, i++);
+                    if ((header & FROM_VALUE) != 0) fromValue = operand(operations, i++);
+            }
+            visitor.visit(operation, path, fromPath, value, fromValue);
+            previousPath = path;
+        }
+    }
+
+    private static List<JsonPointer> decodeNodes(BsonArray keys, byte[] data) {
+        // nodes only refer to nodes before them, so every pointer is built from an existing one
+        List<JsonPointer> pointers = new ArrayList<JsonPointer>();
+        pointers.add(JsonPointer.ROOT);
+        int[] pos = {0};
+        while (pos[0] < data.length) {
+            int parent = readVarint(data, pos);
+            int zigzag = readVarint(data, pos);
+            int token = (zigzag >>> 1) ^ -(zigzag & 1);
+            if (parent >= pointers.size())
+                throw new InvalidBsonPatchException("Invalid compact patch (bad parent of node " + pointers.size() + ")");
+            if (token < 0) {
+                pointers.add(pointers.get(parent).append(-(token + 1)));
+            } else if (token < keys.size() && keys.get(token).isString()) {
+                pointers.add(pointers.get(parent).append(keys.get(token).asString().getValue()));
+            } else {
+                throw new InvalidBsonPatchException("Invalid compact patch (bad token of node " + pointers.size() + ")");
+            }
+        }
+        return pointers;
+    }
+
+    private static int readVarint(byte[] data, int[] pos) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (pos[0] >= data.length) break;
+            byte b = data[pos[0]++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new InvalidBsonPatchException("Invalid compact patch (truncated node data)");
+    }
+
+    private static final class Encoder {
+        private final BsonArray keys = new BsonArray();
+        private final ByteArrayOutputStream nodes = new ByteArrayOutputStream();
+        private int nodeCount;
+        private final Map<String, Integer> keyIds = new HashMap<String, Integer>();
+        // child node ids by parent node id and encoded token
+        private final Map<Long, Integer> nodeIds = new HashMap<Long, Integer>();
+
+        int node(JsonPointer pointer) {
+            int id = 0;
+            for (JsonPointer.RefToken token : pointer.decompose()) {
+                int encodedToken = token(token.getField());
+                Long key = ((long) id << 32) | (encodedToken & 0xFFFFFFFFL);
+                Integer child = nodeIds.get(key);
+                if (child == null) {
+                    writeVarint(id);
+                    writeVarint((encodedToken << 1) ^ (encodedToken >> 31));
+                    child = ++nodeCount;
+                    nodeIds.put(key, child);
+                }
+                id = child;
+            }
+            return id;
+        }
+
+        private int token(String field) {
+            int index = arrayIndex(field);
+            if (index >= 0) {
+                return -(index + 1);
+            }
+            Integer id = keyIds.get(field);
+            if (id == null) {
+                id = keys.size();
+                keys.add(new BsonString(field));
+                keyIds.put(field, id);
+            }
+            return id;
+        }
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                nodes.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            nodes.write(value);
+        }
+
+        // only canonical indices are encoded as numbers, so that decoding restores the token exactly
+        private static int arrayIndex(String field) {
+            int length = field.length();
+            if (length == 0 || length > 9 || (length > 1 && field.charAt(0) == '0')) return -1;
+            for (int i = 0; i < length; i++) {
+                char c = field.charAt(i);
+                if (c < '0' || c > '9') return -1;
+            }
+            return Integer.parseInt(field);
+        }
+    }
+
+    private static int opCode(Operation operation) {
+        for (int i = 0; i < OP_CODES.length; i++) {
+            if (OP_CODES[i] == operation) return i;
+        }
+        throw new IllegalStateException("No op code for " + operation);
+    }
+
+    private static JsonPointer pointer(List<JsonPointer> pointers, int node) {
+        if (node < 0 || node >= pointers.size()) throw new InvalidBsonPatchException("Invalid compact patch (unknown node " + node + ")");
+        return pointers.get(node);
+    }
+
+    private static BsonValue operand(BsonArray operations, int index) {
+        if (index >= operations.size()) throw new InvalidBsonPatchException("Invalid compact patch (truncated operation)");
+        return operations.get(index);
+    }
+
+    private static String getString(BsonDocument node, String attr) {
+        BsonValue child = node.get(attr);
+        if (child == null || !child.isString())
+            throw new InvalidBsonPatchException("Invalid BSON Patch payload (missing '" + attr + "' field)");
+        return child.asString().getValue();
+    }
+}
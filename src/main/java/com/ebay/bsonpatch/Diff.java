@@ -36,10 +36,14 @@ class Diff {
     }
 
     Diff(Operation operation, JsonPointer fromPath, JsonPointer toPath) {
+        this(operation, fromPath, toPath, null);
+    }
+
+    Diff(Operation operation, JsonPointer fromPath, JsonPointer toPath, BsonValue value) {
         this.operation = operation;
         this.path = fromPath;
         this.toPath = toPath;
-        this.value = null;
+        this.value = value; // the moved or copied value, if known
         this.srcValue = null;
     }
     
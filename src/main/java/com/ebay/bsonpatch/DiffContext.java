@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonArray;
+import org.bson.BsonValue;
+
+/**
+ * Computes patches like {@link BsonDiff#asBson(BsonValue, BsonValue)}, reusing the working
+ * memory of a diff for the next one: the operation list, the table of unchanged values
+ * used to find copies, and the buffers used to compare arrays, which grow to fit the
+ * largest values diffed. Once these have grown, diffing small documents allocates little
+ * besides the patch itself. A context must not be used by more than one thread at a time;
+ * keep one per thread, e.g. in a {@link ThreadLocal}.
+ * <p>
+ * Arrays are compared with a longest common subsequence computed after skipping their
+ * common first and last elements: pair by pair for short arrays and, for longer ones,
+ * 64 pairs at a time over elements interned to numbers. Where two arrays have several
+ * longest common subsequences, the patch may differ from the one {@code asBson} returns,
+ * but applying either gives the same result.
+ *
+ * @since 0.5.0
+ */
+public final class DiffContext {
+
+    /** Arrays needing larger bit-parallel LCS tables are compared by {@link BsonDiff} itself, in linear space. */
+    static final int MAX_LCS_WORDS = 1 << 20;
+
+    final List<Diff> diffs = new ArrayList<Diff>();
+    final Map<BsonValue, JsonPointer> unchangedValues = new HashMap<BsonValue, JsonPointer>();
+    final Map<BsonValue, Integer> symbols = new HashMap<BsonValue, Integer>();
+    private int[] table = new int[64];
+    private long[] masks = new long[16];
+    private long[] vectors = new long[64];
+    // the common subsequence of the arrays being compared at each depth of nesting
+    private final List<List<BsonValue>> subsequences = new ArrayList<List<BsonValue>>();
+
+    /** Computes the patch from {@code source} to {@code target}. */
+    public BsonArray asBson(BsonValue source, BsonValue target) {
+        return asBson(source, target, DiffFlags.defaults());
+    }
+
+    /** Computes the patch from {@code source} to {@code target}. */
+    public BsonArray asBson(BsonValue source, BsonValue target, EnumSet<DiffFlags> flags) {
+        try {
+            return BsonDiff.asBson(source, target, flags, this);
+        } finally {
+            // let go of the values diffed
+            diffs.clear();
+            unchangedValues.clear();
+        }
+    }
+
+    /** Returns a table of at least {@code cells} cells, holding anything. */
+    int[] table(int cells) {
+        if (table.length < cells) {
+            table = new int[Math.max(cells, table.length * 2)];
+        }
+        return table;
+    }
+
+    /** Returns a buffer of at least {@code words} words for the symbol masks of the bit-parallel LCS. */
+    long[] masks(int words) {
+        if (masks.length < words) {
+            masks = new long[Math.max(words, Math.min(masks.length * 2, MAX_LCS_WORDS))];
+        }
+        return masks;
+    }
+
+    /** Returns a buffer of at least {@code words} words for the rows of the bit-parallel LCS. */
+    long[] vectors(int words) {
+        if (vectors.length < words) {
+            vectors = new long[Math.max(words, Math.min(vectors.length * 2, MAX_LCS_WORDS))];
+        }
+        return vectors;
+    }
+
+    /** Returns the empty list to hold the common subsequence of arrays nested {@code depth} deep. */
+    List<BsonValue> subsequence(int depth) {
+        while (subsequences.size() <= depth) {
+            subsequences.add(new ArrayList<BsonValue>());
+        }
+        List<BsonValue> subsequence = subsequences.get(depth);
+        subsequence.clear();
+        return subsequence;
+    }
+}
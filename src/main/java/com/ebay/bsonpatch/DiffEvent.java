@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ebay.bsonpatch;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for computing a patch with {@link BsonDiff}. Only loaded when the
+ * running JVM supports JFR, see {@link FlightRecorder}.
+ */
+@Name("com.ebay.bsonpatch.Diff")
+@Label("BSON Diff")
+@Category("BSON Patch")
+@Description("Computation of a patch between two BSON values")
+@StackTrace(false)
+final class DiffEvent extends jdk.jfr.Event {
+
+    @Label("Source Size")
+    @Description("Number of fields or elements of the source value")
+    int sourceSize;
+
+    @Label("Target Size")
+    @Description("Number of fields or elements of the target value")
+    int targetSize;
+
+    @Label("Nodes Compared")
+    long nodesVisited;
+
+    @Label("LCS Arrays")
+    @Description("Number of array pairs compared with the longest common subsequence")
+    int lcsArrays;
+
+    @Label("Largest LCS Array")
+    @Description("Size of the largest array compared with the longest common subsequence")
+    int largestLcsArray;
+
+    @Label("LCS Cells")
+    @Description("Total size of the longest common subsequence tables computed")
+    long lcsCells;
+
+    @Label("Operations")
+    int operations;
+}
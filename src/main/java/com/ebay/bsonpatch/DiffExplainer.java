@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ebay.bsonpatch;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.bson.BsonArray;
+import org.bson.BsonValue;
+
+/**
+ * Collects the {@link DiffExplanation} of a {@link BsonDiff} run. A node is opened for the
+ * root and for every pair of documents or arrays compared, and closed once the comparison
+ * of its values has returned.
+ */
+final class DiffExplainer {
+
+    private final Deque<DiffExplanation.Node> open = new ArrayDeque<DiffExplanation.Node>();
+    private final Deque<long[]> starts = new ArrayDeque<long[]>();
+    private final Map<DiffPhase, Long> phaseNanos = new EnumMap<DiffPhase, Long>(DiffPhase.class);
+    private DiffExplanation.Node root;
+
+    /**
+     * @return {@code true} if a node was opened, which must be closed with {@link #exit}
+     */
+    boolean enter(JsonPointer path, BsonValue source, BsonValue target, long nodesVisited, int operations) {
+        boolean container = (source.isDocument() && target.isDocument()) || (source.isArray() && target.isArray());
+        if (!container && !path.isRoot()) {
+            return false;
+        }
+        DiffExplanation.Node node = new DiffExplanation.Node(path, source.getBsonType());
+        if (open.isEmpty()) {
+            root = node;
+        } else {
+            open.peek().children.add(node);
+        }
+        open.push(node);
+        starts.push(new long[] {System.nanoTime(), nodesVisited, operations});
+        return true;
+    }
+
+    void exit(long nodesVisited, int operations) {
+        DiffExplanation.Node node = open.pop();
+        long[] start = starts.pop();
+        node.elapsedNanos = System.nanoTime() - start[0];
+        // the node itself was counted before it was entered
+        node.nodesCompared = nodesVisited - start[1] + 1;
+        node.operations = (int) (operations - start[2]);
+    }
+
+    void lcs(int sourceSize, int targetSize) {
+        DiffExplanation.Node node = open.peek();
+        node.lcsSourceSize = sourceSize;
+        node.lcsTargetSize = targetSize;
+    }
+
+    void phase(DiffPhase phase, long elapsedNanos) {
+        phaseNanos.put(phase, elapsedNanos);
+    }
+
+    DiffExplanation explanation(BsonArray patch, long elapsedNanos) {
+        return new DiffExplanation(root, patch, elapsedNanos, phaseNanos);
+    }
+}
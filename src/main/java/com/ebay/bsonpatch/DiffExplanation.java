@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ebay.bsonpatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonArray;
+import org.bson.BsonType;
+
+/**
+ * The cost profile of a {@link BsonDiff} run, as returned by
+ * {@link BsonDiff#explain(org.bson.BsonValue, org.bson.BsonValue)}: the patch, the time
+ * spent in each {@link DiffPhase} and a tree of the documents and arrays that were compared.
+ *
+ * @since 0.5.0
+ */
+public final class DiffExplanation {
+
+    private final Node root;
+    private final BsonArray patch;
+    private final long elapsedNanos;
+    private final Map<DiffPhase, Long> phaseNanos;
+
+    DiffExplanation(Node root, BsonArray patch, long elapsedNanos, Map<DiffPhase, Long> phaseNanos) {
+        this.root = root;
+        this.patch = patch;
+        this.elapsedNanos = elapsedNanos;
+        this.phaseNanos = new EnumMap<DiffPhase, Long>(phaseNanos);
+    }
+
+    /** Returns the node of the compared values themselves. */
+    public Node getRoot() {
+        return root;
+    }
+
+    /** Returns the patch computed, the same {@link BsonDiff#asBson} would return. */
+    public BsonArray getPatch() {
+        return patch;
+    }
+
+    /** Returns the time taken by all phases together. */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /** Returns the time taken by a phase, or {@code 0} if the flags skipped it. */
+    public long getPhaseNanos(DiffPhase phase) {
+        Long nanos = phaseNanos.get(phase);
+        return nanos == null ? 0 : nanos;
+    }
+
+    /** Returns the node at {@code path}, or {@code null} if no document or array was compared there. */
+    public Node get(JsonPointer path) {
+        List<JsonPointer.RefToken> tokens = path.decompose();
+        Node node = root;
+        for (int i = 0; node != null && i < tokens.size(); i++) {
+            Node next = null;
+            for (Node child : node.children) {
+                if (child.path.last().equals(tokens.get(i))) {
+                    next = child;
+                    break;
+                }
+            }
+            node = next;
+        }
+        return node;
+    }
+
+    /** Renders the tree, one node per line, indented by depth. */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("diff ").append(elapsedNanos).append("ns");
+        for (DiffPhase phase : phaseNanos.keySet()) {
+            sb.append(", ").append(phase).append(' ').append(phaseNanos.get(phase)).append("ns");
+        }
+        sb.append('\n');
+        append(sb, root, 0);
+        return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, Node node, int depth) {
+        for (int i = 0; i < depth; i++) sb.append("  ");
+        sb.append(node.path.isRoot() ? "/" : node.path.toString()).append(' ').append(node.type)
+                .append(": ").append(node.elapsedNanos).append("ns, ")
+                .append(node.nodesCompared).append(" nodes, ")
+                .append(node.operations).append(" ops");
+        if (node.hasLcs()) sb.append(", lcs ").append(node.lcsSourceSize).append('x').append(node.lcsTargetSize);
+        sb.append('\n');
+        for (Node child : node.children) {
+            append(sb, child, depth + 1);
+        }
+    }
+
+    /**
+     * A document or array compared during the diff, or the root values. All figures include
+     * the nodes below it.
+     */
+    public static final class Node {
+        final JsonPointer path;
+        final BsonType type;
+        final List<Node> children = new ArrayList<Node>();
+        long elapsedNanos;
+        long nodesCompared;
+        int lcsSourceSize = -1;
+        int lcsTargetSize = -1;
+        int operations;
+
+        Node(JsonPointer path, BsonType type) {
+            this.path = path;
+            this.type = type;
+        }
+
+        public JsonPointer getPath() {
+            return path;
+        }
+
+        /** Returns the type of the source value at this path. */
+        public BsonType getType() {
+            return type;
+        }
+
+        /** Returns the time spent comparing the values at this path, including nested values. */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /** Returns the number of value pairs compared at and below this path. */
+        public long getNodesCompared() {
+            return nodesCompared;
+        }
+
+        /** Returns whether the arrays at this path were compared with a longest common subsequence. */
+        public boolean hasLcs() {
+            return lcsSourceSize >= 0;
+        }
+
+        /** Returns the number of rows of the LCS table, the source array size, or {@code -1}. */
+        public int getLcsSourceSize() {
+            return lcsSourceSize;
+        }
+
+        /** Returns the number of columns of the LCS table, the target array size, or {@code -1}. */
+        public int getLcsTargetSize() {
+            return lcsTargetSize;
+        }
+
+        /**
+         * Returns the number of operations generated at and below this path, before their
+         * normalization into move and copy operations.
+         */
+        public int getOperations() {
+            return operations;
+        }
+
+        /** Returns the documents and arrays compared directly below this one. */
+        public List<Node> getChildren() {
+            return Collections.unmodifiableList(children);
+        }
+    }
+}
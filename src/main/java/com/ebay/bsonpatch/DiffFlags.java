@@ -70,7 +70,28 @@ public enum DiffFlags {
      *
      * @since 0.4.8
      */
-    EMIT_TEST_OPERATIONS;
+    EMIT_TEST_OPERATIONS,
+
+    /**
+     * This flag compares arrays whose elements are mostly unique, such as ranked lists, the
+     * way patience diff does: elements found once in both arrays are matched up and those
+     * out of order emitted as {@link Operation#MOVE} operations right away, in O(n log n)
+     * time, rather than as removals and additions to be merged into moves afterwards. Arrays
+     * with too many repeated elements are compared as usual.
+     *
+     * @since 0.5.0
+     */
+    PATIENCE_ARRAY_DIFF,
+
+    /**
+     * This flag reorders the additions and removals generated for each run of changes to an
+     * array so the patch shifts fewer elements when applied: elements are removed from the
+     * highest index down, then the new elements are added from the lowest index up, in one
+     * group. The indexes are adjusted, so the patch has the same effect.
+     *
+     * @since 0.5.0
+     */
+    MINIMIZE_ARRAY_SHIFTS;
 	
     public static EnumSet<DiffFlags> defaults() {
         return EnumSet.of(OMIT_VALUE_ON_REMOVE);
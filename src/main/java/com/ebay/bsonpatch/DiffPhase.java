@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ebay.bsonpatch;
+
+/**
+ * The phases {@link BsonDiff} goes through when computing a patch, as reported to
+ * {@link BsonPatchListener#diffPhaseCompleted(DiffPhase, long)}.
+ *
+ * @since 0.5.0
+ */
+public enum DiffPhase {
+    /** Walking both values and collecting add, remove and replace operations. */
+    GENERATE_DIFFS,
+    /** Merging removals and additions of the same value into move operations. */
+    INTRODUCE_MOVE_OPERATION,
+    /** Turning additions of values present elsewhere into copy operations. */
+    INTRODUCE_COPY_OPERATION,
+    /** Reordering the operations on arrays, with {@link DiffFlags#MINIMIZE_ARRAY_SHIFTS}. */
+    ORDER_ARRAY_OPERATIONS,
+    /** Rendering the operations as BSON documents. */
+    GET_BSON_NODES
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ebay.bsonpatch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+/**
+ * Walks two values the same way {@link BsonDiff} does with a {@link DiffContext}, but
+ * only counts the operations it would generate and stops as soon as the limit is reached.
+ * No {@link Diff} instances or patch nodes are created; the path of the first
+ * difference is only materialized once. Arrays that differ are compared with a longest
+ * common subsequence, computed in full over the elements between their common first and
+ * last ones before anything in them is counted, in buffers created on the first such array.
+ */
+final class DiffProbe {
+
+    private final int limit;
+    private final List<String> tokens = new ArrayList<String>();
+    private int count;
+    private JsonPointer first;
+    private DiffContext context;
+    private int arrayDepth;
+
+    DiffProbe(int limit) {
+        this.limit = limit;
+    }
+
+    int count() {
+        return count;
+    }
+
+    JsonPointer first() {
+        return first;
+    }
+
+    /**
+     * @return {@code true} once the limit has been reached and the walk should stop
+     */
+    boolean probe(BsonValue source, BsonValue target) {
+        if (source.equals(target)) {
+            return false;
+        }
+        if (source.isArray() && target.isArray()) {
+            return compareArray(source.asArray(), target.asArray());
+        } else if (source.isDocument() && target.isDocument()) {
+            return compareDocuments(source.asDocument(), target.asDocument());
+        }
+        return record(null);
+    }
+
+    private boolean record(String token) {
+        if (first == null) {
+            List<JsonPointer.RefToken> refTokens = new ArrayList<JsonPointer.RefToken>(tokens.size() + 1);
+            for (String t : tokens) {
+                refTokens.add(new JsonPointer.RefToken(t));
+            }
+            if (token != null) {
+                refTokens.add(new JsonPointer.RefToken(token));
+            }
+            first = new JsonPointer(refTokens);
+        }
+        return ++count >= limit;
+    }
+
+    private boolean probeChild(String token, BsonValue source, BsonValue target) {
+        tokens.add(token);
+        boolean done = probe(source, target);
+        tokens.remove(tokens.size() - 1);
+        return done;
+    }
+
+    private boolean compareDocuments(BsonDocument source, BsonDocument target) {
+        for (String key : source.keySet()) {
+            BsonValue targetValue = target.get(key);
+            if (targetValue == null) {
+                if (record(key)) return true;
+            } else if (probeChild(key, source.get(key), targetValue)) {
+                return true;
+            }
+        }
+        for (String key : target.keySet()) {
+            if (!source.containsKey(key) && record(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean compareArray(BsonArray source, BsonArray target) {
+        if (context == null) {
+            context = new DiffContext();
+        }
+        List<BsonValue> lcs = LongestCommonSubsequence.of(source, target, context.subsequence(arrayDepth++), context);
+        try {
+            return compareArray(source, target, lcs);
+        } finally {
+            lcs.clear();
+            arrayDepth--;
+        }
+    }
+
+    // mirrors BsonDiff.compareArray, including the positions used for the generated paths
+    private boolean compareArray(BsonArray source, BsonArray target, List<BsonValue> lcs) {
+        int srcIdx = 0;
+        int targetIdx = 0;
+        int lcsIdx = 0;
+        int srcSize = source.size();
+        int targetSize = target.size();
+        int lcsSize = lcs.size();
+
+        int pos = 0;
+        while (lcsIdx < lcsSize) {
+            BsonValue lcsNode = lcs.get(lcsIdx);
+            BsonValue srcNode = source.get(srcIdx);
+            BsonValue targetNode = target.get(targetIdx);
+
+            if (lcsNode.equals(srcNode) && lcsNode.equals(targetNode)) {
+                srcIdx++;
+                targetIdx++;
+                lcsIdx++;
+                pos++;
+            } else if (lcsNode.equals(srcNode)) {
+                if (record(Integer.toString(pos))) return true;
+                pos++;
+                targetIdx++;
+            } else if (lcsNode.equals(targetNode)) {
+                if (record(Integer.toString(pos))) return true;
+                srcIdx++;
+            } else {
+                if (probeChild(Integer.toString(pos), srcNode, targetNode)) return true;
+                srcIdx++;
+                targetIdx++;
+                pos++;
+            }
+        }
+
+        while (srcIdx < srcSize && targetIdx < targetSize) {
+            if (probeChild(Integer.toString(pos), source.get(srcIdx), target.get(targetIdx))) return true;
+            srcIdx++;
+            targetIdx++;
+            pos++;
+        }
+        while (targetIdx < targetSize) {
+            if (record(Integer.toString(pos))) return true;
+            pos++;
+            targetIdx++;
+        }
+        while (srcIdx < srcSize) {
+            if (record(Integer.toString(pos))) return true;
+            srcIdx++;
+        }
+        return false;
+    }
+}
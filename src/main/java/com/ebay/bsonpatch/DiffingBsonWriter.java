@@ -0,0 +1,356 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.AbstractBsonWriter;
+import org.bson.BsonArray;
+import org.bson.BsonBinary;
+import org.bson.BsonBoolean;
+import org.bson.BsonContextType;
+import org.bson.BsonDateTime;
+import org.bson.BsonDbPointer;
+import org.bson.BsonDecimal128;
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonInvalidOperationException;
+import org.bson.BsonJavaScript;
+import org.bson.BsonJavaScriptWithScope;
+import org.bson.BsonMaxKey;
+import org.bson.BsonMinKey;
+import org.bson.BsonNull;
+import org.bson.BsonObjectId;
+import org.bson.BsonRegularExpression;
+import org.bson.BsonString;
+import org.bson.BsonSymbol;
+import org.bson.BsonTimestamp;
+import org.bson.BsonUndefined;
+import org.bson.BsonValue;
+import org.bson.BsonWriterSettings;
+import org.bson.codecs.Encoder;
+import org.bson.codecs.EncoderContext;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+
+/**
+ * A {@link org.bson.BsonWriter} that diffs the document written to it against a stored
+ * document, so that a value can be diffed straight from its {@link Encoder}, e.g. the codec a
+ * {@code CodecRegistry} has for a POJO, without encoding it into a {@code BsonDocument} first.
+ * <p>
+ * Each value written is compared against the stored value at the same path as it arrives.
+ * Nested documents are compared field by field; only values that differ, and the arrays that
+ * hold them, are materialized. Once the document is complete, {@link #getPatch()} diffs what
+ * differs with {@link BsonDiff}, so the patch is the one {@code BsonDiff} computes for the
+ * encoded document except that unchanged fields are not used as the source of {@code copy}
+ * operations.
+ * <pre>
+ *     DiffingBsonWriter writer = new DiffingBsonWriter(stored);
+ *     registry.get(Order.class).encode(writer, order, EncoderContext.builder().build());
+ *     BsonArray patch = writer.getPatch();
+ * </pre>
+ * A writer is used for a single document and is not thread safe.
+ *
+ * @since 0.5.0
+ */
+public final class DiffingBsonWriter extends AbstractBsonWriter {
+
+    private final BsonDocument source;
+    private final EnumSet<DiffFlags> flags;
+    private BsonArray patch;
+
+    public DiffingBsonWriter(BsonDocument source) {
+        this(source, DiffFlags.defaults());
+    }
+
+    public DiffingBsonWriter(BsonDocument source, EnumSet<DiffFlags> flags) {
+        super(new BsonWriterSettings());
+        this.source = source;
+        this.flags = flags;
+        setContext(new Context(null, null, BsonContextType.TOP_LEVEL, null));
+    }
+
+    /**
+     * Encodes {@code value} with {@code encoder} and returns the patch turning {@code source}
+     * into the encoded document.
+     */
+    static <T> BsonArray diff(BsonDocument source, T value, Encoder<T> encoder, EnumSet<DiffFlags> flags) {
+        DiffingBsonWriter writer = new DiffingBsonWriter(source, flags);
+        encoder.encode(writer, value, EncoderContext.builder().build());
+        return writer.getPatch();
+    }
+
+    /**
+     * Returns the patch turning the stored document into the one written.
+     *
+     * @throws IllegalStateException if the document has not been written completely
+     */
+    public BsonArray getPatch() {
+        if (patch == null) {
+            throw new IllegalStateException("The document has not been written completely");
+        }
+        return patch;
+    }
+
+    @Override
+    protected void doWriteStartDocument() {
+        switch (getState()) {
+            case INITIAL:
+                setContext(new Context(source, null, BsonContextType.DOCUMENT, getContext()));
+                break;
+            case VALUE:
+                BsonValue stored = getContext().stored(getName());
+                if (stored != null && stored.isDocument()) {
+                    setContext(new Context(stored.asDocument(), null, BsonContextType.DOCUMENT, getContext()));
+                } else {
+                    setContext(new Context(null, new BsonDocument(), BsonContextType.DOCUMENT, getContext()));
+                }
+                break;
+            case SCOPE_DOCUMENT:
+                setContext(new Context(null, new BsonDocument(), BsonContextType.SCOPE_DOCUMENT, getContext()));
+                break;
+            default:
+                throw new BsonInvalidOperationException("Unexpected state " + getState());
+        }
+    }
+
+    @Override
+    protected void doWriteEndDocument() {
+        Context context = getContext();
+        setContext(context.getParentContext());
+        if (context.container == null) {
+            context.removeUnwritten();
+            if (getContext().getContextType() == BsonContextType.TOP_LEVEL) {
+                patch = BsonDiff.asBson(context.sourceFields, context.targetFields, flags);
+            } else {
+                getContext().addChangedFields(getName(), context.sourceFields, context.targetFields);
+            }
+        } else if (getContext().getContextType() == BsonContextType.JAVASCRIPT_WITH_SCOPE) {
+            String code = ((BsonString) getContext().container).getValue();
+            setContext(getContext().getParentContext());
+            write(new BsonJavaScriptWithScope(code, (BsonDocument) context.container));
+        } else {
+            write(context.container);
+        }
+    }
+
+    @Override
+    protected void doWriteStartArray() {
+        setContext(new Context(null, new BsonArray(), BsonContextType.ARRAY, getContext()));
+    }
+
+    @Override
+    protected void doWriteEndArray() {
+        BsonValue array = getContext().container;
+        setContext(getContext().getParentContext());
+        write(array);
+    }
+
+    @Override
+    protected void doWriteBinaryData(BsonBinary value) {
+        write(value);
+    }
+
+    @Override
+    protected void doWriteBoolean(boolean value) {
+        write(BsonBoolean.valueOf(value));
+    }
+
+    @Override
+    protected void doWriteDateTime(long value) {
+        write(new BsonDateTime(value));
+    }
+
+    @Override
+    protected void doWriteDBPointer(BsonDbPointer value) {
+        write(value);
+    }
+
+    @Override
+    protected void doWriteDouble(double value) {
+        write(new BsonDouble(value));
+    }
+
+    @Override
+    protected void doWriteInt32(int value) {
+        write(new BsonInt32(value));
+    }
+
+    @Override
+    protected void doWriteInt64(long value) {
+        write(new BsonInt64(value));
+    }
+
+    @Override
+    protected void doWriteDecimal128(Decimal128 value) {
+        write(new BsonDecimal128(value));
+    }
+
+    @Override
+    protected void doWriteJavaScript(String code) {
+        write(new BsonJavaScript(code));
+    }
+
+    @Override
+    protected void doWriteJavaScriptWithScope(String code) {
+        setContext(new Context(null, new BsonString(code), BsonContextType.JAVASCRIPT_WITH_SCOPE, getContext()));
+    }
+
+    @Override
+    protected void doWriteMaxKey() {
+        write(new BsonMaxKey());
+    }
+
+    @Override
+    protected void doWriteMinKey() {
+        write(new BsonMinKey());
+    }
+
+    @Override
+    protected void doWriteNull() {
+        write(BsonNull.VALUE);
+    }
+
+    @Override
+    protected void doWriteObjectId(ObjectId value) {
+        write(new BsonObjectId(value));
+    }
+
+    @Override
+    protected void doWriteRegularExpression(BsonRegularExpression value) {
+        write(value);
+    }
+
+    @Override
+    protected void doWriteString(String value) {
+        write(new BsonString(value));
+    }
+
+    @Override
+    protected void doWriteSymbol(String value) {
+        write(new BsonSymbol(value));
+    }
+
+    @Override
+    protected void doWriteTimestamp(BsonTimestamp value) {
+        write(value);
+    }
+
+    @Override
+    protected void doWriteUndefined() {
+        write(new BsonUndefined());
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    protected Context getContext() {
+        return (Context) super.getContext();
+    }
+
+    private void write(BsonValue value) {
+        getContext().add(getName(), value);
+    }
+
+    /**
+     * Either a stored document being compared, collecting the fields that differ, or a value
+     * without a stored counterpart being materialized into {@code container}.
+     */
+    private class Context extends AbstractBsonWriter.Context {
+        private final BsonDocument stored;
+        private final BsonValue container;
+        private final BsonDocument sourceFields;
+        private final BsonDocument targetFields;
+        private final Set<String> written;
+        private int writtenStored;
+
+        Context(BsonDocument stored, BsonValue container, BsonContextType contextType, Context parent) {
+            super(parent, contextType);
+            this.stored = stored;
+            this.container = container;
+            boolean compared = stored != null;
+            this.sourceFields = compared ? new BsonDocument() : null;
+            this.targetFields = compared ? new BsonDocument() : null;
+            this.written = compared ? new HashSet<String>() : null;
+        }
+
+        @Override
+        public Context getParentContext() {
+            return (Context) super.getParentContext();
+        }
+
+        BsonValue stored(String name) {
+            return stored != null ? stored.get(name) : null;
+        }
+
+        void add(String name, BsonValue value) {
+            if (container instanceof BsonArray) {
+                ((BsonArray) container).add(value);
+            } else if (container != null) {
+                ((BsonDocument) container).put(name, value);
+            } else {
+                BsonValue old = stored.get(name);
+                if (old == null) {
+                    targetFields.put(name, value);
+                    return;
+                }
+                written(name);
+                if (!old.equals(value)) {
+                    sourceFields.put(name, old);
+                    targetFields.put(name, value);
+                }
+            }
+        }
+
+        /** Takes the fields that differ in the stored document compared under {@code name}. */
+        void addChangedFields(String name, BsonDocument changedSourceFields, BsonDocument changedTargetFields) {
+            written(name);
+            if (!changedSourceFields.isEmpty() || !changedTargetFields.isEmpty()) {
+                sourceFields.put(name, changedSourceFields);
+                targetFields.put(name, changedTargetFields);
+            }
+        }
+
+        private void written(String name) {
+            if (written.add(name)) {
+                writtenStored++;
+            }
+        }
+
+        void removeUnwritten() {
+            if (writtenStored == stored.size()) {
+                return;
+            }
+            for (Map.Entry<String, BsonValue> entry : stored.entrySet()) {
+                if (!written.contains(entry.getKey())) {
+                    sourceFields.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+}
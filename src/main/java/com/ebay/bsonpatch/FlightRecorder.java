@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ebay.bsonpatch;
+
+/**
+ * Emits {@code DiffEvent} and {@code ApplyEvent} to Java Flight Recorder. These events and
+ * the recorder creating them are compiled apart from the rest of the library, against
+ * {@code jdk.jfr}, and only loaded when the running JVM ships it. Events are handed around as
+ * plain objects so callers do not depend on them. While no recording enables the events,
+ * begin returns {@code null} and nothing else is done.
+ */
+final class FlightRecorder {
+
+    /** Creates and commits the events; implemented where {@code jdk.jfr} is available. */
+    interface Recorder {
+
+        /** Returns a started diff event, or {@code null} if diff events are disabled. */
+        Object beginDiff();
+
+        void commitDiff(Object event, int sourceSize, int targetSize, long nodesVisited, int lcsArrays, int largestLcsArray,
+                long lcsCells, int operations);
+
+        /** Returns a started apply event, or {@code null} if apply events are disabled. */
+        Object beginApply();
+
+        void commitApply(Object event, boolean inPlace, int operations, int applied, RuntimeException failure);
+    }
+
+    private static final Recorder RECORDER = load();
+
+    private FlightRecorder() {}
+
+    private static Recorder load() {
+        try {
+            ClassLoader loader = FlightRecorder.class.getClassLoader();
+            Class.forName("jdk.jfr.Event", false, loader);
+            return (Recorder) Class.forName("com.ebay.bsonpatch.JfrRecorder", true, loader).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            // no jdk.jfr, or the library was built without the events
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    static Object beginDiff() {
+        return RECORDER != null ? RECORDER.beginDiff() : null;
+    }
+
+    static void commitDiff(Object event, int sourceSize, int targetSize, long nodesVisited, int lcsArrays, int largestLcsArray,
+            long lcsCells, int operations) {
+        if (event != null) {
+            RECORDER.commitDiff(event, sourceSize, targetSize, nodesVisited, lcsArrays, largestLcsArray, lcsCells, operations);
+        }
+    }
+
+    static Object beginApply() {
+        return RECORDER != null ? RECORDER.beginApply() : null;
+    }
+
+    static void commitApply(Object event, boolean inPlace, int operations, int applied, RuntimeException failure) {
+        if (event != null) {
+            RECORDER.commitApply(event, inPlace, operations, applied, failure);
+        }
+    }
+}
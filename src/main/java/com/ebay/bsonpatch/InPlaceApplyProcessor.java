@@ -26,9 +26,14 @@ import org.bson.BsonBinary;
 import org.bson.BsonDocument;
 import org.bson.BsonJavaScriptWithScope;
 import org.bson.BsonValue;
+import org.bson.RawBsonArray;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
 
 class InPlaceApplyProcessor implements BsonPatchProcessor {
 
+    private static final BsonDocumentCodec CODEC = new BsonDocumentCodec();
+
     private BsonValue target;
     private EnumSet<CompatibilityFlags> flags;
 
@@ -59,7 +64,7 @@ class InPlaceApplyProcessor implements BsonPatchProcessor {
         set(toPath, valueToCopy, Operation.COPY);
     }
     
-    private static String show(BsonValue value) {
+    static String show(BsonValue value) {
         if (value == null || value.isNull())
             return "null";
         else if (value.isArray())
@@ -148,10 +153,20 @@ class InPlaceApplyProcessor implements BsonPatchProcessor {
         BsonValue to;
         switch (from.getBsonType()) {
             case DOCUMENT:
-                to = from.asDocument().clone();
+                // the clone of a raw document is raw, and so immutable, as well
+                to = from instanceof RawBsonDocument
+                        ? ((RawBsonDocument) from).decode(CODEC) : from.asDocument().clone();
                 break;
             case ARRAY:
-                to = from.asArray().clone();
+                if (from instanceof RawBsonArray) {
+                    BsonArray array = new BsonArray();
+                    for (BsonValue element : from.asArray()) {
+                        array.add(cloneBsonValue(element));
+                    }
+                    to = array;
+                } else {
+                    to = from.asArray().clone();
+                }
                 break;
             case BINARY:
             	to = new BsonBinary(from.asBinary().getType(), from.asBinary().getData().clone());
@@ -165,7 +180,7 @@ class InPlaceApplyProcessor implements BsonPatchProcessor {
         return to;
     }
     
-    private void set(JsonPointer path, BsonValue value, Operation forOp) throws JsonPointerEvaluationException {
+    void set(JsonPointer path, BsonValue value, Operation forOp) throws JsonPointerEvaluationException {
         if (path.isRoot())
             target = value;
         else {
@@ -20,7 +20,10 @@
 package com.ebay.bsonpatch;
 
 import org.bson.BsonArray;
+import org.bson.BsonDocument;
 import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -29,6 +32,17 @@ import java.util.List;
 
 class InternalUtils {
 
+    private static final BsonDocumentCodec CODEC = new BsonDocumentCodec();
+
+    /** Encodes {@code patch}, so it can be read but no longer changed. */
+    static BsonArray freeze(BsonArray patch) {
+        return new RawBsonDocument(new BsonDocument("patch", patch), CODEC).getArray("patch");
+    }
+
+    static BsonValue freeze(BsonValue value) {
+        return new RawBsonDocument(new BsonDocument("value", value), CODEC).get("value");
+    }
+
     static List<BsonValue> toList(BsonArray input) {
         int size = input.size();
         List<BsonValue> toReturn = new ArrayList<BsonValue>(size);
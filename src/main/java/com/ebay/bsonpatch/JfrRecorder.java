@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ebay.bsonpatch;
+
+import jdk.jfr.EventType;
+
+/**
+ * Records {@link DiffEvent} and {@link ApplyEvent}. Loaded by {@link FlightRecorder} only
+ * when the running JVM ships {@code jdk.jfr}. Whether an event is enabled is checked on its
+ * type before the event is created, so nothing is allocated while no recording wants it.
+ */
+final class JfrRecorder implements FlightRecorder.Recorder {
+
+    private final EventType diffType = EventType.getEventType(DiffEvent.class);
+    private final EventType applyType = EventType.getEventType(ApplyEvent.class);
+
+    @Override
+    public Object beginDiff() {
+        if (!diffType.isEnabled()) return null;
+        DiffEvent event = new DiffEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void commitDiff(Object e, int sourceSize, int targetSize, long nodesVisited, int lcsArrays, int largestLcsArray,
+            long lcsCells, int operations) {
+        DiffEvent event = (DiffEvent) e;
+        event.end();
+        if (event.shouldCommit()) {
+            event.sourceSize = sourceSize;
+            event.targetSize = targetSize;
+            event.nodesVisited = nodesVisited;
+            event.lcsArrays = lcsArrays;
+            event.largestLcsArray = largestLcsArray;
+            event.lcsCells = lcsCells;
+            event.operations = operations;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object beginApply() {
+        if (!applyType.isEnabled()) return null;
+        ApplyEvent event = new ApplyEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void commitApply(Object e, boolean inPlace, int operations, int applied, RuntimeException failure) {
+        ApplyEvent event = (ApplyEvent) e;
+        event.end();
+        if (event.shouldCommit()) {
+            event.inPlace = inPlace;
+            event.operations = operations;
+            event.applied = applied;
+            event.failed = failure != null;
+            event.failure = failure == null ? null : failure.toString();
+            event.commit();
+        }
+    }
+}
@@ -38,7 +38,7 @@ import org.bson.BsonValue;
  *
  * @since 0.4.8
  */
-class JsonPointer {
+public class JsonPointer {
 
     /** A JSON pointer representing the root node of a JSON document */
     /* package */ final static JsonPointer ROOT = new JsonPointer(new RefToken[0]);
@@ -264,7 +264,7 @@ class JsonPointer {
     }
 
     /** Represents a single JSON Pointer reference token. */
-    static class RefToken {
+    public static class RefToken {
         private final String decodedToken;
         transient private Integer index = null;
 
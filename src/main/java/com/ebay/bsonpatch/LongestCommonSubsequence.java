@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.collections4.ListUtils;
+import org.bson.BsonArray;
+import org.bson.BsonValue;
+
+/**
+ * The longest common subsequence of two ranges of arrays, computed in the buffers of a
+ * {@link DiffContext}. Both kernels walk the same table of LCS lengths of the remaining
+ * elements from the start of the ranges, taking equal elements and otherwise skipping an
+ * element of the first array where that does not shorten the LCS, so they find the same
+ * subsequence.
+ */
+final class LongestCommonSubsequence {
+
+    /** Ranges with fewer pairs of elements than this are compared pair by pair. */
+    static final int BIT_PARALLEL_CELLS = 1024;
+
+    private LongestCommonSubsequence() {}
+
+    /**
+     * Computes the LCS of {@code first} and {@code second} into {@code lcs}, skipping their
+     * common first and last elements and comparing the rest with a kernel in the buffers of
+     * {@code context}, unless these would be too large.
+     */
+    static List<BsonValue> of(BsonArray first, BsonArray second, List<BsonValue> lcs, DiffContext context) {
+        int firstSize = first.size();
+        int secondSize = second.size();
+        int prefix = 0;
+        while (prefix < firstSize && prefix < secondSize && first.get(prefix).equals(second.get(prefix))) {
+            lcs.add(first.get(prefix++));
+        }
+        int suffix = 0;
+        while (suffix < firstSize - prefix && suffix < secondSize - prefix
+                && first.get(firstSize - 1 - suffix).equals(second.get(secondSize - 1 - suffix))) {
+            suffix++;
+        }
+        int rows = firstSize - prefix - suffix;
+        int columns = secondSize - prefix - suffix;
+        if (rows > 0 && columns > 0) {
+            if ((long) rows * columns < BIT_PARALLEL_CELLS) {
+                dynamic(first, second, prefix, rows, columns, lcs, context);
+            } else if (bitParallelWords(rows, columns) <= DiffContext.MAX_LCS_WORDS) {
+                bitParallel(first, second, prefix, rows, columns, lcs, context);
+            } else {
+                lcs.addAll(ListUtils.longestCommonSubsequence(
+                        InternalUtils.toList(first).subList(prefix, prefix + rows),
+                        InternalUtils.toList(second).subList(prefix, prefix + columns)));
+            }
+        }
+        for (int i = firstSize - suffix; i < firstSize; i++) {
+            lcs.add(first.get(i));
+        }
+        return lcs;
+    }
+
+    /**
+     * Adds the LCS of {@code first[offset, offset + rows)} and {@code second[offset, offset + columns)}
+     * to {@code lcs}, comparing every pair of elements with {@code equals}.
+     */
+    static void dynamic(BsonArray first, BsonArray second, int offset, int rows, int columns, List<BsonValue> lcs, DiffContext context) {
+        // table[i * width + j] holds the length of the LCS of the remaining elements from row i and column j on
+        int width = columns + 1;
+        int[] table = context.table((rows + 1) * width);
+        for (int j = 0; j <= columns; j++) {
+            table[rows * width + j] = 0;
+        }
+        for (int i = rows - 1; i >= 0; i--) {
+            BsonValue element = first.get(offset + i);
+            table[i * width + columns] = 0;
+            for (int j = columns - 1; j >= 0; j--) {
+                table[i * width + j] = element.equals(second.get(offset + j)) ? table[(i + 1) * width + j + 1] + 1
+                        : Math.max(table[(i + 1) * width + j], table[i * width + j + 1]);
+            }
+        }
+        int i = 0;
+        int j = 0;
+        while (i < rows && j < columns) {
+            if (first.get(offset + i).equals(second.get(offset + j))) {
+                lcs.add(first.get(offset + i));
+                i++;
+                j++;
+            } else if (table[(i + 1) * width + j] >= table[i * width + j + 1]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+    }
+
+    /** Returns the number of words of the bit-parallel table and symbol masks for these ranges. */
+    static long bitParallelWords(int rows, int columns) {
+        return (long) (rows + 1 + Math.min(rows, columns)) * words(columns);
+    }
+
+    /**
+     * Adds the same LCS as {@link #dynamic} to {@code lcs}, after interning the elements to
+     * symbol ids, so that each element is hashed once and compared with the equal elements
+     * only. The lengths are computed 64 columns at a time with the bit-vector algorithm of
+     * Hyyrö (<i>Bit-parallel LCS-length computation revisited</i>, 2004) on both ranges
+     * reversed, so that the vector of row {@code k} holds the LCS lengths of the last
+     * {@code k} elements of the first range and every suffix of the second: the LCS length
+     * of a suffix of {@code n} elements is the number of zero bits among the first {@code n}.
+     */
+    static void bitParallel(BsonArray first, BsonArray second, int offset, int rows, int columns, List<BsonValue> lcs, DiffContext context) {
+        int words = words(columns);
+        int[] symbols = context.table(rows + columns + rows);
+        Map<BsonValue, Integer> ids = context.symbols;
+        try {
+            // the symbols of the first range are numbered first, then those of the second range are looked up
+            for (int i = 0; i < rows; i++) {
+                BsonValue element = first.get(offset + i);
+                Integer id = ids.get(element);
+                if (id == null) {
+                    id = ids.size();
+                    ids.put(element, id);
+                }
+                symbols[i] = id;
+            }
+            // shared[id] numbers the symbols found in both ranges from 0, so that only these get a mask;
+            // the others are -1 in the first range and -2 in the second, which match nothing
+            int shared = rows + columns;
+            for (int id = ids.size() - 1; id >= 0; id--) {
+                symbols[shared + id] = -1;
+            }
+            int sharedCount = 0;
+            for (int j = 0; j < columns; j++) {
+                Integer id = ids.get(second.get(offset + j));
+                if (id == null) {
+                    symbols[rows + j] = -2;
+                    continue;
+                }
+                if (symbols[shared + id] < 0) {
+                    symbols[shared + id] = sharedCount++;
+                }
+                symbols[rows + j] = symbols[shared + id];
+            }
+            for (int i = 0; i < rows; i++) {
+                symbols[i] = symbols[shared + symbols[i]];
+            }
+
+            // masks[id * words + t / 64] has bit t set where the t-th element of the reversed second range is id
+            long[] masks = context.masks(sharedCount * words);
+            for (int m = sharedCount * words - 1; m >= 0; m--) {
+                masks[m] = 0;
+            }
+            for (int t = 0; t < columns; t++) {
+                int symbol = symbols[rows + columns - 1 - t];
+                if (symbol >= 0) {
+                    masks[symbol * words + (t >>> 6)] |= 1L << t;
+                }
+            }
+
+            long[] vectors = context.vectors((rows + 1) * words);
+            for (int w = 0; w < words; w++) {
+                vectors[w] = -1L;
+            }
+            for (int k = 0; k < rows; k++) {
+                int symbol = symbols[rows - 1 - k];
+                int row = k * words;
+                int next = row + words;
+                if (symbol < 0) {
+                    System.arraycopy(vectors, row, vectors, next, words);
+                    continue;
+                }
+                int mask = symbol * words;
+                long carry = 0;
+                for (int w = 0; w < words; w++) {
+                    long v = vectors[row + w];
+                    long u = v & masks[mask + w];
+                    long sum = v + u + carry;
+                    carry = ((v & u) | ((v | u) & ~sum)) >>> 63;
+                    vectors[next + w] = sum | (v & ~u);
+                }
+            }
+
+            int i = 0;
+            int j = 0;
+            int length = lengthOf(vectors, rows * words, columns);
+            while (length > 0) {
+                if (symbols[i] == symbols[rows + j]) {
+                    lcs.add(first.get(offset + i));
+                    i++;
+                    j++;
+                    length--;
+                } else if (lengthOf(vectors, (rows - i - 1) * words, columns - j) == length) {
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+        } finally {
+            ids.clear();
+        }
+    }
+
+    private static int words(int columns) {
+        return (columns + 63) >>> 6;
+    }
+
+    /** Counts the zero bits among the first {@code bits} bits of the vector at {@code start}. */
+    private static int lengthOf(long[] vectors, int start, int bits) {
+        int ones = 0;
+        int w = start;
+        for (; bits >= 64; bits -= 64) {
+            ones += Long.bitCount(vectors[w++]);
+        }
+        if (bits > 0) {
+            ones += Long.bitCount(vectors[w] & ((1L << bits) - 1));
+        }
+        return (w - start) * 64 + bits - ones;
+    }
+}
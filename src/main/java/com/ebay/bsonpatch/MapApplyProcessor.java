@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import static com.ebay.bsonpatch.InPlaceApplyProcessor.show;
+import static com.ebay.bsonpatch.MapValues.asList;
+import static com.ebay.bsonpatch.MapValues.asMap;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonValue;
+import org.bson.Document;
+
+/**
+ * Applies a patch in place to a plain Java tree of {@link Map}s and {@link List}s, such as a
+ * {@link Document}, without converting it to BSON. Values taken from the patch are converted
+ * with {@link MapValues#fromBson(BsonValue)}; containers that are {@code BsonValue}s get
+ * {@code BsonValue}s.
+ */
+class MapApplyProcessor implements BsonPatchProcessor {
+
+    private Object target;
+    private final EnumSet<CompatibilityFlags> flags;
+
+    MapApplyProcessor(Object target, EnumSet<CompatibilityFlags> flags) {
+        this.target = target;
+        this.flags = flags;
+    }
+
+    Object result() {
+        return target;
+    }
+
+    @Override
+    public void move(JsonPointer fromPath, JsonPointer toPath) throws JsonPointerEvaluationException {
+        Object value = evaluate(fromPath);
+        remove(fromPath);
+        set(toPath, value, Operation.MOVE);
+    }
+
+    @Override
+    public void copy(JsonPointer fromPath, JsonPointer toPath) throws JsonPointerEvaluationException {
+        set(toPath, MapValues.copy(evaluate(fromPath)), Operation.COPY);
+    }
+
+    @Override
+    public void test(JsonPointer path, BsonValue value) throws JsonPointerEvaluationException {
+        BsonValue actual = MapValues.toBson(evaluate(path));
+        if (!actual.equals(value))
+            throw new BsonPatchApplicationException(
+                    "Expected value " + show(value) + " but found " + show(actual), Operation.TEST, path);
+    }
+
+    @Override
+    public void add(JsonPointer path, BsonValue value) throws JsonPointerEvaluationException {
+        set(path, MapValues.fromBson(value), Operation.ADD);
+    }
+
+    @Override
+    public void replace(JsonPointer path, BsonValue value) throws JsonPointerEvaluationException {
+        if (path.isRoot()) {
+            target = MapValues.fromBson(value);
+            return;
+        }
+
+        Object parent = evaluate(path.getParent());
+        JsonPointer.RefToken token = path.last();
+        if (parent instanceof Map) {
+            if (!flags.contains(CompatibilityFlags.ALLOW_MISSING_TARGET_OBJECT_ON_REPLACE) &&
+                    !asMap(parent).containsKey(token.getField()))
+                throw new BsonPatchApplicationException(
+                        "Missing field \"" + token.getField() + "\"", Operation.REPLACE, path.getParent());
+            asMap(parent).put(token.getField(), adapt(parent, MapValues.fromBson(value)));
+        } else if (parent instanceof List) {
+            if (token.getIndex() >= asList(parent).size())
+                throw new BsonPatchApplicationException(
+                        "Array index " + token.getIndex() + " out of bounds", Operation.REPLACE, path.getParent());
+            asList(parent).set(token.getIndex(), adapt(parent, MapValues.fromBson(value)));
+        } else {
+            throw new BsonPatchApplicationException(
+                    "Can't reference past scalar value", Operation.REPLACE, path.getParent());
+        }
+    }
+
+    @Override
+    public void remove(JsonPointer path) throws JsonPointerEvaluationException {
+        if (path.isRoot())
+            throw new BsonPatchApplicationException("Cannot remove document root", Operation.REMOVE, path);
+
+        Object parent = evaluate(path.getParent());
+        JsonPointer.RefToken token = path.last();
+        if (parent instanceof Map) {
+            asMap(parent).remove(token.getField());
+        } else if (parent instanceof List) {
+            if (token.getIndex() < asList(parent).size()) {
+                asList(parent).remove(token.getIndex());
+            } else if (!flags.contains(CompatibilityFlags.REMOVE_NONE_EXISTING_ARRAY_ELEMENT)) {
+                throw new BsonPatchApplicationException(
+                        "Array index " + token.getIndex() + " out of bounds", Operation.REPLACE, path.getParent());
+            }
+        } else {
+            throw new BsonPatchApplicationException(
+                    "Cannot reference past scalar value", Operation.REPLACE, path.getParent());
+        }
+    }
+
+    private void set(JsonPointer path, Object value, Operation forOp) throws JsonPointerEvaluationException {
+        if (path.isRoot()) {
+            target = value;
+            return;
+        }
+        Object parent = evaluate(path.getParent());
+        if (parent instanceof Map) {
+            asMap(parent).put(path.last().getField(), adapt(parent, value));
+        } else if (parent instanceof List) {
+            List<Object> list = asList(parent);
+            int idx = path.last().getIndex();
+            if (idx == JsonPointer.LAST_INDEX) {
+                list.add(adapt(parent, value));
+            } else {
+                if (idx > list.size())
+                    throw new BsonPatchApplicationException(
+                            "Array index " + idx + " out of bounds", Operation.ADD, path.getParent());
+                list.add(idx, adapt(parent, value));
+            }
+        } else {
+            throw new BsonPatchApplicationException("Cannot reference past scalar value", forOp, path.getParent());
+        }
+    }
+
+    /** BSON documents and arrays found in the tree can only hold BSON values. */
+    private static Object adapt(Object parent, Object value) {
+        return parent instanceof BsonValue ? MapValues.toBson(value) : value;
+    }
+
+    private Object evaluate(JsonPointer path) throws JsonPointerEvaluationException {
+        Object current = target;
+        for (int idx = 0; idx < path.size(); ++idx) {
+            JsonPointer.RefToken token = path.get(idx);
+            if (current instanceof List) {
+                if (!token.isArrayIndex())
+                    error(path, idx, "Can't reference field \"" + token.getField() + "\" on array");
+                if (token.getIndex() == JsonPointer.LAST_INDEX || token.getIndex() >= asList(current).size())
+                    error(path, idx, "Array index " + token.toString() + " is out of bounds");
+                current = asList(current).get(token.getIndex());
+            } else if (current instanceof Map) {
+                if (!asMap(current).containsKey(token.getField()))
+                    error(path, idx, "Missing field \"" + token.getField() + "\"");
+                current = asMap(current).get(token.getField());
+            } else {
+                error(path, idx, "Can't reference past scalar value");
+            }
+        }
+        return current;
+    }
+
+    private static void error(JsonPointer path, int atToken, String message) throws JsonPointerEvaluationException {
+        throw new JsonPointerEvaluationException(message, new JsonPointer(path.decompose().subList(0, atToken)), null);
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import static com.ebay.bsonpatch.InPlaceApplyProcessor.cloneBsonValue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BsonArray;
+import org.bson.BsonBinary;
+import org.bson.BsonBoolean;
+import org.bson.BsonDateTime;
+import org.bson.BsonDecimal128;
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonJavaScript;
+import org.bson.BsonJavaScriptWithScope;
+import org.bson.BsonMaxKey;
+import org.bson.BsonMinKey;
+import org.bson.BsonNull;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.BsonSymbol;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.Code;
+import org.bson.types.CodeWithScope;
+import org.bson.types.Decimal128;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.bson.types.Symbol;
+
+/**
+ * Conversion between {@link BsonValue}s and the plain Java trees of {@link Map}s, {@link List}s
+ * and boxed values that {@link Document} holds. The mapping is the one of the driver's default
+ * codecs, done by a type switch instead of going through a codec registry and a writer.
+ * {@code BsonValue}s found in a Java tree are taken as they are.
+ */
+final class MapValues {
+
+    private MapValues() {}
+
+    static BsonValue toBson(Object value) {
+        if (value == null) {
+            return BsonNull.VALUE;
+        }
+        if (value instanceof BsonValue) {
+            return (BsonValue) value;
+        }
+        if (value instanceof String) {
+            return new BsonString((String) value);
+        }
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return new BsonInt32(((Number) value).intValue());
+        }
+        if (value instanceof Long) {
+            return new BsonInt64((Long) value);
+        }
+        if (value instanceof Double || value instanceof Float) {
+            return new BsonDouble(((Number) value).doubleValue());
+        }
+        if (value instanceof Boolean) {
+            return BsonBoolean.valueOf((Boolean) value);
+        }
+        if (value instanceof Map) {
+            BsonDocument document = new BsonDocument();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                document.put(String.valueOf(entry.getKey()), toBson(entry.getValue()));
+            }
+            return document;
+        }
+        if (value instanceof Iterable) {
+            List<BsonValue> values = new ArrayList<BsonValue>();
+            for (Object element : (Iterable<?>) value) {
+                values.add(toBson(element));
+            }
+            return new BsonArray(values);
+        }
+        if (value instanceof ObjectId) {
+            return new BsonObjectId((ObjectId) value);
+        }
+        if (value instanceof Date) {
+            return new BsonDateTime(((Date) value).getTime());
+        }
+        if (value instanceof Decimal128) {
+            return new BsonDecimal128((Decimal128) value);
+        }
+        if (value instanceof Binary) {
+            return new BsonBinary(((Binary) value).getType(), ((Binary) value).getData());
+        }
+        if (value instanceof byte[]) {
+            return new BsonBinary((byte[]) value);
+        }
+        if (value instanceof CodeWithScope) {
+            return new BsonJavaScriptWithScope(((CodeWithScope) value).getCode(), toBson(((CodeWithScope) value).getScope()).asDocument());
+        }
+        if (value instanceof Code) {
+            return new BsonJavaScript(((Code) value).getCode());
+        }
+        if (value instanceof Symbol) {
+            return new BsonSymbol(((Symbol) value).getSymbol());
+        }
+        if (value instanceof MinKey) {
+            return new BsonMinKey();
+        }
+        if (value instanceof MaxKey) {
+            return new BsonMaxKey();
+        }
+        throw new IllegalArgumentException("Can't convert " + value.getClass().getName() + " to a BSON value");
+    }
+
+    /**
+     * Converts a BSON value to the Java value the driver's {@code DocumentCodec} decodes it
+     * to. Types without a plain Java counterpart, e.g. timestamps, stay {@code BsonValue}s.
+     */
+    static Object fromBson(BsonValue value) {
+        switch (value.getBsonType()) {
+            case DOCUMENT: {
+                Document document = new Document();
+                for (Map.Entry<String, BsonValue> entry : value.asDocument().entrySet()) {
+                    document.put(entry.getKey(), fromBson(entry.getValue()));
+                }
+                return document;
+            }
+            case ARRAY: {
+                List<Object> list = new ArrayList<Object>(value.asArray().size());
+                for (BsonValue element : value.asArray()) {
+                    list.add(fromBson(element));
+                }
+                return list;
+            }
+            case NULL:
+                return null;
+            case STRING:
+                return value.asString().getValue();
+            case INT32:
+                return value.asInt32().getValue();
+            case INT64:
+                return value.asInt64().getValue();
+            case DOUBLE:
+                return value.asDouble().getValue();
+            case BOOLEAN:
+                return value.asBoolean().getValue();
+            case OBJECT_ID:
+                return value.asObjectId().getValue();
+            case DATE_TIME:
+                return new Date(value.asDateTime().getValue());
+            case DECIMAL128:
+                return value.asDecimal128().getValue();
+            case BINARY:
+                return new Binary(value.asBinary().getType(), value.asBinary().getData().clone());
+            case JAVASCRIPT:
+                return new Code(value.asJavaScript().getCode());
+            case JAVASCRIPT_WITH_SCOPE:
+                return new CodeWithScope(value.asJavaScriptWithScope().getCode(),
+                        (Document) fromBson(value.asJavaScriptWithScope().getScope()));
+            case SYMBOL:
+                return new Symbol(value.asSymbol().getSymbol());
+            case MIN_KEY:
+                return new MinKey();
+            case MAX_KEY:
+                return new MaxKey();
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * Copies the maps and lists of a Java tree, along with the mutable values they hold, so
+     * that patching the copy leaves the original alone.
+     */
+    static Object copy(Object value) {
+        if (value instanceof BsonValue) {
+            return cloneBsonValue((BsonValue) value);
+        }
+        if (value instanceof Map) {
+            Document document = new Document();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                document.put(String.valueOf(entry.getKey()), copy(entry.getValue()));
+            }
+            return document;
+        }
+        if (value instanceof List) {
+            List<Object> list = new ArrayList<Object>(((List<?>) value).size());
+            for (Object element : (List<?>) value) {
+                list.add(copy(element));
+            }
+            return list;
+        }
+        if (value instanceof Date) {
+            return new Date(((Date) value).getTime());
+        }
+        if (value instanceof Binary) {
+            return new Binary(((Binary) value).getType(), ((Binary) value).getData().clone());
+        }
+        if (value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        }
+        return value;
+    }
+
+    /**
+     * Converts the fields of {@code source} and {@code target} that differ into
+     * {@code sourceFields} and {@code targetFields}, descending into the documents both
+     * sides hold under the same name. Fields whose Java values are equal are skipped
+     * without being converted.
+     */
+    static void putChangedFields(Map<String, ?> source, Map<String, ?> target, BsonDocument sourceFields, BsonDocument targetFields) {
+        Set<String> unchanged = new HashSet<String>();
+        Map<String, BsonDocument> nestedTargets = new HashMap<String, BsonDocument>();
+        for (Map.Entry<String, ?> entry : source.entrySet()) {
+            String name = entry.getKey();
+            Object value = entry.getValue();
+            if (!target.containsKey(name)) {
+                sourceFields.put(name, toBson(value));
+                continue;
+            }
+            Object other = target.get(name);
+            if (value instanceof Map && other instanceof Map && !(value instanceof BsonValue) && !(other instanceof BsonValue)) {
+                BsonDocument nestedSource = new BsonDocument();
+                BsonDocument nestedTarget = new BsonDocument();
+                putChangedFields(asMap(value), asMap(other), nestedSource, nestedTarget);
+                if (nestedSource.isEmpty() && nestedTarget.isEmpty()) {
+                    unchanged.add(name);
+                } else {
+                    sourceFields.put(name, nestedSource);
+                    nestedTargets.put(name, nestedTarget);
+                }
+            } else if (equal(value, other)) {
+                unchanged.add(name);
+            } else {
+                sourceFields.put(name, toBson(value));
+            }
+        }
+        for (Map.Entry<String, ?> entry : target.entrySet()) {
+            String name = entry.getKey();
+            if (unchanged.contains(name)) {
+                continue;
+            }
+            BsonDocument nested = nestedTargets.get(name);
+            targetFields.put(name, nested != null ? nested : toBson(entry.getValue()));
+        }
+    }
+
+    private static boolean equal(Object value, Object other) {
+        if (value == null) {
+            return other == null;
+        }
+        if (value instanceof byte[] && other instanceof byte[]) {
+            return Arrays.equals((byte[]) value, (byte[]) other);
+        }
+        return value.equals(other);
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> asMap(Object value) {
+        return (Map<String, Object>) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<Object> asList(Object value) {
+        return (List<Object>) value;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file of records, each prefixed with its length and CRC-32, that is
+ * written and read through a memory mapping. The file is extended ahead of the records,
+ * with zeroes marking where they end. A record cut short by a crash fails its checksum and
+ * is discarded, together with anything after it, when the file is opened again.
+ */
+final class MappedLog implements Closeable {
+
+    private static final int HEADER = 8;
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private final List<Integer> offsets = new ArrayList<Integer>();
+    private int end;
+
+    MappedLog(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map((int) Math.min(Integer.MAX_VALUE, Math.max(INITIAL_CAPACITY, channel.size())));
+        while (end + HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(end);
+            if (length <= 0 || length > buffer.capacity() - end - HEADER || buffer.getInt(end + 4) != checksum(end + HEADER, length)) {
+                break;
+            }
+            offsets.add(end);
+            end += HEADER + length;
+        }
+    }
+
+    private void map(int capacity) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private int checksum(int offset, int length) {
+        CRC32 crc = new CRC32();
+        // called through Buffer and ByteBuffer, as the covariant overrides of later JDKs are missing on Java 8
+        ByteBuffer data = ((ByteBuffer) buffer).duplicate();
+        ((Buffer) data).limit(offset + length).position(offset);
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    /** Returns the number of records. */
+    int size() {
+        return offsets.size();
+    }
+
+    /** Appends a record, returning its index. */
+    int append(byte[] record) throws IOException {
+        long required = (long) end + HEADER + record.length + 4;
+        if (required > buffer.capacity()) {
+            if (required > Integer.MAX_VALUE) {
+                throw new IOException("Log is full");
+            }
+            // the previous mapping stays valid until it is garbage collected
+            map((int) Math.min(Integer.MAX_VALUE, Math.max(required, 2L * buffer.capacity())));
+        }
+        ByteBuffer data = ((ByteBuffer) buffer).duplicate();
+        ((Buffer) data).position(end + HEADER);
+        data.put(record);
+        buffer.putInt(end + 4, checksum(end + HEADER, record.length));
+        // ends the log in case older records follow, left over from before a crash
+        buffer.putInt(end + HEADER + record.length, 0);
+        // written last, so a record is only found once it is complete
+        buffer.putInt(end, record.length);
+        offsets.add(end);
+        end += HEADER + record.length;
+        return offsets.size() - 1;
+    }
+
+    /** Returns a copy of the record at {@code index}. */
+    byte[] read(int index) {
+        int offset = offsets.get(index);
+        byte[] record = new byte[buffer.getInt(offset)];
+        ByteBuffer data = ((ByteBuffer) buffer).duplicate();
+        ((Buffer) data).position(offset + HEADER);
+        data.get(record);
+        return record;
+    }
+
+    /** Writes the appended records through to the file. */
+    void force() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ebay.bsonpatch;
+
+import static com.ebay.bsonpatch.InPlaceApplyProcessor.cloneBsonValue;
+
+import java.util.Map;
+
+import org.bson.BsonDocument;
+import org.bson.BsonNull;
+import org.bson.BsonValue;
+
+/**
+ * Generation and application of <a href="https://tools.ietf.org/html/rfc7396">RFC 7396</a>
+ * merge patches. A merge patch mirrors the shape of the target document: fields set to
+ * {@code null} are removed, nested documents are merged recursively and any other value,
+ * arrays included, replaces what was there.
+ */
+final class MergePatch {
+
+    private MergePatch() {}
+
+    /**
+     * Computes the merge patch turning {@code source} into {@code target} in a single walk
+     * over both values.
+     *
+     * @throws IllegalArgumentException if {@code target} holds a {@code null} field value,
+     *  which a merge patch cannot express
+     */
+    static BsonValue diff(BsonValue source, BsonValue target) {
+        if (source.isDocument() && target.isDocument()) {
+            return diff(JsonPointer.ROOT, source.asDocument(), target.asDocument());
+        }
+        if (!target.isNull()) {
+            checkNoNullFields(JsonPointer.ROOT, target);
+        }
+        return target;
+    }
+
+    private static BsonDocument diff(JsonPointer path, BsonDocument source, BsonDocument target) {
+        BsonDocument patch = new BsonDocument();
+        for (String key : source.keySet()) {
+            if (!target.containsKey(key)) {
+                patch.put(key, BsonNull.VALUE);
+            }
+        }
+        for (Map.Entry<String, BsonValue> entry : target.entrySet()) {
+            BsonValue sourceValue = source.get(entry.getKey());
+            BsonValue targetValue = entry.getValue();
+            if (sourceValue != null && sourceValue.isDocument() && targetValue.isDocument()) {
+                BsonDocument nested = diff(path.append(entry.getKey()), sourceValue.asDocument(), targetValue.asDocument());
+                if (!nested.isEmpty()) {
+                    patch.put(entry.getKey(), nested);
+                }
+            } else if (sourceValue == null || !sourceValue.equals(targetValue)) {
+                checkNoNullFields(path.append(entry.getKey()), targetValue);
+                patch.put(entry.getKey(), targetValue);
+            }
+        }
+        return patch;
+    }
+
+    private static void checkNoNullFields(JsonPointer path, BsonValue value) {
+        if (value.isNull()) {
+            throw new IllegalArgumentException("null value at " + path + " cannot be expressed in a merge patch");
+        }
+        if (value.isDocument()) {
+            for (Map.Entry<String, BsonValue> entry : value.asDocument().entrySet()) {
+                checkNoNullFields(path.append(entry.getKey()), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Merges {@code patch} into {@code target}, mutating it where both are documents.
+     *
+     * @return the merged value, which is {@code target} itself if {@code patch} is a document
+     *  and {@code target} was one too
+     */
+    static BsonValue apply(BsonValue target, BsonValue patch) {
+        if (!patch.isDocument()) {
+            return cloneBsonValue(patch);
+        }
+        BsonDocument document = target != null && target.isDocument() ? target.asDocument() : new BsonDocument();
+        for (Map.Entry<String, BsonValue> entry : patch.asDocument().entrySet()) {
+            if (entry.getValue().isNull()) {
+                document.remove(entry.getKey());
+            } else {
+                document.put(entry.getKey(), apply(document.get(entry.getKey()), entry.getValue()));
+            }
+        }
+        return document;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ebay.bsonpatch;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+
+/**
+ * Translates RFC 6902 patches into MongoDB update documents, so that a change can be
+ * persisted with {@code updateOne} instead of replacing the whole document.
+ *
+ * <p>Changes to document fields become {@code $set} and {@code $unset} entries. Arrays
+ * whose elements were only replaced in place are updated element by element. Arrays that
+ * grew by a single run of inserted elements become a {@code $push} (with {@code $position}
+ * unless the elements were appended), and arrays that only lost strings, booleans or object
+ * ids become a {@code $pull}. Any other structural change to an array falls back to a
+ * {@code $set} of the whole array. Paths that cannot be addressed with dot notation (field
+ * names containing {@code .} or starting with {@code $}) fall back to a {@code $set} of
+ * their closest addressable ancestor.
+ *
+ * @since 0.5.0
+ */
+public final class MongoUpdate {
+
+    private static final String ID = "_id";
+
+    private MongoUpdate() {}
+
+    /**
+     * Translates a patch computed against {@code source} into an update document.
+     *
+     * @return the update document, which is empty if the patch does not change anything, or
+     *  {@code null} if the change can only be expressed by replacing the whole document
+     *  (for example because it replaces the root or modifies {@code _id})
+     * @throws BsonPatchApplicationException if the patch cannot be applied to {@code source}
+     */
+    public static BsonDocument fromPatch(BsonArray patch, BsonDocument source) {
+        BsonValue target = BsonPatch.apply(patch, source);
+        if (!target.isDocument()) {
+            return null;
+        }
+        return translate(patch, source, target.asDocument());
+    }
+
+    /**
+     * Computes the update document turning {@code source} into {@code target}.
+     *
+     * @return the update document, which is empty if both documents are equal, or {@code null}
+     *  if the change can only be expressed by replacing the whole document
+     */
+    public static BsonDocument fromDiff(BsonDocument source, BsonDocument target) {
+        return translate(BsonDiff.asBson(source, target, DiffFlags.dontNormalizeOpIntoMoveAndCopy()), source, target);
+    }
+
+    private static BsonDocument translate(BsonArray patch, BsonDocument source, BsonDocument target) {
+        // paths whose value is set or unset as a whole, and arrays whose elements were inserted or removed
+        Map<JsonPointer, Boolean> claims = new LinkedHashMap<JsonPointer, Boolean>();
+        for (BsonValue bsonNode : patch) {
+            if (!bsonNode.isDocument()) throw new InvalidBsonPatchException("Invalid BSON Patch payload (not an object)");
+            BsonDocument node = bsonNode.asDocument();
+            Operation operation = Operation.fromRfcName(getString(node, Constants.OP));
+            JsonPointer path = JsonPointer.parse(getString(node, Constants.PATH));
+            switch (operation) {
+                case MOVE:
+                    if (!claim(claims, JsonPointer.parse(getString(node, Constants.FROM)), true, source, target)) return null;
+                    if (!claim(claims, path, true, source, target)) return null;
+                    break;
+                case ADD:
+                case REMOVE:
+                case COPY:
+                    if (!claim(claims, path, true, source, target)) return null;
+                    break;
+                case REPLACE:
+                    if (!claim(claims, path, false, source, target)) return null;
+                    break;
+                default:
+                    // tests do not change anything
+            }
+        }
+
+        BsonDocument set = new BsonDocument();
+        BsonDocument unset = new BsonDocument();
+        BsonDocument push = new BsonDocument();
+        BsonDocument pull = new BsonDocument();
+        for (Map.Entry<JsonPointer, Boolean> claim : claims.entrySet()) {
+            JsonPointer path = claim.getKey();
+            if (isCovered(path, claims)) continue;
+
+            String field = toDotNotation(path);
+            BsonValue sourceValue = evaluate(path, source);
+            BsonValue targetValue = evaluate(path, target);
+            if (targetValue == null) {
+                if (sourceValue != null) unset.put(field, new BsonString(""));
+            } else if (claim.getValue() && sourceValue != null && sourceValue.isArray() && targetValue.isArray()) {
+                translateArray(field, sourceValue.asArray(), targetValue.asArray(), set, push, pull);
+            } else if (!targetValue.equals(sourceValue)) {
+                set.put(field, targetValue);
+            }
+        }
+
+        BsonDocument update = new BsonDocument();
+        if (!set.isEmpty()) update.put("$set", set);
+        if (!unset.isEmpty()) update.put("$unset", unset);
+        if (!push.isEmpty()) update.put("$push", push);
+        if (!pull.isEmpty()) update.put("$pull", pull);
+        return update;
+    }
+
+    /**
+     * Records the part of the document changed by an operation at {@code path}: the array
+     * holding it if elements were inserted or removed, the value at the path otherwise.
+     *
+     * @return {@code false} if the change cannot be expressed as an update
+     */
+    private static boolean claim(Map<JsonPointer, Boolean> claims, JsonPointer path, boolean structural,
+            BsonDocument source, BsonDocument target) {
+        if (path.isRoot()) return false;
+
+        JsonPointer parent = path.getParent();
+        boolean inArray = path.last().isArrayIndex() && (isArray(parent, source) || isArray(parent, target));
+        JsonPointer claimed = inArray && structural ? parent : path;
+        boolean arrayClaim = inArray && structural;
+
+        // only the leading part of the path which can be written in dot notation is usable
+        List<JsonPointer.RefToken> tokens = claimed.decompose();
+        for (int i = 0; i < tokens.size(); i++) {
+            if (!isAddressable(tokens.get(i).getField())) {
+                claimed = new JsonPointer(tokens.subList(0, i));
+                arrayClaim = false;
+                break;
+            }
+        }
+        if (claimed.isRoot() || ID.equals(claimed.get(0).getField())) return false;
+
+        // a plain claim covers everything an array claim on the same path would
+        Boolean existing = claims.get(claimed);
+        if (existing == null || (existing && !arrayClaim)) {
+            claims.put(claimed, arrayClaim);
+        }
+        return true;
+    }
+
+    private static boolean isCovered(JsonPointer path, Map<JsonPointer, Boolean> claims) {
+        List<JsonPointer.RefToken> tokens = path.decompose();
+        for (int i = 1; i < tokens.size(); i++) {
+            if (claims.containsKey(new JsonPointer(tokens.subList(0, i)))) return true;
+        }
+        return false;
+    }
+
+    private static void translateArray(String field, BsonArray source, BsonArray target,
+            BsonDocument set, BsonDocument push, BsonDocument pull) {
+        int sourceSize = source.size();
+        int targetSize = target.size();
+        int prefix = 0;
+        while (prefix < sourceSize && prefix < targetSize && source.get(prefix).equals(target.get(prefix))) {
+            prefix++;
+        }
+        int suffix = 0;
+        int maxSuffix = Math.min(sourceSize, targetSize) - prefix;
+        while (suffix < maxSuffix && source.get(sourceSize - 1 - suffix).equals(target.get(targetSize - 1 - suffix))) {
+            suffix++;
+        }
+
+        if (sourceSize == targetSize && prefix == sourceSize) {
+            return;
+        }
+        if (targetSize > sourceSize && prefix + suffix == sourceSize) {
+            BsonDocument each = new BsonDocument("$each", new BsonArray(target.subList(prefix, targetSize - suffix)));
+            if (prefix < sourceSize) {
+                each.put("$position", new BsonInt32(prefix));
+            }
+            push.put(field, each);
+            return;
+        }
+        if (targetSize < sourceSize && prefix + suffix == targetSize) {
+            List<BsonValue> removed = source.subList(prefix, sourceSize - suffix);
+            if (isPullable(source, removed, target)) {
+                pull.put(field, new BsonDocument("$in", new BsonArray(new ArrayList<BsonValue>(new LinkedHashSet<BsonValue>(removed)))));
+                return;
+            }
+        }
+        set.put(field, target);
+    }
+
+    // $pull removes every element equal to a removed one, and compares numbers and documents
+    // differently than BsonValue.equals, so it is only used where the outcome is unambiguous
+    private static boolean isPullable(BsonArray source, List<BsonValue> removed, BsonArray target) {
+        Set<BsonValue> values = new HashSet<BsonValue>();
+        for (BsonValue value : removed) {
+            if (!(value.isString() || value.isBoolean() || value.isObjectId())) return false;
+            values.add(value);
+        }
+        int targetIdx = 0;
+        for (BsonValue value : source) {
+            if (values.contains(value)) continue;
+            if (targetIdx >= target.size() || !value.equals(target.get(targetIdx++))) return false;
+        }
+        return targetIdx == target.size();
+    }
+
+    private static boolean isAddressable(String field) {
+        return !field.isEmpty() && field.indexOf('.') < 0 && field.charAt(0) != '$';
+    }
+
+    private static String toDotNotation(JsonPointer path) {
+        StringBuilder sb = new StringBuilder();
+        for (JsonPointer.RefToken token : path.decompose()) {
+            if (sb.length() > 0) sb.append('.');
+            sb.append(token.getField());
+        }
+        return sb.toString();
+    }
+
+    private static boolean isArray(JsonPointer path, BsonValue document) {
+        BsonValue value = evaluate(path, document);
+        return value != null && value.isArray();
+    }
+
+    private static BsonValue evaluate(JsonPointer path, BsonValue document) {
+        try {
+            return path.evaluate(document);
+        } catch (JsonPointerEvaluationException e) {
+            return null;
+        }
+    }
+
+    private static String getString(BsonDocument node, String attr) {
+        BsonValue child = node.get(attr);
+        if (child == null || !child.isString())
+            throw new InvalidBsonPatchException("Invalid BSON Patch payload (missing '" + attr + "' field)");
+        return child.asString().getValue();
+    }
+}
@@ -23,7 +23,12 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
-enum Operation {
+/**
+ * The operations of RFC 6902.
+ *
+ * @since 0.5.0
+ */
+public enum Operation {
     ADD("add"),
     REMOVE("remove"),
     REPLACE("replace"),
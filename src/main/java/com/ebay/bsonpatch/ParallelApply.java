@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.BsonArray;
+import org.bson.BsonValue;
+
+/**
+ * Applies the independent groups of operations found by {@link PatchAnalysis} in place on
+ * the common fork/join pool. Each group is applied in order by one thread; groups only
+ * change containers no other group reads or changes.
+ */
+final class ParallelApply {
+
+    /** Groups are split among tasks until a task has no more than this many operations. */
+    private static final int OPERATIONS_PER_TASK = 64;
+
+    private final List<BsonPatch.DecodedOperation> operations;
+    private final List<List<Integer>> groups;
+    // the number of operations in the groups before each group
+    private final int[] offsets;
+    private final BsonValue source;
+    private final EnumSet<CompatibilityFlags> flags;
+    private final BsonPatchListener listener;
+    private final AtomicInteger applied = new AtomicInteger();
+    // the operation that failed in each group and its exception, written by the task applying it
+    private final int[] failedAt;
+    private final RuntimeException[] failures;
+
+    private ParallelApply(List<BsonPatch.DecodedOperation> operations, BsonValue source, EnumSet<CompatibilityFlags> flags) {
+        this.operations = operations;
+        this.groups = new PatchAnalysis(operations).getGroups();
+        this.offsets = new int[groups.size() + 1];
+        for (int i = 0; i < groups.size(); i++) {
+            offsets[i + 1] = offsets[i] + groups.get(i).size();
+        }
+        this.source = source;
+        this.flags = flags;
+        this.listener = BsonPatchListeners.get();
+        this.failedAt = new int[groups.size()];
+        this.failures = new RuntimeException[groups.size()];
+    }
+
+    /**
+     * Applies {@code patch} to {@code source}. All operations are decoded before any is
+     * applied. If operations fail, the other groups are still applied and the failure of the
+     * first operation in the patch is thrown.
+     */
+    static void apply(BsonArray patch, BsonValue source, EnumSet<CompatibilityFlags> flags) {
+        List<BsonPatch.DecodedOperation> operations = new ArrayList<BsonPatch.DecodedOperation>(patch.size());
+        for (BsonValue operation : patch) {
+            operations.add(BsonPatch.decode(operation, flags));
+        }
+        new ParallelApply(operations, source, flags).run();
+    }
+
+    private void run() {
+        Object flightEvent = FlightRecorder.beginApply();
+        if (groups.size() == 1) {
+            applyGroup(0);
+        } else if (groups.size() > 1) {
+            ForkJoinPool.commonPool().invoke(new Task(0, groups.size()));
+        }
+        RuntimeException failure = null;
+        int first = Integer.MAX_VALUE;
+        for (int i = 0; i < failures.length; i++) {
+            if (failures[i] != null && failedAt[i] < first) {
+                first = failedAt[i];
+                failure = failures[i];
+            }
+        }
+        FlightRecorder.commitApply(flightEvent, true, operations.size(), applied.get(), failure);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void applyGroup(int group) {
+        InPlaceApplyProcessor processor = new InPlaceApplyProcessor(source, flags);
+        for (int index : groups.get(group)) {
+            BsonPatch.DecodedOperation operation = operations.get(index);
+            try {
+                BsonPatch.perform(processor, operation.operation, operation.path, operation.fromPath, operation.value, listener);
+            } catch (RuntimeException e) {
+                failedAt[group] = index;
+                failures[group] = e;
+                return;
+            }
+            applied.incrementAndGet();
+        }
+    }
+
+    private final class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        Task(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1 || offsets[to] - offsets[from] <= OPERATIONS_PER_TASK) {
+                for (int group = from; group < to; group++) {
+                    applyGroup(group);
+                }
+                return;
+            }
+            // split where half of the operations are on either side
+            int half = (offsets[from] + offsets[to]) / 2;
+            int split = from + 1;
+            while (split < to - 1 && offsets[split + 1] <= half) {
+                split++;
+            }
+            invokeAll(new Task(from, split), new Task(split, to));
+        }
+    }
+}
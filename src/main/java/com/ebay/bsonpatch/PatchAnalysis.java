@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonArray;
+import org.bson.BsonValue;
+
+/**
+ * Splits the operations of a patch into groups that can be applied independently of each
+ * other, in any order or at the same time, with the same outcome as applying the whole
+ * patch in order.
+ * <p>
+ * An operation changes the document or array holding the value at its path, and reads the
+ * one holding the value at its {@code from} path, if any. Two operations are put into the
+ * same group when the path to one of these containers is a prefix of, or the same as, the
+ * path to a container of the other. This covers operations on the same field, on elements
+ * of the same array, whose indexes shift as elements are added and removed, and moves or
+ * copies between subtrees. Operations on different fields of the same document share a
+ * group as well, since they change the same container.
+ *
+ * @since 0.5.0
+ */
+public final class PatchAnalysis {
+
+    private final int[] groupOf;
+    private final List<List<Integer>> groups;
+
+    PatchAnalysis(List<BsonPatch.DecodedOperation> operations) {
+        int[] parents = new int[operations.size()];
+        Node root = new Node();
+        for (int i = 0; i < operations.size(); i++) {
+            parents[i] = i;
+            BsonPatch.DecodedOperation operation = operations.get(i);
+            root.insert(container(operation.path), i);
+            if (operation.fromPath != null) {
+                root.insert(container(operation.fromPath), i);
+            }
+        }
+        root.union(-1, parents);
+
+        groupOf = new int[operations.size()];
+        Map<Integer, List<Integer>> byRoot = new LinkedHashMap<Integer, List<Integer>>();
+        for (int i = 0; i < operations.size(); i++) {
+            int representative = find(parents, i);
+            List<Integer> group = byRoot.get(representative);
+            if (group == null) {
+                group = new ArrayList<Integer>();
+                byRoot.put(representative, group);
+            }
+            group.add(i);
+        }
+        List<List<Integer>> groups = new ArrayList<List<Integer>>(byRoot.size());
+        for (List<Integer> group : byRoot.values()) {
+            for (int operation : group) {
+                groupOf[operation] = groups.size();
+            }
+            groups.add(Collections.unmodifiableList(group));
+        }
+        this.groups = Collections.unmodifiableList(groups);
+    }
+
+    /**
+     * Analyzes {@code patch}.
+     *
+     * @throws InvalidBsonPatchException if the patch is malformed
+     */
+    public static PatchAnalysis analyze(BsonArray patch) throws InvalidBsonPatchException {
+        List<BsonPatch.DecodedOperation> operations = new ArrayList<BsonPatch.DecodedOperation>(patch.size());
+        for (BsonValue operation : patch) {
+            operations.add(BsonPatch.decode(operation, CompatibilityFlags.defaults()));
+        }
+        return new PatchAnalysis(operations);
+    }
+
+    private static JsonPointer container(JsonPointer path) {
+        return path.isRoot() ? path : path.getParent();
+    }
+
+    /** A node of the trie of container paths, with the operations on that container. */
+    private static final class Node {
+        private Map<JsonPointer.RefToken, Node> children;
+        private List<Integer> operations;
+
+        void insert(JsonPointer path, int operation) {
+            Node node = this;
+            for (int i = 0; i < path.size(); i++) {
+                if (node.children == null) {
+                    node.children = new HashMap<JsonPointer.RefToken, Node>();
+                }
+                Node child = node.children.get(path.get(i));
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(path.get(i), child);
+                }
+                node = child;
+            }
+            if (node.operations == null) {
+                node.operations = new ArrayList<Integer>();
+            }
+            node.operations.add(operation);
+        }
+
+        /** Joins the operations on this container and those below it with {@code above}, an operation above, if any. */
+        void union(int above, int[] parents) {
+            if (operations != null) {
+                for (int operation : operations) {
+                    if (above < 0) {
+                        above = operation;
+                    } else {
+                        parents[find(parents, operation)] = find(parents, above);
+                    }
+                }
+            }
+            if (children != null) {
+                for (Node child : children.values()) {
+                    child.union(above, parents);
+                }
+            }
+        }
+    }
+
+    private static int find(int[] parents, int operation) {
+        while (parents[operation] != operation) {
+            parents[operation] = parents[parents[operation]];
+            operation = parents[operation];
+        }
+        return operation;
+    }
+
+    /** Returns the number of operations analyzed. */
+    public int getOperationCount() {
+        return groupOf.length;
+    }
+
+    /**
+     * Returns the groups of operations, as indexes into the patch in ascending order. Groups
+     * are ordered by their first operation.
+     */
+    public List<List<Integer>> getGroups() {
+        return groups;
+    }
+
+    /** Returns whether two operations, given by their index in the patch, are in different groups. */
+    public boolean areIndependent(int first, int second) {
+        return groupOf[first] != groupOf[second];
+    }
+}
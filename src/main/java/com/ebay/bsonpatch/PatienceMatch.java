@@ -0,0 +1,268 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bson.BsonArray;
+import org.bson.BsonValue;
+
+/**
+ * Matches the elements of two arrays the way patience diff does. Elements occurring once in
+ * each array are paired up, as Heckel proposed, and the longest run of pairs in the same
+ * order in both arrays is kept in place; the other pairs are moves. Between the elements
+ * kept in place, equal elements at the start and end are kept in place too and the rest
+ * are paired by position, so they can be diffed. Whatever is left is removed or inserted.
+ * Matching takes O(n log n) time besides hashing the elements.
+ * <p>
+ * To place the elements, every element gets a slot in a sequence that holds both arrays:
+ * the slots of the source elements, in order, with the slots the moved and inserted elements
+ * take in the target following those of the elements kept in place before them. Walking the
+ * slots in order turns the source into the target, one position after the other.
+ */
+final class PatienceMatch {
+
+    /** Pairs of unique elements must make up at least this share of the shorter array. */
+    private static final double MIN_UNIQUE_SHARE = 0.5;
+
+    /** The target index of each source element, or {@code -1} if it is removed. */
+    final int[] targetOf;
+    /** The source index of each target element, or {@code -1} if it is inserted. */
+    final int[] sourceOf;
+    /** Whether each source element stays in place; those not removed otherwise move. */
+    final boolean[] kept;
+    /** Whether each source element kept in place was paired with a different element. */
+    final boolean[] changed;
+    /** The slot of each source element. */
+    final int[] sourceSlot;
+    /** The source index {@code i} of the element in each slot, or {@code -1 - j} for the slot of target element {@code j}. */
+    int[] slots;
+
+    private PatienceMatch(int sourceSize, int targetSize) {
+        targetOf = new int[sourceSize];
+        sourceOf = new int[targetSize];
+        kept = new boolean[sourceSize];
+        changed = new boolean[sourceSize];
+        sourceSlot = new int[sourceSize];
+        Arrays.fill(targetOf, -1);
+        Arrays.fill(sourceOf, -1);
+    }
+
+    /**
+     * Matches {@code source} and {@code target}, or returns {@code null} if too few of their
+     * elements are unique for patience diff to find a good match.
+     */
+    static PatienceMatch match(BsonArray source, BsonArray target) {
+        int n = source.size();
+        int m = target.size();
+        if (n == 0 || m == 0) {
+            return null;
+        }
+        // per distinct value: occurrences in source, last source index, occurrences in target, last target index
+        Map<BsonValue, int[]> occurrences = new HashMap<BsonValue, int[]>();
+        int[][] sourceOccurrences = new int[n][];
+        for (int i = 0; i < n; i++) {
+            int[] occurrence = occurrences.get(source.get(i));
+            if (occurrence == null) {
+                occurrence = new int[] {0, -1, 0, -1};
+                occurrences.put(source.get(i), occurrence);
+            }
+            occurrence[0]++;
+            occurrence[1] = i;
+            sourceOccurrences[i] = occurrence;
+        }
+        for (int j = 0; j < m; j++) {
+            int[] occurrence = occurrences.get(target.get(j));
+            if (occurrence != null) {
+                occurrence[2]++;
+                occurrence[3] = j;
+            }
+        }
+
+        // the pairs of unique elements, in source order
+        int[] pairSource = new int[Math.min(n, m)];
+        int[] pairTarget = new int[pairSource.length];
+        int pairs = 0;
+        for (int i = 0; i < n; i++) {
+            int[] occurrence = sourceOccurrences[i];
+            if (occurrence[0] == 1 && occurrence[2] == 1) {
+                pairSource[pairs] = i;
+                pairTarget[pairs++] = occurrence[3];
+            }
+        }
+        if (pairs < MIN_UNIQUE_SHARE * Math.min(n, m)) {
+            return null;
+        }
+
+        PatienceMatch match = new PatienceMatch(n, m);
+        for (int p = 0; p < pairs; p++) {
+            match.pair(pairSource[p], pairTarget[p]);
+        }
+        int[] anchors = longestIncreasingRun(pairTarget, pairs);
+        int previousSource = -1;
+        int previousTarget = -1;
+        for (int a = 0; a <= anchors.length; a++) {
+            int nextSource = a < anchors.length ? pairSource[anchors[a]] : n;
+            int nextTarget = a < anchors.length ? pairTarget[anchors[a]] : m;
+            match.matchGap(source, target, previousSource + 1, nextSource, previousTarget + 1, nextTarget);
+            if (a < anchors.length) {
+                match.kept[nextSource] = true;
+            }
+            previousSource = nextSource;
+            previousTarget = nextTarget;
+        }
+        match.assignSlots();
+        return match;
+    }
+
+    private void pair(int i, int j) {
+        targetOf[i] = j;
+        sourceOf[j] = i;
+    }
+
+    /**
+     * Keeps in place the unpaired elements of {@code source[sourceFrom, sourceTo)} and
+     * {@code target[targetFrom, targetTo)} that are equal at the start and end, then pairs the
+     * others by position.
+     */
+    private void matchGap(BsonArray source, BsonArray target, int sourceFrom, int sourceTo, int targetFrom, int targetTo) {
+        int[] sources = new int[sourceTo - sourceFrom];
+        int sourceCount = 0;
+        for (int i = sourceFrom; i < sourceTo; i++) {
+            if (targetOf[i] < 0) {
+                sources[sourceCount++] = i;
+            }
+        }
+        int[] targets = new int[targetTo - targetFrom];
+        int targetCount = 0;
+        for (int j = targetFrom; j < targetTo; j++) {
+            if (sourceOf[j] < 0) {
+                targets[targetCount++] = j;
+            }
+        }
+        int prefix = 0;
+        while (prefix < sourceCount && prefix < targetCount && source.get(sources[prefix]).equals(target.get(targets[prefix]))) {
+            keep(sources[prefix], targets[prefix], false);
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < sourceCount - prefix && suffix < targetCount - prefix
+                && source.get(sources[sourceCount - 1 - suffix]).equals(target.get(targets[targetCount - 1 - suffix]))) {
+            keep(sources[sourceCount - 1 - suffix], targets[targetCount - 1 - suffix], false);
+            suffix++;
+        }
+        for (int k = prefix; k < sourceCount - suffix && k < targetCount - suffix; k++) {
+            keep(sources[k], targets[k], true);
+        }
+    }
+
+    private void assignSlots() {
+        int keptCount = 0;
+        for (boolean k : kept) {
+            if (k) {
+                keptCount++;
+            }
+        }
+        slots = new int[targetOf.length + sourceOf.length - keptCount];
+        int slot = 0;
+        for (int j = 0; j < sourceOf.length && !isKeptTarget(j); j++) {
+            slots[slot++] = -1 - j;
+        }
+        for (int i = 0; i < targetOf.length; i++) {
+            sourceSlot[i] = slot;
+            slots[slot++] = i;
+            if (kept[i]) {
+                for (int j = targetOf[i] + 1; j < sourceOf.length && !isKeptTarget(j); j++) {
+                    slots[slot++] = -1 - j;
+                }
+            }
+        }
+    }
+
+    private boolean isKeptTarget(int j) {
+        return sourceOf[j] >= 0 && kept[sourceOf[j]];
+    }
+
+    /** Counts the occupied slots before a slot, as a Fenwick tree. */
+    static final class Positions {
+        private final int[] tree;
+
+        Positions(int slots) {
+            tree = new int[slots + 1];
+        }
+
+        void add(int slot, int delta) {
+            for (int k = slot + 1; k < tree.length; k += k & -k) {
+                tree[k] += delta;
+            }
+        }
+
+        /** Returns the index in the array of the element in {@code slot}. */
+        int before(int slot) {
+            int count = 0;
+            for (int k = slot; k > 0; k -= k & -k) {
+                count += tree[k];
+            }
+            return count;
+        }
+    }
+
+    private void keep(int i, int j, boolean different) {
+        pair(i, j);
+        kept[i] = true;
+        changed[i] = different;
+    }
+
+    /**
+     * Returns the indexes of a longest strictly increasing subsequence of {@code values[0, count)},
+     * found by patience sorting.
+     */
+    private static int[] longestIncreasingRun(int[] values, int count) {
+        // tails[k] is the index of the smallest value ending an increasing run of length k + 1
+        int[] tails = new int[count];
+        int[] previous = new int[count];
+        int length = 0;
+        for (int p = 0; p < count; p++) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (values[tails[middle]] < values[p]) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            previous[p] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = p;
+            if (low == length) {
+                length++;
+            }
+        }
+        int[] run = new int[length];
+        for (int k = length - 1, p = length > 0 ? tails[length - 1] : -1; k >= 0; k--, p = previous[p]) {
+            run[k] = p;
+        }
+        return run;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ebay.bsonpatch;
+
+import org.bson.BsonArray;
+
+/**
+ * A patch together with the patch that undoes it, as computed by
+ * {@link BsonDiff#asReversibleBson(org.bson.BsonValue, org.bson.BsonValue)}.
+ *
+ * @since 0.5.0
+ */
+public final class ReversiblePatch {
+    private final BsonArray patch;
+    private final BsonArray inverse;
+
+    ReversiblePatch(BsonArray patch, BsonArray inverse) {
+        this.patch = patch;
+        this.inverse = inverse;
+    }
+
+    /** Returns the patch transforming the source into the target. */
+    public BsonArray getPatch() {
+        return patch;
+    }
+
+    /** Returns the patch transforming the target back into the source. */
+    public BsonArray getInverse() {
+        return inverse;
+    }
+}
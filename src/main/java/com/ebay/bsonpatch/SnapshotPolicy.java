@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+/**
+ * Decides when a {@link BsonVersionStore} stores a version as a full snapshot instead of a
+ * patch. Snapshots bound the number of patches replayed to rebuild a version, patches keep
+ * the store small.
+ *
+ * @since 0.5.0
+ */
+public final class SnapshotPolicy {
+
+    private final int versions;
+    private final boolean patchBytes;
+
+    private SnapshotPolicy(int versions, boolean patchBytes) {
+        this.versions = versions;
+        this.patchBytes = patchBytes;
+    }
+
+    /**
+     * Takes a snapshot every {@code versions} versions, so at most {@code versions - 1}
+     * patches are replayed.
+     */
+    public static SnapshotPolicy every(int versions) {
+        if (versions <= 0) {
+            throw new IllegalArgumentException("versions must be positive: " + versions);
+        }
+        return new SnapshotPolicy(versions, false);
+    }
+
+    /**
+     * Takes a snapshot once the patches since the last one would be larger than the
+     * document, so replaying them reads no more than a snapshot would take.
+     */
+    public static SnapshotPolicy whenPatchesOutgrowDocument() {
+        return new SnapshotPolicy(Integer.MAX_VALUE, true);
+    }
+
+    /** Takes a snapshot every 100 versions or when the patches outgrow the document. */
+    public static SnapshotPolicy defaults() {
+        return every(100).or(whenPatchesOutgrowDocument());
+    }
+
+    /** Returns a policy taking a snapshot whenever this policy or {@code other} would. */
+    public SnapshotPolicy or(SnapshotPolicy other) {
+        return new SnapshotPolicy(Math.min(versions, other.versions), patchBytes || other.patchBytes);
+    }
+
+    /**
+     * @param versionsSinceSnapshot the versions since the last snapshot, this one included
+     * @param patchBytesSinceSnapshot the size of the patches since the last snapshot, this one included
+     * @param documentBytes the size of the document
+     */
+    boolean shouldSnapshot(int versionsSinceSnapshot, long patchBytesSinceSnapshot, long documentBytes) {
+        return versionsSinceSnapshot >= versions || (patchBytes && patchBytesSinceSnapshot > documentBytes);
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+
+import org.bson.BsonArray;
+import org.bson.BsonValue;
+
+/**
+ * A view of a {@link BsonArray} inside a {@link TrackedBsonDocument}, recording each change
+ * made through it into the patch of that document. Elements are addressed by their index
+ * at the time of the change. Iterators and sub-lists are read-only.
+ *
+ * @since 0.5.0
+ */
+public class TrackedBsonArray extends BsonArray {
+
+    private final BsonArray array;
+    private final ChangeLog log;
+    private final BsonValue parent;
+    private final String field;
+    boolean detached;
+    // the views of the elements read, by index, or null until one is read
+    private List<BsonValue> views;
+
+    TrackedBsonArray(BsonArray array, ChangeLog log, BsonValue parent, String field) {
+        this.array = array;
+        this.log = log;
+        this.parent = parent;
+        this.field = field;
+    }
+
+    /** Returns the array this view changes. */
+    public BsonArray unwrap() {
+        return array;
+    }
+
+    JsonPointer path() {
+        return detached ? null : ChangeLog.pathOf(parent, field, this);
+    }
+
+    int indexOfView(BsonValue view) {
+        for (int i = 0; i < views.size(); i++) {
+            if (views.get(i) == view) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("Element is not part of the array");
+    }
+
+    private void record(Operation operation, int index, BsonValue value) {
+        JsonPointer path = path();
+        if (path != null) {
+            log.record(operation, path.append(index), value, operation != Operation.REPLACE);
+        }
+    }
+
+    private BsonValue view(int index, BsonValue value) {
+        if (!(value.isDocument() || value.isArray())) {
+            return value;
+        }
+        if (views == null) {
+            views = new ArrayList<BsonValue>(Collections.<BsonValue>nCopies(array.size(), null));
+        }
+        BsonValue view = views.get(index);
+        if (view == null || (view.isDocument() ? ((TrackedBsonDocument) view).unwrap() : ((TrackedBsonArray) view).array) != value) {
+            ChangeLog.detach(view);
+            view = value.isDocument()
+                    ? new TrackedBsonDocument(value.asDocument(), log, this, null)
+                    : new TrackedBsonArray(value.asArray(), log, this, null);
+            views.set(index, view);
+        }
+        return view;
+    }
+
+    private List<BsonValue> readOnly() {
+        return new AbstractList<BsonValue>() {
+            @Override
+            public BsonValue get(int index) {
+                return TrackedBsonArray.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return array.size();
+            }
+        };
+    }
+
+    @Override
+    public List<BsonValue> getValues() {
+        return readOnly();
+    }
+
+    @Override
+    public int size() {
+        return array.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return array.isEmpty();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return array.contains(o);
+    }
+
+    @Override
+    public boolean containsAll(Collection<?> c) {
+        return array.containsAll(c);
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        return array.indexOf(o);
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return array.lastIndexOf(o);
+    }
+
+    @Override
+    public Iterator<BsonValue> iterator() {
+        return readOnly().iterator();
+    }
+
+    @Override
+    public ListIterator<BsonValue> listIterator() {
+        return readOnly().listIterator();
+    }
+
+    @Override
+    public ListIterator<BsonValue> listIterator(int index) {
+        return readOnly().listIterator(index);
+    }
+
+    @Override
+    public List<BsonValue> subList(int fromIndex, int toIndex) {
+        return readOnly().subList(fromIndex, toIndex);
+    }
+
+    @Override
+    public Object[] toArray() {
+        return readOnly().toArray();
+    }
+
+    @Override
+    public <T> T[] toArray(T[] a) {
+        return readOnly().toArray(a);
+    }
+
+    @Override
+    public BsonValue get(int index) {
+        return view(index, array.get(index));
+    }
+
+    @Override
+    public BsonValue set(int index, BsonValue element) {
+        BsonValue stored = ChangeLog.unwrap(element);
+        BsonValue previous = array.set(index, stored);
+        if (views != null) {
+            ChangeLog.detach(views.set(index, null));
+        }
+        record(Operation.REPLACE, index, stored);
+        return previous;
+    }
+
+    @Override
+    public void add(int index, BsonValue element) {
+        BsonValue stored = ChangeLog.unwrap(element);
+        array.add(index, stored);
+        if (views != null) {
+            views.add(index, null);
+        }
+        record(Operation.ADD, index, stored);
+    }
+
+    @Override
+    public boolean add(BsonValue bsonValue) {
+        add(array.size(), bsonValue);
+        return true;
+    }
+
+    @Override
+    public BsonValue remove(int index) {
+        BsonValue previous = array.remove(index);
+        if (views != null) {
+            ChangeLog.detach(views.remove(index));
+        }
+        record(Operation.REMOVE, index, null);
+        return previous;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        int index = array.indexOf(o);
+        if (index < 0) {
+            return false;
+        }
+        remove(index);
+        return true;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends BsonValue> c) {
+        return addAll(array.size(), c);
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends BsonValue> c) {
+        if (index < 0 || index > array.size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + array.size());
+        }
+        for (BsonValue value : new ArrayList<BsonValue>(c)) {
+            add(index++, value);
+        }
+        return !c.isEmpty();
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        return removeMatching(c, true);
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+        return removeMatching(c, false);
+    }
+
+    private boolean removeMatching(Collection<?> c, boolean contained) {
+        boolean changed = false;
+        // from the end, so the indexes of the elements still to check do not shift
+        for (int i = array.size() - 1; i >= 0; i--) {
+            if (c.contains(array.get(i)) == contained) {
+                remove(i);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = array.size() - 1; i >= 0; i--) {
+            remove(i);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return array.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        return array.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return array.toString();
+    }
+
+    @Override
+    public BsonArray clone() {
+        return array.clone();
+    }
+}
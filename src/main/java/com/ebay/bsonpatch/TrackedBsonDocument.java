@@ -0,0 +1,290 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+/**
+ * A view of a {@link BsonDocument} that records each change made through it as a JSON Patch
+ * operation, so the patch from the original to the current state of the document is known
+ * without keeping a copy of the original or comparing the two.
+ * <p>
+ * Documents and arrays read from the view are views themselves, recording into the same
+ * patch. Values are changed in the underlying document as well; changes made to it directly,
+ * or to values after they were put into the view, are not recorded. Key sets, entries and
+ * iterators are read-only.
+ *
+ * @since 0.5.0
+ */
+public class TrackedBsonDocument extends BsonDocument {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient BsonDocument document;
+    private final transient ChangeLog log;
+    private final transient BsonValue parent;
+    private final transient String field;
+    transient boolean detached;
+    private transient Map<String, BsonValue> views;
+
+    TrackedBsonDocument(BsonDocument document, ChangeLog log, BsonValue parent, String field) {
+        this.document = document;
+        this.log = log;
+        this.parent = parent;
+        this.field = field;
+    }
+
+    /**
+     * Starts recording the changes made to {@code document} through the returned view.
+     *
+     * @param document the document to track, which is changed along with the view
+     * @return a view recording an empty patch
+     */
+    public static TrackedBsonDocument track(BsonDocument document) {
+        return new TrackedBsonDocument(document, new ChangeLog(), null, null);
+    }
+
+    /**
+     * Returns the patch turning the tracked document, as it was when tracking started or
+     * {@link #clearChanges()} was last called, into its current state. Operations that
+     * supersede each other are coalesced, e.g. a field added and then removed again is left
+     * out. The patch is built from the recorded operations alone, and removals carry no value.
+     * <p>
+     * For a view of a nested document, this is the patch of the whole tracked document.
+     */
+    public BsonArray getPatch() {
+        return log.toPatch();
+    }
+
+    /** Returns whether any operations have been recorded. */
+    public boolean hasChanges() {
+        return !log.isEmpty();
+    }
+
+    /** Forgets the recorded operations, e.g. after the patch has been saved. */
+    public void clearChanges() {
+        log.clear();
+    }
+
+    /** Returns the document this view changes. */
+    public BsonDocument unwrap() {
+        return document;
+    }
+
+    JsonPointer path() {
+        return detached ? null : ChangeLog.pathOf(parent, field, this);
+    }
+
+    private void record(Operation operation, String key, BsonValue value) {
+        JsonPointer path = path();
+        if (path != null) {
+            log.record(operation, path.append(key), value, false);
+        }
+    }
+
+    private BsonValue view(String key, BsonValue value) {
+        if (value == null || !(value.isDocument() || value.isArray())) {
+            return value;
+        }
+        if (views == null) {
+            views = new HashMap<String, BsonValue>();
+        }
+        BsonValue view = views.get(key);
+        if (view == null || (view.isDocument() ? ((TrackedBsonDocument) view).document : ((TrackedBsonArray) view).unwrap()) != value) {
+            view = value.isDocument()
+                    ? new TrackedBsonDocument(value.asDocument(), log, this, key)
+                    : new TrackedBsonArray(value.asArray(), log, this, key);
+            views.put(key, view);
+        }
+        return view;
+    }
+
+    private void detach(Object key) {
+        if (views != null) {
+            ChangeLog.detach(views.remove(key));
+        }
+    }
+
+    @Override
+    public int size() {
+        return document.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return document.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return document.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return document.containsValue(value);
+    }
+
+    @Override
+    public BsonValue get(Object key) {
+        return key instanceof String ? view((String) key, document.get(key)) : null;
+    }
+
+    @Override
+    public BsonValue put(String key, BsonValue value) {
+        BsonValue stored = ChangeLog.unwrap(value);
+        BsonValue previous = document.put(key, stored);
+        detach(key);
+        record(previous == null ? Operation.ADD : Operation.REPLACE, key, stored);
+        return previous;
+    }
+
+    @Override
+    public BsonValue remove(Object key) {
+        if (!document.containsKey(key)) {
+            return null;
+        }
+        BsonValue previous = document.remove(key);
+        detach(key);
+        record(Operation.REMOVE, (String) key, null);
+        return previous;
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends BsonValue> m) {
+        for (Map.Entry<? extends String, ? extends BsonValue> entry : m.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (String key : new ArrayList<String>(document.keySet())) {
+            remove(key);
+        }
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(document.keySet());
+    }
+
+    @Override
+    public Collection<BsonValue> values() {
+        return new AbstractCollection<BsonValue>() {
+            @Override
+            public Iterator<BsonValue> iterator() {
+                final Iterator<String> keys = document.keySet().iterator();
+                return new Iterator<BsonValue>() {
+                    @Override
+                    public boolean hasNext() {
+                        return keys.hasNext();
+                    }
+
+                    @Override
+                    public BsonValue next() {
+                        return get(keys.next());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return document.size();
+            }
+        };
+    }
+
+    @Override
+    public Set<Map.Entry<String, BsonValue>> entrySet() {
+        return new AbstractSet<Map.Entry<String, BsonValue>>() {
+            @Override
+            public Iterator<Map.Entry<String, BsonValue>> iterator() {
+                final Iterator<String> keys = document.keySet().iterator();
+                return new Iterator<Map.Entry<String, BsonValue>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return keys.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<String, BsonValue> next() {
+                        String key = keys.next();
+                        return new AbstractMap.SimpleImmutableEntry<String, BsonValue>(key, get(key));
+                    }
+                };
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Map.Entry)) {
+                    return false;
+                }
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+                BsonValue value = document.get(entry.getKey());
+                return value != null && value.equals(entry.getValue());
+            }
+
+            @Override
+            public int size() {
+                return document.size();
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return document.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        return document.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return document.toString();
+    }
+
+    @Override
+    public BsonDocument clone() {
+        return document.clone();
+    }
+
+    // serializes the underlying document, a view cannot be restored
+    private Object writeReplace() {
+        return document;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ebay.bsonpatch;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+/**
+ * An in-place processor that keeps an undo log of every mutation it performs, so that
+ * a partially applied patch can be rolled back. Each log entry only holds the container
+ * that was changed and the value or position needed to restore it, which keeps the cost
+ * proportional to the patch rather than to the document.
+ */
+class TransactionalApplyProcessor extends InPlaceApplyProcessor {
+
+    private interface Undo {
+        void undo();
+    }
+
+    private final List<Undo> log = new ArrayList<Undo>();
+
+    TransactionalApplyProcessor(BsonValue target, EnumSet<CompatibilityFlags> flags) {
+        super(target, flags);
+    }
+
+    /** Reverts all mutations performed so far, most recent first. */
+    void rollback() {
+        for (int i = log.size() - 1; i >= 0; i--) {
+            log.get(i).undo();
+        }
+        log.clear();
+    }
+
+    @Override
+    public void remove(JsonPointer path) throws JsonPointerEvaluationException {
+        Undo undo = null;
+        if (!path.isRoot()) {
+            BsonValue parentNode = path.getParent().evaluate(result());
+            JsonPointer.RefToken token = path.last();
+            if (parentNode.isDocument() && parentNode.asDocument().containsKey(token.getField())) {
+                undo = restoreField(parentNode.asDocument(), token.getField());
+            } else if (parentNode.isArray() && token.isArrayIndex() && token.getIndex() >= 0
+                    && token.getIndex() < parentNode.asArray().size()) {
+                undo = reinsertElement(parentNode.asArray(), token.getIndex());
+            }
+        }
+        super.remove(path);
+        record(undo);
+    }
+
+    @Override
+    public void replace(JsonPointer path, BsonValue value) throws JsonPointerEvaluationException {
+        Undo undo = null;
+        if (!path.isRoot()) {
+            BsonValue parentNode = path.getParent().evaluate(result());
+            JsonPointer.RefToken token = path.last();
+            if (parentNode.isDocument()) {
+                undo = restoreValue(parentNode.asDocument(), token.getField());
+            } else if (parentNode.isArray() && token.isArrayIndex() && token.getIndex() >= 0
+                    && token.getIndex() < parentNode.asArray().size()) {
+                undo = restoreElement(parentNode.asArray(), token.getIndex());
+            }
+        }
+        super.replace(path, value);
+        record(undo);
+    }
+
+    @Override
+    void set(JsonPointer path, BsonValue value, Operation forOp) throws JsonPointerEvaluationException {
+        Undo undo = null;
+        if (!path.isRoot()) {
+            BsonValue parentNode = path.getParent().evaluate(result());
+            JsonPointer.RefToken token = path.last();
+            if (parentNode.isDocument()) {
+                undo = restoreValue(parentNode.asDocument(), token.getField());
+            } else if (parentNode.isArray() && token.isArrayIndex()) {
+                final BsonArray array = parentNode.asArray();
+                final int idx = token.getIndex() == JsonPointer.LAST_INDEX ? array.size() : token.getIndex();
+                undo = new Undo() {
+                    @Override
+                    public void undo() {
+                        array.remove(idx);
+                    }
+                };
+            }
+        }
+        super.set(path, value, forOp);
+        record(undo);
+    }
+
+    private void record(Undo undo) {
+        if (undo != null) {
+            log.add(undo);
+        }
+    }
+
+    private static Undo restoreValue(final BsonDocument document, final String key) {
+        final BsonValue previous = document.get(key);
+        return new Undo() {
+            @Override
+            public void undo() {
+                if (previous == null) {
+                    document.remove(key);
+                } else {
+                    document.put(key, previous);
+                }
+            }
+        };
+    }
+
+    private static Undo restoreField(final BsonDocument document, final String key) {
+        final BsonValue previous = document.get(key);
+        int position = 0;
+        for (String k : document.keySet()) {
+            if (k.equals(key)) break;
+            position++;
+        }
+        final int ordinal = position;
+        return new Undo() {
+            @Override
+            public void undo() {
+                // re-insert at the original position, moving the fields that followed behind it
+                Map<String, BsonValue> tail = new LinkedHashMap<String, BsonValue>();
+                List<String> keys = new ArrayList<String>(document.keySet());
+                for (String k : keys.subList(Math.min(ordinal, keys.size()), keys.size())) {
+                    tail.put(k, document.remove(k));
+                }
+                document.put(key, previous);
+                document.putAll(tail);
+            }
+        };
+    }
+
+    private static Undo restoreElement(final BsonArray array, final int index) {
+        final BsonValue previous = array.get(index);
+        return new Undo() {
+            @Override
+            public void undo() {
+                array.set(index, previous);
+            }
+        };
+    }
+
+    private static Undo reinsertElement(final BsonArray array, final int index) {
+        final BsonValue previous = array.get(index);
+        return new Undo() {
+            @Override
+            public void undo() {
+                array.add(index, previous);
+            }
+        };
+    }
+}
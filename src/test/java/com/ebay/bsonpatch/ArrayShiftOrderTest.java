@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonValue;
+import org.junit.Test;
+
+public class ArrayShiftOrderTest {
+
+    private static final EnumSet<DiffFlags> FLAGS = EnumSet.of(DiffFlags.OMIT_VALUE_ON_REMOVE, DiffFlags.MINIMIZE_ARRAY_SHIFTS);
+
+    @Test
+    public void removesFromTheEndFirst() {
+        BsonDocument source = BsonDocument.parse("{\"a\": [0, 1, 2, 3, 4, 5]}");
+        BsonDocument target = BsonDocument.parse("{\"a\": [0, 1, 2]}");
+        assertEquals(BsonArray.parse("[{\"op\": \"remove\", \"path\": \"/a/3\"}, {\"op\": \"remove\", \"path\": \"/a/3\"},"
+                + "{\"op\": \"remove\", \"path\": \"/a/3\"}]"), BsonDiff.asBson(source, target));
+        assertEquals(BsonArray.parse("[{\"op\": \"remove\", \"path\": \"/a/5\"}, {\"op\": \"remove\", \"path\": \"/a/4\"},"
+                + "{\"op\": \"remove\", \"path\": \"/a/3\"}]"), BsonDiff.asBson(source, target, FLAGS));
+    }
+
+    @Test
+    public void groupsAdditionsAfterRemovals() {
+        BsonArray source = BsonArray.parse("[\"a\", \"x\", \"y\", \"b\", \"c\"]");
+        BsonArray target = BsonArray.parse("[\"n\", \"a\", \"b\", \"m\", \"c\"]");
+        BsonArray patch = BsonDiff.asBson(source, target, EnumSet.of(DiffFlags.MINIMIZE_ARRAY_SHIFTS, DiffFlags.EMIT_TEST_OPERATIONS,
+                DiffFlags.OMIT_MOVE_OPERATION, DiffFlags.OMIT_COPY_OPERATION));
+        assertEquals(BsonArray.parse("["
+                + "{\"op\": \"test\", \"path\": \"/2\", \"value\": \"y\"}, {\"op\": \"remove\", \"path\": \"/2\", \"value\": \"y\"},"
+                + "{\"op\": \"test\", \"path\": \"/1\", \"value\": \"x\"}, {\"op\": \"remove\", \"path\": \"/1\", \"value\": \"x\"},"
+                + "{\"op\": \"add\", \"path\": \"/0\", \"value\": \"n\"}, {\"op\": \"add\", \"path\": \"/3\", \"value\": \"m\"}]"), patch);
+        assertEquals(target, BsonPatch.apply(patch, source));
+    }
+
+    @Test
+    public void numericFieldNamesAreNotIndexes() {
+        BsonDocument source = BsonDocument.parse("{\"1\": \"a\", \"2\": \"b\", \"3\": \"c\"}");
+        BsonDocument target = BsonDocument.parse("{\"4\": \"d\"}");
+        BsonArray patch = BsonDiff.asBson(source, target, FLAGS);
+        assertEquals(BsonDiff.asBson(source, target), patch);
+    }
+
+    @Test
+    public void generatedPatchesApply() {
+        Random random = new Random();
+        List<EnumSet<DiffFlags>> flagSets = new ArrayList<EnumSet<DiffFlags>>();
+        flagSets.add(EnumSet.of(DiffFlags.MINIMIZE_ARRAY_SHIFTS, DiffFlags.OMIT_VALUE_ON_REMOVE, DiffFlags.OMIT_COPY_OPERATION));
+        flagSets.add(EnumSet.of(DiffFlags.MINIMIZE_ARRAY_SHIFTS, DiffFlags.EMIT_TEST_OPERATIONS, DiffFlags.ADD_ORIGINAL_VALUE_ON_REPLACE,
+                DiffFlags.OMIT_COPY_OPERATION));
+        flagSets.add(EnumSet.of(DiffFlags.MINIMIZE_ARRAY_SHIFTS, DiffFlags.OMIT_MOVE_OPERATION, DiffFlags.OMIT_COPY_OPERATION));
+        flagSets.add(EnumSet.of(DiffFlags.MINIMIZE_ARRAY_SHIFTS, DiffFlags.PATIENCE_ARRAY_DIFF, DiffFlags.OMIT_COPY_OPERATION));
+        for (int i = 0; i < 300; i++) {
+            BsonArray source = TestDataGenerator.generate(random.nextInt(10));
+            BsonArray target = TestDataGenerator.generate(random.nextInt(10));
+            BsonDocument numbers = new BsonDocument("source", numbers(random)).append("target", numbers(random));
+            for (EnumSet<DiffFlags> flags : flagSets) {
+                BsonArray patch = BsonDiff.asBson(source, target, flags);
+                assertEquals(target, BsonPatch.apply(patch, source));
+                ReversiblePatch reversible = BsonDiff.asReversibleBson(source, target, flags);
+                assertEquals(source, BsonPatch.apply(reversible.getInverse(), target));
+
+                BsonArray sourceNumbers = numbers.getArray("source");
+                BsonArray targetNumbers = numbers.getArray("target");
+                assertEquals(targetNumbers, BsonPatch.apply(BsonDiff.asBson(sourceNumbers, targetNumbers, flags), sourceNumbers));
+            }
+        }
+    }
+
+    private static BsonArray numbers(Random random) {
+        List<BsonValue> numbers = new ArrayList<BsonValue>();
+        for (int i = random.nextInt(40); i > 0; i--) {
+            numbers.add(new BsonInt32(random.nextInt(20)));
+        }
+        return new BsonArray(numbers);
+    }
+}
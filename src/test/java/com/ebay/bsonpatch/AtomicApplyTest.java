@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.junit.Test;
+
+public class AtomicApplyTest {
+
+    @Test
+    public void appliesPatchInPlace() {
+        BsonDocument source = BsonDocument.parse("{\"a\": 1, \"b\": [1, 2, 3]}");
+        BsonArray patch = BsonArray.parse("[{\"op\": \"replace\", \"path\": \"/a\", \"value\": 2},"
+                + "{\"op\": \"remove\", \"path\": \"/b/0\"}]");
+        BsonPatch.applyInPlaceAtomically(patch, source);
+        assertEquals(BsonDocument.parse("{\"a\": 2, \"b\": [2, 3]}"), source);
+    }
+
+    @Test
+    public void failedPatchLeavesSourceUntouched() {
+        BsonDocument source = BsonDocument.parse("{\"a\": 1, \"b\": [1, 2, 3], \"c\": {\"d\": \"e\"}, \"f\": true}");
+        BsonDocument original = source.clone();
+        BsonArray patch = BsonArray.parse("["
+                + "{\"op\": \"remove\", \"path\": \"/a\"},"
+                + "{\"op\": \"add\", \"path\": \"/b/1\", \"value\": 9},"
+                + "{\"op\": \"replace\", \"path\": \"/b/0\", \"value\": 8},"
+                + "{\"op\": \"move\", \"from\": \"/c/d\", \"path\": \"/g\"},"
+                + "{\"op\": \"copy\", \"from\": \"/b\", \"path\": \"/c/h\"},"
+                + "{\"op\": \"add\", \"path\": \"/b/-\", \"value\": 7},"
+                + "{\"op\": \"test\", \"path\": \"/f\", \"value\": false}]");
+        try {
+            BsonPatch.applyInPlaceAtomically(patch, source);
+            fail("test operation should have failed");
+        } catch (BsonPatchApplicationException e) {
+            // expected
+        }
+        assertEquals(original, source);
+        // field order is restored as well
+        assertEquals(original.toJson(), source.toJson());
+    }
+
+    @Test
+    public void invalidOperationRollsBack() {
+        BsonDocument source = BsonDocument.parse("{\"a\": 1}");
+        BsonArray patch = BsonArray.parse("[{\"op\": \"add\", \"path\": \"/b\", \"value\": 2}, {\"op\": \"what\"}]");
+        try {
+            BsonPatch.applyInPlaceAtomically(patch, source);
+            fail("invalid operation should have failed");
+        } catch (InvalidBsonPatchException e) {
+            // expected
+        }
+        assertEquals(BsonDocument.parse("{\"a\": 1}"), source);
+    }
+
+    @Test
+    public void generatedPatchesRollBackWhenTheLastOperationFails() {
+        Random random = new Random();
+        BsonDocument failing = BsonDocument.parse("{\"op\": \"test\", \"path\": \"\", \"value\": \"never\"}");
+        for (int i = 0; i < 200; i++) {
+            BsonArray source = TestDataGenerator.generate(random.nextInt(10));
+            BsonArray target = TestDataGenerator.generate(random.nextInt(10));
+            BsonArray patch = BsonDiff.asBson(source, target);
+            BsonValue original = source.clone();
+            patch.add(failing);
+            try {
+                BsonPatch.applyInPlaceAtomically(patch, source);
+                fail("test operation should have failed");
+            } catch (BsonPatchApplicationException e) {
+                // expected
+            }
+            assertEquals(original, source);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.junit.Test;
+
+public class AtomicBsonDocumentTest {
+
+    @Test
+    public void numbersVersionsAndLinksPatches() {
+        AtomicBsonDocument holder = new AtomicBsonDocument(BsonDocument.parse("{\"a\": 1}"));
+        AtomicBsonDocument.Snapshot first = holder.get();
+        assertEquals(0, first.getVersion());
+        assertEquals(new BsonArray(), first.getPatch());
+
+        BsonArray patch = BsonArray.parse("[{\"op\": \"replace\", \"path\": \"/a\", \"value\": 2}]");
+        AtomicBsonDocument.Snapshot second = holder.apply(patch);
+        assertEquals(1, second.getVersion());
+        assertEquals(patch, second.getPatch());
+        assertEquals(BsonDocument.parse("{\"a\": 2}"), second.getDocument());
+        assertSame(second, holder.get());
+        assertSame(second, first.getNext());
+        assertNull(second.getNext());
+        assertEquals(BsonDocument.parse("{\"a\": 1}"), first.getDocument());
+    }
+
+    @Test
+    public void snapshotsAreImmutable() {
+        BsonDocument source = BsonDocument.parse("{\"a\": {\"b\": 1}}");
+        AtomicBsonDocument holder = new AtomicBsonDocument(source);
+        source.getDocument("a").put("b", new BsonInt32(2));
+        assertEquals(BsonDocument.parse("{\"a\": {\"b\": 1}}"), holder.get().getDocument());
+        try {
+            holder.get().getDocument().put("c", new BsonInt32(3));
+            fail("snapshot should be immutable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void failedPatchesCreateNoVersion() {
+        AtomicBsonDocument holder = new AtomicBsonDocument(BsonDocument.parse("{\"a\": 1}"));
+        AtomicBsonDocument.Snapshot first = holder.get();
+        try {
+            holder.apply(BsonArray.parse("[{\"op\": \"replace\", \"path\": \"/a\", \"value\": 2},"
+                    + "{\"op\": \"replace\", \"path\": \"/missing\", \"value\": 3}]"));
+            fail("patch should have failed");
+        } catch (BsonPatchApplicationException e) {
+            // expected
+        }
+        assertSame(first, holder.get());
+        assertNull(first.getNext());
+    }
+
+    @Test
+    public void replacesTheRoot() {
+        AtomicBsonDocument holder = new AtomicBsonDocument(BsonDocument.parse("{\"a\": 1}"));
+        AtomicBsonDocument.Snapshot second = holder.apply(BsonArray.parse("[{\"op\": \"replace\", \"path\": \"\", \"value\": {\"b\": 2}}]"));
+        assertEquals(BsonDocument.parse("{\"b\": 2}"), second.getDocument());
+        AtomicBsonDocument.Snapshot third = holder.apply(BsonArray.parse("[{\"op\": \"add\", \"path\": \"\", \"value\": {\"c\": 3}}]"));
+        assertEquals(BsonDocument.parse("{\"c\": 3}"), third.getDocument());
+        try {
+            holder.apply(BsonArray.parse("[{\"op\": \"replace\", \"path\": \"\", \"value\": [1]}]"));
+            fail("replacing the document with an array should have failed");
+        } catch (BsonPatchApplicationException e) {
+            // expected
+        }
+        assertSame(third, holder.get());
+    }
+
+    @Test
+    public void concurrentWritersLoseNoUpdates() throws Exception {
+        final int threads = 8;
+        final int increments = 200;
+        BsonDocument initial = new BsonDocument();
+        for (int t = 0; t < threads; t++) {
+            initial.put("t" + t, new BsonInt32(0));
+        }
+        initial.put("log", new BsonArray());
+        final AtomicBsonDocument holder = new AtomicBsonDocument(initial);
+        AtomicBsonDocument.Snapshot first = holder.get();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int t = 0; t < threads; t++) {
+                final String field = "t" + t;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int i = 1; i <= increments; i++) {
+                            holder.apply(BsonArray.parse("[{\"op\": \"replace\", \"path\": \"/" + field + "\", \"value\": " + i + "},"
+                                    + "{\"op\": \"add\", \"path\": \"/log/-\", \"value\": \"" + field + "\"}]"));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        BsonDocument last = holder.get().getDocument();
+        assertEquals(threads * increments, holder.get().getVersion());
+        assertEquals(threads * increments, last.getArray("log").size());
+        for (int t = 0; t < threads; t++) {
+            assertEquals(increments, last.getInt32("t" + t).getValue());
+        }
+
+        // replaying the patch stream from the first version reproduces every version
+        BsonDocument replayed = InPlaceApplyProcessor.cloneBsonValue(first.getDocument()).asDocument();
+        long version = 0;
+        for (AtomicBsonDocument.Snapshot s = first.getNext(); s != null; s = s.getNext()) {
+            assertEquals(++version, s.getVersion());
+            BsonPatch.applyInPlace(s.getPatch(), replayed);
+            assertEquals(s.getDocument(), replayed);
+        }
+        assertEquals(last, replayed);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonValue;
+import org.junit.Test;
+
+public class BsonCollectionDiffTest {
+
+    @Test
+    public void reportsInsertsUpdatesAndDeletes() {
+        List<BsonDocument> source = Arrays.asList(
+                BsonDocument.parse("{\"_id\": 1, \"a\": 1}"),
+                BsonDocument.parse("{\"_id\": 2, \"a\": 2}"),
+                BsonDocument.parse("{\"_id\": 3, \"a\": 3}"));
+        List<BsonDocument> target = Arrays.asList(
+                BsonDocument.parse("{\"_id\": 4, \"a\": 4}"),
+                BsonDocument.parse("{\"a\": 3, \"_id\": 3}"),
+                BsonDocument.parse("{\"_id\": 1, \"a\": 10}"));
+        List<BsonCollectionDiff.Change> changes = BsonCollectionDiff.diff(source, target).collect(Collectors.toList());
+
+        assertEquals(3, changes.size());
+        assertEquals(BsonCollectionDiff.Change.Type.INSERT, changes.get(0).getType());
+        assertEquals(new BsonInt32(4), changes.get(0).getKey());
+        assertEquals(target.get(0), changes.get(0).getDocument());
+        assertNull(changes.get(0).getPatch());
+
+        assertEquals(BsonCollectionDiff.Change.Type.UPDATE, changes.get(1).getType());
+        assertEquals(new BsonInt32(1), changes.get(1).getKey());
+        assertEquals(BsonDiff.asBson(source.get(0), target.get(2)), changes.get(1).getPatch());
+
+        assertEquals(BsonCollectionDiff.Change.Type.DELETE, changes.get(2).getType());
+        assertEquals(new BsonInt32(2), changes.get(2).getKey());
+        assertEquals(source.get(1), changes.get(2).getDocument());
+    }
+
+    @Test
+    public void matchesByKeyField() {
+        List<BsonDocument> source = Arrays.asList(BsonDocument.parse("{\"sku\": \"a\", \"qty\": 1}"));
+        List<BsonDocument> target = Arrays.asList(BsonDocument.parse("{\"sku\": \"a\", \"qty\": 2}"));
+        List<BsonCollectionDiff.Change> changes = BsonCollectionDiff.diff(source, target, "sku", DiffFlags.defaults())
+                .collect(Collectors.toList());
+        assertEquals(1, changes.size());
+        assertEquals(BsonCollectionDiff.Change.Type.UPDATE, changes.get(0).getType());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicateKeys() {
+        List<BsonDocument> target = Arrays.asList(BsonDocument.parse("{\"_id\": 1}"), BsonDocument.parse("{\"_id\": 1}"));
+        BsonCollectionDiff.diff(new ArrayList<BsonDocument>(), target);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMissingKeys() {
+        BsonCollectionDiff.diff(Arrays.asList(BsonDocument.parse("{\"a\": 1}")), new ArrayList<BsonDocument>());
+    }
+
+    @Test
+    public void applyingChangesSyncsGeneratedCollections() {
+        Random random = new Random();
+        List<BsonDocument> source = new ArrayList<BsonDocument>();
+        List<BsonDocument> target = new ArrayList<BsonDocument>();
+        for (int i = 0; i < 500; i++) {
+            BsonDocument document = new BsonDocument("_id", new BsonInt32(i)).append("items", TestDataGenerator.generate(random.nextInt(4)));
+            if (random.nextInt(4) != 0) {
+                source.add(document);
+            }
+            int choice = random.nextInt(4);
+            if (choice == 0) {
+                target.add(document.clone().append("items", TestDataGenerator.generate(random.nextInt(4))));
+            } else if (choice != 1) {
+                target.add(document.clone());
+            }
+        }
+
+        Map<BsonValue, BsonDocument> synced = new HashMap<BsonValue, BsonDocument>();
+        for (BsonDocument document : source) {
+            synced.put(document.get("_id"), document.clone());
+        }
+        List<BsonCollectionDiff.Change> changes = BsonCollectionDiff.diff(source, target, "_id",
+                EnumSet.of(DiffFlags.OMIT_VALUE_ON_REMOVE)).collect(Collectors.toList());
+        for (BsonCollectionDiff.Change change : changes) {
+            switch (change.getType()) {
+                case INSERT:
+                    synced.put(change.getKey(), change.getDocument());
+                    break;
+                case DELETE:
+                    synced.remove(change.getKey());
+                    break;
+                default:
+                    BsonPatch.applyInPlace(change.getPatch(), synced.get(change.getKey()));
+            }
+        }
+        assertEquals(target.size(), synced.size());
+        for (BsonDocument document : target) {
+            assertEquals(document, synced.get(document.get("_id")));
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.EnumSet;
+import java.util.Random;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.junit.Test;
+
+public class BsonDiffCacheTest {
+
+    @Test
+    public void fingerprintsFollowEquality() {
+        assertEquals(BsonFingerprint.of(BsonDocument.parse("{\"a\": 1, \"b\": [1, {\"c\": \"x\"}]}")),
+                BsonFingerprint.of(BsonDocument.parse("{\"b\": [1, {\"c\": \"x\"}], \"a\": 1}")));
+        assertNotEquals(BsonFingerprint.of(BsonArray.parse("[1, 2]")), BsonFingerprint.of(BsonArray.parse("[2, 1]")));
+        assertNotEquals(BsonFingerprint.of(new BsonInt32(1)), BsonFingerprint.of(new BsonInt64(1)));
+        assertNotEquals(BsonFingerprint.of(BsonDocument.parse("{\"a\": {\"b\": 1}}")),
+                BsonFingerprint.of(BsonDocument.parse("{\"a\": {}, \"b\": 1}")));
+        assertNotEquals(BsonFingerprint.of(new BsonString("ab")), BsonFingerprint.of(new BsonString("a\u0000b")));
+        assertEquals(32, BsonFingerprint.of(new BsonDocument()).toString().length());
+    }
+
+    @Test
+    public void generatedValuesHaveDistinctFingerprints() {
+        Random random = new Random();
+        for (int i = 0; i < 200; i++) {
+            BsonArray first = TestDataGenerator.generate(random.nextInt(10));
+            BsonArray second = TestDataGenerator.generate(random.nextInt(10));
+            assertEquals(first.equals(second), BsonFingerprint.of(first).equals(BsonFingerprint.of(second)));
+            assertEquals(BsonFingerprint.of(first), BsonFingerprint.of(first.clone()));
+        }
+    }
+
+    @Test
+    public void servesRepeatedDiffsFromTheCache() {
+        BsonDiffCache cache = new BsonDiffCache(10);
+        BsonDocument source = BsonDocument.parse("{\"a\": 1, \"b\": {\"c\": [1, 2]}}");
+        BsonDocument target = BsonDocument.parse("{\"a\": 2, \"b\": {\"c\": [1, 2, 3]}}");
+        BsonArray patch = cache.asBson(source, target);
+        assertEquals(BsonDiff.asBson(source, target), patch);
+        assertSame(patch, cache.asBson(source.clone(), target.clone()));
+        cache.asBson(source, target, DiffFlags.dontNormalizeOpIntoMoveAndCopy());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void hitsAreCheckedAgainstCopiesOfTheValues() {
+        BsonDiffCache cache = new BsonDiffCache(10);
+        BsonDocument source = BsonDocument.parse("{\"a\": [1]}");
+        BsonDocument original = source.clone();
+        BsonDocument target = BsonDocument.parse("{\"a\": [1, 2]}");
+        BsonArray patch = cache.asBson(source, target);
+        source.getArray("a").add(new BsonInt32(3));
+        assertSame(patch, cache.asBson(original, target));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        BsonDiffCache cache = new BsonDiffCache(2);
+        BsonDocument source = new BsonDocument();
+        BsonArray first = cache.asBson(source, new BsonDocument("a", new BsonInt32(1)));
+        cache.asBson(source, new BsonDocument("a", new BsonInt32(2)));
+        cache.asBson(source, new BsonDocument("a", new BsonInt32(1)));
+        cache.asBson(source, new BsonDocument("a", new BsonInt32(3)));
+        assertEquals(1, cache.getEvictionCount());
+        assertSame(first, cache.asBson(source, new BsonDocument("a", new BsonInt32(1))));
+        assertEquals(2, cache.getHitCount());
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void cachedPatchesAreImmutable() {
+        BsonDiffCache cache = new BsonDiffCache(10);
+        BsonDocument source = BsonDocument.parse("{\"a\": 1}");
+        BsonArray patch = cache.asBson(source, BsonDocument.parse("{\"a\": 1, \"b\": {\"c\": [1]}}"));
+        try {
+            patch.add(new BsonDocument());
+            fail("cached patch should be immutable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            patch.get(0).asDocument().put("op", new BsonString("remove"));
+            fail("cached operation should be immutable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        BsonValue target = BsonPatch.apply(patch, source);
+        target.asDocument().getDocument("b").getArray("c").add(new BsonInt32(2));
+        assertEquals(BsonDocument.parse("{\"a\": 1, \"b\": {\"c\": [1, 2]}}"), target);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveSize() {
+        new BsonDiffCache(0);
+    }
+
+    @Test
+    public void flagsAreCopied() {
+        BsonDiffCache cache = new BsonDiffCache(10);
+        EnumSet<DiffFlags> flags = DiffFlags.defaults();
+        BsonDocument source = BsonDocument.parse("{\"a\": 1}");
+        BsonDocument target = BsonDocument.parse("{\"a\": 2}");
+        cache.asBson(source, target, flags);
+        flags.add(DiffFlags.ADD_ORIGINAL_VALUE_ON_REPLACE);
+        assertEquals(BsonDiff.asBson(source, target, flags), cache.asBson(source, target, flags));
+        assertEquals(2, cache.getMissCount());
+    }
+}
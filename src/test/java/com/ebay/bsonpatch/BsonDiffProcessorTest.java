@@ -0,0 +1,222 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonValue;
+import org.junit.After;
+import org.junit.Test;
+
+import com.ebay.bsonpatch.BsonCollectionDiff.Change;
+
+public class BsonDiffProcessorTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static final class Upstream implements BsonDiffProcessor.Subscription {
+        final AtomicLong requested = new AtomicLong();
+        final AtomicBoolean cancelled = new AtomicBoolean();
+
+        @Override
+        public void request(long n) {
+            requested.addAndGet(n);
+        }
+
+        @Override
+        public void cancel() {
+            cancelled.set(true);
+        }
+    }
+
+    private static final class Downstream implements BsonDiffProcessor.Subscriber<Change> {
+        final List<Change> changes = new CopyOnWriteArrayList<Change>();
+        final CountDownLatch terminated = new CountDownLatch(1);
+        volatile BsonDiffProcessor.Subscription subscription;
+        volatile Throwable error;
+
+        @Override
+        public void onSubscribe(BsonDiffProcessor.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Change change) {
+            changes.add(change);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            terminated.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            terminated.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(terminated.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    private static BsonDocument version(int key, int value) {
+        return new BsonDocument("_id", new BsonInt32(key)).append("value", new BsonInt32(value))
+                .append("items", new BsonArray(Collections.<BsonValue>nCopies(value % 5, new BsonInt32(value))));
+    }
+
+    private static void waitFor(String what, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(what, System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void diffsConsecutiveVersionsPerKeyInOrder() throws InterruptedException {
+        BsonDiffProcessor processor = new BsonDiffProcessor(executor, 16);
+        Downstream downstream = new Downstream();
+        processor.subscribe(downstream);
+        downstream.subscription.request(Long.MAX_VALUE);
+        Upstream upstream = new Upstream();
+        processor.onSubscribe(upstream);
+
+        int keys = 8;
+        int versions = 50;
+        for (int v = 0; v < versions; v++) {
+            for (int k = 0; k < keys; k++) {
+                final long sent = (long) v * keys + k;
+                waitFor("upstream demand", () -> upstream.requested.get() > sent);
+                processor.onNext(version(k, v * 7 + k));
+            }
+        }
+        processor.onComplete();
+        downstream.await();
+
+        assertNull(downstream.error);
+        assertEquals(keys * versions, downstream.changes.size());
+        Map<BsonValue, BsonDocument> current = new HashMap<BsonValue, BsonDocument>();
+        Map<BsonValue, Integer> seen = new HashMap<BsonValue, Integer>();
+        for (Change change : downstream.changes) {
+            int count = seen.containsKey(change.getKey()) ? seen.get(change.getKey()) : 0;
+            int key = change.getKey().asInt32().getValue();
+            assertEquals(version(key, count * 7 + key), change.getDocument());
+            if (count == 0) {
+                assertEquals(Change.Type.INSERT, change.getType());
+            } else {
+                assertEquals(Change.Type.UPDATE, change.getType());
+                assertEquals(change.getDocument(), BsonPatch.apply(change.getPatch(), current.get(change.getKey())));
+            }
+            current.put(change.getKey(), change.getDocument());
+            seen.put(change.getKey(), count + 1);
+        }
+    }
+
+    @Test
+    public void slowSubscriberBoundsUpstreamDemand() throws InterruptedException {
+        BsonDiffProcessor processor = new BsonDiffProcessor(executor, 4);
+        Upstream upstream = new Upstream();
+        processor.onSubscribe(upstream);
+        assertEquals(4, upstream.requested.get());
+        Downstream downstream = new Downstream();
+        processor.subscribe(downstream);
+
+        for (int v = 0; v < 4; v++) {
+            processor.onNext(version(1, v));
+        }
+        Thread.sleep(50);
+        assertEquals(4, upstream.requested.get());
+        assertTrue(downstream.changes.isEmpty());
+
+        downstream.subscription.request(3);
+        waitFor("three changes", () -> downstream.changes.size() == 3);
+        waitFor("three more versions requested", () -> upstream.requested.get() == 7);
+        processor.onComplete();
+        Thread.sleep(20);
+        assertEquals(1, downstream.terminated.getCount());
+
+        downstream.subscription.request(1);
+        downstream.await();
+        assertEquals(4, downstream.changes.size());
+        assertNull(downstream.error);
+    }
+
+    @Test
+    public void versionWithoutKeyFailsTheStream() throws InterruptedException {
+        BsonDiffProcessor processor = new BsonDiffProcessor(executor, 4);
+        Upstream upstream = new Upstream();
+        processor.onSubscribe(upstream);
+        Downstream downstream = new Downstream();
+        processor.subscribe(downstream);
+        processor.onNext(new BsonDocument("value", new BsonInt32(1)));
+        downstream.await();
+        assertTrue(downstream.error instanceof IllegalArgumentException);
+        assertTrue(upstream.cancelled.get());
+    }
+
+    @Test
+    public void cancelStopsUpstream() {
+        BsonDiffProcessor processor = new BsonDiffProcessor(executor, 4);
+        Downstream downstream = new Downstream();
+        processor.subscribe(downstream);
+        downstream.subscription.cancel();
+        Upstream upstream = new Upstream();
+        processor.onSubscribe(upstream);
+        assertTrue(upstream.cancelled.get());
+        assertEquals(0, upstream.requested.get());
+    }
+
+    @Test
+    public void secondSubscriberIsRefused() throws InterruptedException {
+        BsonDiffProcessor processor = new BsonDiffProcessor(executor, 4);
+        processor.subscribe(new Downstream());
+        Downstream second = new Downstream();
+        processor.subscribe(second);
+        second.await();
+        assertTrue(second.error instanceof IllegalStateException);
+        assertTrue(second.changes.isEmpty());
+    }
+}
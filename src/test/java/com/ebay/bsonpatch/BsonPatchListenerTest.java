@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.junit.After;
+import org.junit.Test;
+
+public class BsonPatchListenerTest {
+
+    @After
+    public void unregister() {
+        BsonPatchListeners.set(null);
+    }
+
+    @Test
+    public void noopIsTheDefault() {
+        assertSame(BsonPatchListener.NOOP, BsonPatchListeners.get());
+    }
+
+    @Test
+    public void diffReportsPhasesCountersAndOperations() {
+        BsonPatchStatistics statistics = new BsonPatchStatistics();
+        BsonPatchListeners.set(statistics);
+
+        BsonDocument source = BsonDocument.parse("{\"a\": [1, 2, 3], \"b\": {\"c\": 1}, \"d\": \"x\"}");
+        BsonDocument target = BsonDocument.parse("{\"a\": [1, 3, 4], \"b\": {\"c\": 2}, \"e\": \"x\"}");
+        EnumSet<DiffFlags> flags = DiffFlags.defaults();
+        flags.add(DiffFlags.MINIMIZE_ARRAY_SHIFTS);
+        BsonArray patch = BsonDiff.asBson(source, target, flags);
+
+        assertEquals(1, statistics.getDiffCount());
+        // root, a, b, b/c
+        assertEquals(4, statistics.getNodesVisited());
+        assertEquals(9, statistics.getLcsCells());
+        assertEquals(patch.size(), statistics.getEmittedCount(Operation.ADD) + statistics.getEmittedCount(Operation.REMOVE)
+                + statistics.getEmittedCount(Operation.REPLACE) + statistics.getEmittedCount(Operation.MOVE));
+        assertEquals(1, statistics.getEmittedCount(Operation.MOVE));
+        assertEquals(1, statistics.getDiffLatency().getCount());
+        for (DiffPhase phase : DiffPhase.values()) {
+            assertEquals(phase.name(), 1, statistics.getPhaseLatency(phase).getCount());
+        }
+    }
+
+    @Test
+    public void applyReportsOperationsAndFailures() {
+        BsonPatchStatistics statistics = new BsonPatchStatistics();
+        BsonPatchListeners.set(statistics);
+
+        BsonArray patch = BsonArray.parse("[{\"op\": \"add\", \"path\": \"/a\", \"value\": 1},"
+                + "{\"op\": \"replace\", \"path\": \"/a\", \"value\": 2},"
+                + "{\"op\": \"test\", \"path\": \"/a\", \"value\": 3}]");
+        try {
+            BsonPatch.apply(patch, new BsonDocument());
+            fail("test operation should have failed");
+        } catch (BsonPatchApplicationException e) {
+            // expected
+        }
+        BsonPatch.validate(patch);
+
+        assertEquals(1, statistics.getAppliedCount(Operation.ADD));
+        assertEquals(1, statistics.getAppliedCount(Operation.REPLACE));
+        assertEquals(0, statistics.getAppliedCount(Operation.TEST));
+        assertEquals(1, statistics.getFailedCount(Operation.TEST));
+
+        statistics.reset();
+        assertEquals(0, statistics.getAppliedCount(Operation.ADD));
+        assertEquals(0, statistics.getFailedCount(Operation.TEST));
+    }
+
+    @Test
+    public void customListenersReceiveEvents() {
+        final List<String> events = new ArrayList<String>();
+        BsonPatchListeners.set(new BsonPatchListener() {
+            @Override
+            public void operationApplied(Operation operation, long elapsedNanos) {
+                events.add(operation.rfcName());
+            }
+        });
+        BsonPatch.applyInPlace(BsonArray.parse("[{\"op\": \"add\", \"path\": \"/a\", \"value\": 1}, {\"op\": \"remove\", \"path\": \"/a\"}]"),
+                new BsonDocument());
+        BsonDiff.asBson(new BsonDocument(), BsonDocument.parse("{\"a\": 1}"));
+        assertEquals(2, events.size());
+        assertEquals("add", events.get(0));
+        assertEquals("remove", events.get(1));
+    }
+
+    @Test
+    public void histogramBucketsByPowersOfTwo() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(0);
+        histogram.record(1);
+        histogram.record(5);
+        histogram.record(7);
+        histogram.record(1000);
+
+        long[] counts = histogram.getBucketCounts();
+        assertArrayEquals(new long[] {1, 1, 0, 2}, new long[] {counts[0], counts[1], counts[2], counts[3]});
+        assertEquals(1, counts[10]);
+        assertEquals(5, histogram.getCount());
+        assertEquals(1013, histogram.getTotalNanos());
+        assertEquals(1000, histogram.getMaxNanos());
+        assertEquals(7, histogram.getPercentileNanos(50));
+        assertEquals(1000, histogram.getPercentileNanos(100));
+        assertTrue(histogram.getPercentileNanos(99) <= histogram.getMaxNanos());
+    }
+}
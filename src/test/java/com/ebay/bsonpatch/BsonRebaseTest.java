@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonValue;
+import org.junit.Test;
+
+public class BsonRebaseTest {
+
+    private static final BsonDocument BASE = BsonDocument.parse("{\"a\": 1, \"customer\": {\"name\": \"x\"},"
+            + "\"items\": [{\"qty\": 0}, {\"qty\": 1}, {\"qty\": 2}]}");
+
+    private static BsonRebase.Result rebase(String patch, String over) {
+        return BsonRebase.rebase(BsonArray.parse(patch), BsonArray.parse(over));
+    }
+
+    private static void assertRebased(String expected, String patch, String over) {
+        BsonRebase.Result result = rebase(patch, over);
+        assertFalse(result.getConflicts().toString(), result.hasConflicts());
+        assertEquals(BsonArray.parse(expected), result.getPatch());
+        // the rebased patch applies after the concurrent one
+        BsonPatch.apply(result.getPatch(), BsonPatch.apply(BsonArray.parse(over), BASE));
+    }
+
+    private static void assertConflict(String reason, String patch, String over) {
+        BsonRebase.Result result = rebase(patch, over);
+        assertEquals(1, result.getConflicts().size());
+        assertEquals(reason, result.getConflicts().get(0).getReason());
+    }
+
+    @Test
+    public void shiftsArrayIndexes() {
+        assertRebased("[{\"op\": \"replace\", \"path\": \"/items/3/qty\", \"value\": 5}]",
+                "[{\"op\": \"replace\", \"path\": \"/items/2/qty\", \"value\": 5}]",
+                "[{\"op\": \"add\", \"path\": \"/items/0\", \"value\": {\"qty\": 9}}]");
+        assertRebased("[{\"op\": \"replace\", \"path\": \"/items/1/qty\", \"value\": 5}]",
+                "[{\"op\": \"replace\", \"path\": \"/items/2/qty\", \"value\": 5}]",
+                "[{\"op\": \"remove\", \"path\": \"/items/0\"}]");
+        assertRebased("[{\"op\": \"replace\", \"path\": \"/items/4/qty\", \"value\": 5}]",
+                "[{\"op\": \"replace\", \"path\": \"/items/2/qty\", \"value\": 5}]",
+                "[{\"op\": \"add\", \"path\": \"/items/0\", \"value\": {}}, {\"op\": \"add\", \"path\": \"/items/3\", \"value\": {}}]");
+    }
+
+    @Test
+    public void concurrentInsertsAtTheSamePositionGoAfter() {
+        assertRebased("[{\"op\": \"add\", \"path\": \"/items/2\", \"value\": {\"qty\": 7}}]",
+                "[{\"op\": \"add\", \"path\": \"/items/1\", \"value\": {\"qty\": 7}}]",
+                "[{\"op\": \"add\", \"path\": \"/items/1\", \"value\": {\"qty\": 8}}]");
+        assertRebased("[{\"op\": \"add\", \"path\": \"/items/1\", \"value\": {\"qty\": 7}}]",
+                "[{\"op\": \"add\", \"path\": \"/items/1\", \"value\": {\"qty\": 7}}]",
+                "[{\"op\": \"remove\", \"path\": \"/items/1\"}]");
+    }
+
+    @Test
+    public void followsMovedValues() {
+        assertRebased("[{\"op\": \"replace\", \"path\": \"/buyer/name\", \"value\": \"y\"}]",
+                "[{\"op\": \"replace\", \"path\": \"/customer/name\", \"value\": \"y\"}]",
+                "[{\"op\": \"move\", \"from\": \"/customer\", \"path\": \"/buyer\"}]");
+        assertRebased("[{\"op\": \"replace\", \"path\": \"/items/0/qty\", \"value\": 5}]",
+                "[{\"op\": \"replace\", \"path\": \"/items/2/qty\", \"value\": 5}]",
+                "[{\"op\": \"move\", \"from\": \"/items/2\", \"path\": \"/items/0\"}]");
+    }
+
+    @Test
+    public void dropsOperationsAlreadyCarriedOut() {
+        assertRebased("[{\"op\": \"replace\", \"path\": \"/a\", \"value\": 3}]",
+                "[{\"op\": \"remove\", \"path\": \"/items/0\"}, {\"op\": \"replace\", \"path\": \"/a\", \"value\": 3}]",
+                "[{\"op\": \"remove\", \"path\": \"/items/0\"}]");
+        assertRebased("[]",
+                "[{\"op\": \"replace\", \"path\": \"/a\", \"value\": 2}, {\"op\": \"remove\", \"path\": \"/customer/name\"}]",
+                "[{\"op\": \"replace\", \"path\": \"/a\", \"value\": 2}, {\"op\": \"remove\", \"path\": \"/customer\"}]");
+    }
+
+    @Test
+    public void laterOperationsSeeEarlierOnes() {
+        // the first operation moves the original first element to index 1, which the concurrent patch removed
+        BsonRebase.Result result = rebase("[{\"op\": \"add\", \"path\": \"/items/0\", \"value\": {}},"
+                + "{\"op\": \"replace\", \"path\": \"/items/1/qty\", \"value\": 5},"
+                + "{\"op\": \"replace\", \"path\": \"/items/2/qty\", \"value\": 6}]",
+                "[{\"op\": \"remove\", \"path\": \"/items/0\"}]");
+        assertEquals(BsonArray.parse("[{\"op\": \"add\", \"path\": \"/items/0\", \"value\": {}},"
+                + "{\"op\": \"replace\", \"path\": \"/items/1/qty\", \"value\": 6}]"), result.getPatch());
+        assertEquals(1, result.getConflicts().size());
+        assertEquals(1, result.getConflicts().get(0).getOperation());
+        assertEquals(0, result.getConflicts().get(0).getConcurrentOperation());
+    }
+
+    @Test
+    public void reportsConflicts() {
+        assertConflict("changed concurrently",
+                "[{\"op\": \"replace\", \"path\": \"/a\", \"value\": 2}]",
+                "[{\"op\": \"replace\", \"path\": \"/a\", \"value\": 3}]");
+        assertConflict("removed concurrently",
+                "[{\"op\": \"replace\", \"path\": \"/items/1/qty\", \"value\": 2}]",
+                "[{\"op\": \"remove\", \"path\": \"/items/1\"}]");
+        assertConflict("changed inside concurrently",
+                "[{\"op\": \"replace\", \"path\": \"/customer\", \"value\": {}}]",
+                "[{\"op\": \"replace\", \"path\": \"/customer/name\", \"value\": \"y\"}]");
+        assertConflict("replaced concurrently",
+                "[{\"op\": \"add\", \"path\": \"/customer/age\", \"value\": 3}]",
+                "[{\"op\": \"replace\", \"path\": \"/customer\", \"value\": {}}]");
+        assertConflict("changed concurrently",
+                "[{\"op\": \"remove\", \"path\": \"/a\"}]",
+                "[{\"op\": \"replace\", \"path\": \"/a\", \"value\": 3}]");
+        assertConflict("array moved from changed concurrently",
+                "[{\"op\": \"move\", \"from\": \"/items/2\", \"path\": \"/last\"}]",
+                "[{\"op\": \"remove\", \"path\": \"/items/0\"}]");
+    }
+
+    @Test
+    public void conflictFreeRebasesConverge() {
+        Random random = new Random();
+        int checked = 0;
+        for (int i = 0; i < 500; i++) {
+            BsonDocument base = BsonDocument.parse("{\"x\": {}, \"y\": {}}");
+            BsonArray list = new BsonArray();
+            for (int j = random.nextInt(8); j > 0; j--) {
+                list.add(new BsonDocument("n", new BsonInt32(j)));
+            }
+            base.put("list", list);
+            BsonArray first = edit(random, base);
+            BsonArray second = edit(random, base);
+            BsonRebase.Result firstOver = BsonRebase.rebase(first, second);
+            BsonRebase.Result secondOver = BsonRebase.rebase(second, first);
+            if (firstOver.hasConflicts() || secondOver.hasConflicts()) {
+                continue;
+            }
+            BsonValue one = BsonPatch.apply(firstOver.getPatch(), BsonPatch.apply(second, base));
+            BsonValue other = BsonPatch.apply(secondOver.getPatch(), BsonPatch.apply(first, base));
+            assertEquals(first + " / " + second, one, other);
+            checked++;
+        }
+        assertTrue(checked > 50);
+    }
+
+    /** Records random edits, which insert nothing into arrays, so no ties between inserts arise. */
+    private static BsonArray edit(Random random, BsonDocument base) {
+        TrackedBsonDocument tracked = TrackedBsonDocument.track(base.clone());
+        for (int i = random.nextInt(4); i >= 0; i--) {
+            BsonArray list = tracked.getArray("list");
+            switch (random.nextInt(5)) {
+                case 0:
+                    if (!list.isEmpty()) {
+                        list.remove(random.nextInt(list.size()));
+                    }
+                    break;
+                case 1:
+                    if (!list.isEmpty()) {
+                        list.get(random.nextInt(list.size())).asDocument().put("m", new BsonInt32(random.nextInt(3)));
+                    }
+                    break;
+                case 2:
+                    tracked.getDocument(random.nextBoolean() ? "x" : "y").put("f" + random.nextInt(3), new BsonInt32(random.nextInt(3)));
+                    break;
+                case 3:
+                    tracked.getDocument(random.nextBoolean() ? "x" : "y").remove("f" + random.nextInt(3));
+                    break;
+                default:
+                    list.add(new BsonDocument());
+                    list.remove(list.size() - 1);
+                    break;
+            }
+        }
+        return tracked.getPatch();
+    }
+}
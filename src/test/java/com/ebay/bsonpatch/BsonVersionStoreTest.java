@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BsonVersionStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<BsonDocument> history(int versions) {
+        Random random = new Random(versions);
+        List<BsonDocument> history = new ArrayList<BsonDocument>();
+        BsonDocument document = new BsonDocument("items", new BsonArray());
+        for (int i = 0; i < versions; i++) {
+            document = document.clone();
+            document.put("version", new BsonInt32(i));
+            document.getArray("items").add(new BsonDocument("n", new BsonInt32(random.nextInt(100))));
+            if (random.nextInt(4) == 0) {
+                document.getArray("items").remove(0);
+            }
+            history.add(document);
+        }
+        return history;
+    }
+
+    @Test
+    public void rebuildsEveryVersion() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        List<BsonDocument> history = history(50);
+        try (BsonVersionStore store = BsonVersionStore.open(directory, SnapshotPolicy.every(8))) {
+            for (BsonDocument document : history) {
+                store.append(document);
+            }
+            assertEquals(50, store.getLatestVersion());
+            for (int i = 0; i < history.size(); i++) {
+                assertEquals(history.get(i), store.get(i + 1));
+            }
+            assertEquals(Arrays.asList(1L, 9L, 17L, 25L, 33L, 41L, 49L), store.getSnapshotVersions());
+        }
+        try (BsonVersionStore store = BsonVersionStore.open(directory)) {
+            assertEquals(50, store.getLatestVersion());
+            for (int i = 0; i < history.size(); i++) {
+                assertEquals(history.get(i), store.get(i + 1));
+            }
+            BsonDocument next = history.get(49).clone();
+            next.put("version", new BsonInt32(50));
+            assertEquals(51, store.append(next));
+            assertEquals(next, store.get(51));
+        }
+    }
+
+    @Test
+    public void snapshotsWhenPatchesOutgrowTheDocument() throws IOException {
+        try (BsonVersionStore store = BsonVersionStore.open(folder.getRoot().toPath(), SnapshotPolicy.whenPatchesOutgrowDocument())) {
+            StringBuilder unchanged = new StringBuilder();
+            for (int i = 0; i < 20; i++) {
+                unchanged.append("unchanged ");
+            }
+            BsonDocument document = new BsonDocument("a", new BsonInt32(0)).append("b", new BsonString(unchanged.toString()));
+            for (int i = 0; i < 10; i++) {
+                document.put("a", new BsonInt32(i));
+                store.append(document);
+            }
+            document = new BsonDocument("c", new BsonInt32(0));
+            store.append(document);
+            assertEquals(Arrays.asList(1L, 5L, 9L, 11L), store.getSnapshotVersions());
+            assertEquals(document, store.get(11));
+        }
+    }
+
+    @Test
+    public void growsPastTheInitialMapping() throws IOException {
+        BsonArray large = new BsonArray();
+        for (int i = 0; i < 2000; i++) {
+            large.add(new BsonString("element " + i));
+        }
+        try (BsonVersionStore store = BsonVersionStore.open(folder.getRoot().toPath(), SnapshotPolicy.every(1))) {
+            for (int i = 0; i < 10; i++) {
+                store.append(new BsonDocument("i", new BsonInt32(i)).append("large", large));
+            }
+            assertEquals(new BsonDocument("i", new BsonInt32(3)).append("large", large), store.get(4));
+        }
+    }
+
+    @Test
+    public void discardsVersionCutShortByCrash() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        List<BsonDocument> history = history(5);
+        try (BsonVersionStore store = BsonVersionStore.open(directory)) {
+            for (BsonDocument document : history) {
+                store.append(document);
+            }
+        }
+        try (RandomAccessFile file = new RandomAccessFile(directory.resolve("versions.log").toFile(), "rw")) {
+            long offset = 0;
+            for (int i = 0; i < 4; i++) {
+                file.seek(offset);
+                offset += 8 + file.readInt();
+            }
+            // a byte of the last record never made it to the disk
+            file.seek(offset + 20);
+            file.write(file.read() ^ 0xff);
+        }
+        try (BsonVersionStore store = BsonVersionStore.open(directory)) {
+            assertEquals(4, store.getLatestVersion());
+            assertEquals(history.get(3), store.get(4));
+            assertEquals(5, store.append(history.get(4)));
+            assertEquals(history.get(4), store.get(5));
+        }
+        try (BsonVersionStore store = BsonVersionStore.open(directory)) {
+            assertEquals(5, store.getLatestVersion());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownVersions() throws IOException {
+        try (BsonVersionStore store = BsonVersionStore.open(folder.getRoot().toPath())) {
+            store.append(new BsonDocument());
+            store.get(2);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonValue;
+import org.junit.Test;
+
+public class ChainDiffTest {
+
+    @Test
+    public void shortChainsHaveNoPatches() {
+        assertEquals(Collections.<BsonArray>emptyList(), BsonDiff.asBsonChain(Collections.<BsonValue>emptyList()));
+        assertEquals(Collections.<BsonArray>emptyList(), BsonDiff.asBsonChain(Collections.singletonList(new BsonDocument())));
+    }
+
+    @Test
+    public void patchesMatchPairwiseDiffs() {
+        Random random = new Random();
+        List<BsonValue> versions = new ArrayList<BsonValue>();
+        BsonDocument version = new BsonDocument("items", TestDataGenerator.generate(5));
+        for (int i = 0; i < 50; i++) {
+            versions.add(version);
+            version = version.clone();
+            BsonArray items = version.getArray("items");
+            if (random.nextBoolean() || items.isEmpty()) {
+                items.add(random.nextInt(items.size() + 1), TestDataGenerator.generate(1).get(0));
+            } else {
+                items.remove(random.nextInt(items.size()));
+            }
+            version.put("revision", new BsonInt32(i));
+        }
+
+        for (EnumSet<DiffFlags> flags : flagSets()) {
+            List<BsonArray> patches = BsonDiff.asBsonChain(versions, flags);
+            assertEquals(versions.size() - 1, patches.size());
+            for (int i = 0; i < patches.size(); i++) {
+                assertEquals(BsonDiff.asBson(versions.get(i), versions.get(i + 1), flags), patches.get(i));
+            }
+        }
+
+        BsonValue replayed = versions.get(0).asDocument().clone();
+        for (BsonArray patch : BsonDiff.asBsonChain(versions)) {
+            BsonPatch.applyInPlace(patch, replayed);
+        }
+        assertEquals(versions.get(versions.size() - 1), replayed);
+    }
+
+    @Test
+    public void collidingFingerprintsAreConfirmed() {
+        BsonDocument source = BsonDocument.parse("{\"a\": {\"x\": 1}, \"b\": [1]}");
+        BsonDocument target = BsonDocument.parse("{\"a\": {\"x\": 2}, \"b\": [2]}");
+        Map<BsonValue, BsonFingerprint> sourceFingerprints = BsonFingerprint.ofAll(source);
+        // every document and array of the target collides with its counterpart in the source
+        Map<BsonValue, BsonFingerprint> targetFingerprints = new IdentityHashMap<BsonValue, BsonFingerprint>();
+        targetFingerprints.put(target, sourceFingerprints.get(source));
+        targetFingerprints.put(target.get("a"), sourceFingerprints.get(source.get("a")));
+        targetFingerprints.put(target.get("b"), sourceFingerprints.get(source.get("b")));
+        assertEquals(BsonDiff.asBson(source, target),
+                BsonDiff.asBson(source, target, DiffFlags.defaults(), sourceFingerprints, targetFingerprints));
+    }
+
+    @Test
+    public void generatedChainsMatchPairwiseDiffs() {
+        Random random = new Random();
+        for (int n = 0; n < 20; n++) {
+            List<BsonValue> versions = new ArrayList<BsonValue>();
+            for (int i = 0; i < 10; i++) {
+                versions.add(TestDataGenerator.generate(random.nextInt(10)));
+            }
+            List<BsonArray> patches = BsonDiff.asBsonChain(versions);
+            for (int i = 0; i < patches.size(); i++) {
+                assertEquals(BsonDiff.asBson(versions.get(i), versions.get(i + 1)), patches.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void fingerprintsOfAllSubtreesMatchTheirOwn() {
+        BsonDocument document = BsonDocument.parse("{\"a\": [1, {\"b\": [2, 3]}, []], \"c\": {\"d\": {}}}");
+        Map<BsonValue, BsonFingerprint> fingerprints = BsonFingerprint.ofAll(document);
+        assertEquals(7, fingerprints.size());
+        for (Map.Entry<BsonValue, BsonFingerprint> entry : fingerprints.entrySet()) {
+            assertEquals(BsonFingerprint.of(entry.getKey()), entry.getValue());
+        }
+        assertTrue(fingerprints.containsKey(document.getArray("a").get(1).asDocument().getArray("b")));
+    }
+
+    private static List<EnumSet<DiffFlags>> flagSets() {
+        List<EnumSet<DiffFlags>> flagSets = new ArrayList<EnumSet<DiffFlags>>();
+        flagSets.add(DiffFlags.defaults());
+        flagSets.add(EnumSet.of(DiffFlags.EMIT_TEST_OPERATIONS, DiffFlags.ADD_ORIGINAL_VALUE_ON_REPLACE));
+        flagSets.add(DiffFlags.dontNormalizeOpIntoMoveAndCopy());
+        return flagSets;
+    }
+}
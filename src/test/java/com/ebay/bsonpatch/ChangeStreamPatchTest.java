@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ChangeStreamPatchTest {
+
+    private static BsonArray events;
+
+    @BeforeClass
+    public static void beforeClass() throws IOException {
+        events = BsonArray.parse(TestUtils.loadFromResources("/testdata/change-stream.json"));
+    }
+
+    @Test
+    public void recordedEventsConvertToPatchesGivingTheFullDocument() {
+        for (BsonValue value : events) {
+            BsonDocument fixture = value.asDocument();
+            String message = fixture.getString("message").getValue();
+            BsonDocument before = fixture.getDocument("before");
+            BsonDocument event = fixture.getDocument("event");
+            BsonDocument updateDescription = event.getDocument("updateDescription");
+
+            BsonArray patch = ChangeStreamPatch.fromUpdateDescription(updateDescription, before);
+            assertEquals(message, fixture.getArray("patch"), patch);
+            assertEquals(message, event.getDocument("fullDocument"), BsonPatch.apply(patch, before));
+
+            if (fixture.containsKey("patchWithoutDocument")) {
+                BsonArray withoutDocument = ChangeStreamPatch.fromUpdateDescription(updateDescription);
+                assertEquals(message, fixture.getArray("patchWithoutDocument"), withoutDocument);
+                assertEquals(message, event.getDocument("fullDocument"), BsonPatch.apply(withoutDocument, before));
+            }
+        }
+    }
+
+    @Test
+    public void missingDocumentsOnThePathAreCreated() {
+        BsonDocument before = BsonDocument.parse("{\"_id\": 1}");
+        BsonDocument description = BsonDocument.parse("{\"updatedFields\": {\"profile.address.city\": \"Paris\","
+                + "\"profile.address.zip\": \"75001\", \"profile.name\": \"Ann\"}, \"removedFields\": [\"gone\"]}");
+        BsonArray patch = ChangeStreamPatch.fromUpdateDescription(description, before);
+        assertEquals(BsonArray.parse("["
+                + "{\"op\": \"add\", \"path\": \"/profile\", \"value\": {}},"
+                + "{\"op\": \"add\", \"path\": \"/profile/address\", \"value\": {}},"
+                + "{\"op\": \"add\", \"path\": \"/profile/address/city\", \"value\": \"Paris\"},"
+                + "{\"op\": \"add\", \"path\": \"/profile/address/zip\", \"value\": \"75001\"},"
+                + "{\"op\": \"add\", \"path\": \"/profile/name\", \"value\": \"Ann\"}]"), patch);
+        assertEquals(BsonDocument.parse("{\"_id\": 1, \"profile\": {\"address\": {\"city\": \"Paris\", \"zip\": \"75001\"}, \"name\": \"Ann\"}}"),
+                BsonPatch.apply(patch, before));
+    }
+
+    @Test
+    public void indexesPastTheEndPadWithNulls() {
+        BsonDocument before = BsonDocument.parse("{\"scores\": [1, 2]}");
+        BsonDocument description = BsonDocument.parse("{\"updatedFields\": {\"scores.4\": 9, \"scores.2\": 3}}");
+        BsonArray patch = ChangeStreamPatch.fromUpdateDescription(description, before);
+        assertEquals(BsonDocument.parse("{\"scores\": [1, 2, 3, null, 9]}"), BsonPatch.apply(patch, before));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncationNeedsTheDocument() {
+        ChangeStreamPatch.fromUpdateDescription(BsonDocument.parse("{\"updatedFields\": {}, \"removedFields\": [],"
+                + "\"truncatedArrays\": [{\"field\": \"tags\", \"newSize\": 1}]}"));
+    }
+
+    @Test(expected = BsonPatchApplicationException.class)
+    public void appendsWithoutTheDocumentFailToApply() {
+        BsonDocument before = BsonDocument.parse("{\"items\": [1]}");
+        BsonArray patch = ChangeStreamPatch.fromUpdateDescription(BsonDocument.parse("{\"updatedFields\": {\"items.1\": 2}}"));
+        BsonPatch.apply(patch, before);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pathsMustFitTheDocument() {
+        ChangeStreamPatch.fromUpdateDescription(BsonDocument.parse("{\"updatedFields\": {\"items.first\": 2}}"),
+                BsonDocument.parse("{\"items\": [1]}"));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.EnumSet;
+import java.util.Random;
+
+import org.bson.BsonArray;
+import org.bson.BsonBinary;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.junit.Test;
+
+public class CompactPatchTest {
+
+    @Test
+    public void encodesPathsAsSharedNodes() {
+        BsonArray patch = BsonArray.parse("["
+                + "{\"op\": \"replace\", \"path\": \"/items/0/name\", \"value\": \"a\"},"
+                + "{\"op\": \"replace\", \"path\": \"/items/1/name\", \"value\": \"b\"},"
+                + "{\"op\": \"move\", \"from\": \"/items/1/name\", \"path\": \"/items/-\"},"
+                + "{\"op\": \"remove\", \"path\": \"/~1odd~0/00\"}]");
+        BsonDocument compact = CompactPatch.encode(patch);
+        assertEquals(BsonArray.parse("[\"items\", \"name\", \"-\", \"/odd~\", \"00\"]"), compact.getArray("k"));
+        // parent and zigzag encoded token of /items, /items/0, /items/0/name, /items/1, /items/1/name, /items/-, /~1odd~0, /~1odd~0/00
+        assertArrayEquals(new byte[] {0, 0, 1, 1, 2, 2, 1, 3, 4, 2, 1, 4, 0, 6, 7, 8}, compact.getBinary("n").getData());
+        // the move takes its from path from the preceding replace
+        assertEquals(BsonArray.parse("[106, \"a\", 170, \"b\", 195, 257]"), compact.getArray("o"));
+        assertEquals(patch, CompactPatch.decode(compact));
+    }
+
+    @Test
+    public void fromIsKeptWhenNotImplied() {
+        BsonArray patch = BsonArray.parse("[{\"op\": \"copy\", \"from\": \"/a\", \"path\": \"/b\"}]");
+        BsonDocument compact = CompactPatch.encode(patch);
+        assertEquals(BsonArray.parse("[44, 2]"), compact.getArray("o"));
+        assertEquals(patch, CompactPatch.decode(compact));
+    }
+
+    @Test
+    public void missingValuesFollowCompatibilityFlags() {
+        BsonArray patch = BsonArray.parse("[{\"op\": \"add\", \"path\": \"/a\"}]");
+        BsonDocument compact = CompactPatch.encode(patch);
+        assertEquals(BsonDocument.parse("{\"a\": null}"),
+                CompactPatch.apply(compact, new BsonDocument(), EnumSet.of(CompatibilityFlags.MISSING_VALUES_AS_NULLS)));
+        try {
+            CompactPatch.apply(compact, new BsonDocument());
+            throw new AssertionError("missing value should have failed");
+        } catch (InvalidBsonPatchException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = InvalidBsonPatchException.class)
+    public void rejectsForwardNodeReferences() {
+        BsonDocument compact = BsonDocument.parse("{\"v\": 1, \"k\": [\"a\"], \"o\": []}");
+        compact.put("n", new BsonBinary(new byte[] {1, 0, 0, 0}));
+        CompactPatch.decode(compact);
+    }
+
+    @Test(expected = BsonPatchApplicationException.class)
+    public void reportsApplicationErrors() {
+        BsonArray patch = BsonArray.parse("[{\"op\": \"remove\", \"path\": \"/missing/field\"}]");
+        CompactPatch.apply(CompactPatch.encode(patch), new BsonDocument());
+    }
+
+    @Test
+    public void generatedPatchesRoundTripAndApply() {
+        Random random = new Random();
+        for (int i = 0; i < 200; i++) {
+            BsonArray source = TestDataGenerator.generate(random.nextInt(10));
+            BsonArray target = TestDataGenerator.generate(random.nextInt(10));
+            BsonArray patch = BsonDiff.asBson(source, target, EnumSet.of(DiffFlags.ADD_ORIGINAL_VALUE_ON_REPLACE, DiffFlags.EMIT_TEST_OPERATIONS));
+            BsonDocument compact = CompactPatch.encode(patch);
+
+            assertEquals(patch, CompactPatch.decode(compact));
+            assertEquals(target, CompactPatch.apply(compact, source));
+            BsonValue copy = source.clone();
+            CompactPatch.applyInPlace(compact, copy);
+            assertEquals(target, copy);
+        }
+    }
+
+    @Test
+    public void wideArrayEditsShrink() {
+        BsonDocument source = new BsonDocument();
+        BsonDocument target = new BsonDocument();
+        BsonArray sourceItems = new BsonArray();
+        BsonArray targetItems = new BsonArray();
+        for (int i = 0; i < 100; i++) {
+            sourceItems.add(BsonDocument.parse("{\"description\": \"item\", \"quantity\": " + i + "}"));
+            targetItems.add(BsonDocument.parse("{\"description\": \"item\", \"quantity\": " + (i + 1000) + "}"));
+        }
+        source.put("lineItems", sourceItems);
+        target.put("lineItems", targetItems);
+        BsonArray patch = BsonDiff.asBson(source, target);
+        BsonDocument compact = CompactPatch.encode(patch);
+        assertTrue(size(compact) * 3 < size(new BsonDocument("p", patch)));
+    }
+
+    private static int size(BsonDocument document) {
+        return new RawBsonDocument(document, new BsonDocumentCodec()).getByteBuffer().remaining();
+    }
+}
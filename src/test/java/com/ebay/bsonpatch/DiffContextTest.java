@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonValue;
+import org.junit.Test;
+
+public class DiffContextTest {
+
+    @Test
+    public void reusedContextProducesWorkingPatches() {
+        DiffContext context = new DiffContext();
+        Random random = new Random();
+        List<EnumSet<DiffFlags>> flagSets = new ArrayList<EnumSet<DiffFlags>>();
+        flagSets.add(DiffFlags.defaults());
+        flagSets.add(DiffFlags.dontNormalizeOpIntoMoveAndCopy());
+        flagSets.add(EnumSet.of(DiffFlags.EMIT_TEST_OPERATIONS, DiffFlags.ADD_ORIGINAL_VALUE_ON_REPLACE));
+        for (int i = 0; i < 500; i++) {
+            BsonArray source = TestDataGenerator.generate(random.nextInt(10));
+            BsonArray target = TestDataGenerator.generate(random.nextInt(10));
+            for (EnumSet<DiffFlags> flags : flagSets) {
+                BsonArray patch = context.asBson(source, target, flags);
+                assertEquals(target, BsonPatch.apply(patch, source));
+            }
+        }
+    }
+
+    @Test
+    public void skipsCommonPrefixAndSuffix() {
+        BsonDocument source = BsonDocument.parse("{\"a\": [1, 2, 3, [4, 5], 6, 7]}");
+        BsonDocument target = BsonDocument.parse("{\"a\": [1, 2, 9, [4, 8, 5], 6, 7]}");
+        BsonArray patch = new DiffContext().asBson(source, target);
+        assertEquals(BsonArray.parse("[{\"op\": \"replace\", \"path\": \"/a/2\", \"value\": 9},"
+                + "{\"op\": \"add\", \"path\": \"/a/3/1\", \"value\": 8}]"), patch);
+        assertEquals(BsonDiff.asBson(source, target), patch);
+    }
+
+    @Test
+    public void largeArraysFallBack() {
+        BsonArray source = new BsonArray();
+        BsonArray target = new BsonArray();
+        for (int i = 0; i < 2000; i++) {
+            source.add(new BsonInt32(i));
+            if (i % 7 != 0) {
+                target.add(new BsonInt32(i));
+            }
+            if (i % 11 == 0) {
+                target.add(new BsonInt32(-i));
+            }
+        }
+        BsonValue patched = BsonPatch.apply(new DiffContext().asBson(source, target), source);
+        assertEquals(target, patched);
+    }
+
+    @Test
+    public void shortArrayAgainstLongOne() {
+        BsonArray source = BsonArray.parse("[1, 2, 3, 4, 5]");
+        BsonArray target = new BsonArray();
+        for (int i = 0; i < 100000; i++) {
+            target.add(new BsonInt32(-i));
+        }
+        target.set(500, new BsonInt32(3));
+        DiffContext context = new DiffContext();
+        assertEquals(target, BsonPatch.apply(context.asBson(source, target), source));
+        // only the symbol shared by both arrays gets a mask
+        assertTrue(context.masks(0).length <= 100000 / 64 + 1);
+    }
+
+    @Test
+    public void contextIsEmptiedAfterUse() {
+        DiffContext context = new DiffContext();
+        context.asBson(BsonDocument.parse("{\"a\": [1, 2], \"b\": {\"c\": 1}}"), BsonDocument.parse("{\"a\": [2], \"d\": {\"c\": 1}}"));
+        assertEquals(0, context.diffs.size());
+        assertEquals(0, context.unchangedValues.size());
+    }
+}
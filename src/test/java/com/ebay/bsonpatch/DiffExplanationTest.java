@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.EnumSet;
+import java.util.Random;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonType;
+import org.junit.Test;
+
+public class DiffExplanationTest {
+
+    @Test
+    public void profilesEachComparedContainer() {
+        BsonDocument source = BsonDocument.parse("{\"a\": {\"b\": [1, 2, 3], \"c\": 1}, \"d\": [{\"e\": 1}], \"f\": {\"same\": true}}");
+        BsonDocument target = BsonDocument.parse("{\"a\": {\"b\": [1, 3], \"c\": 2}, \"d\": [{\"e\": 2}, 4], \"f\": {\"same\": true}}");
+        DiffExplanation explanation = BsonDiff.explain(source, target);
+
+        assertEquals(BsonDiff.asBson(source, target), explanation.getPatch());
+
+        DiffExplanation.Node root = explanation.getRoot();
+        assertTrue(root.getPath().isRoot());
+        assertEquals(BsonType.DOCUMENT, root.getType());
+        // a, d and f; f is compared as a whole since both sides are equal
+        assertEquals(3, root.getChildren().size());
+        // root, a, a/b, a/c, d, d/0, d/0/e, f
+        assertEquals(8, root.getNodesCompared());
+        assertEquals(4, root.getOperations());
+
+        DiffExplanation.Node b = explanation.get(JsonPointer.parse("/a/b"));
+        assertEquals(BsonType.ARRAY, b.getType());
+        assertTrue(b.hasLcs());
+        assertEquals(3, b.getLcsSourceSize());
+        assertEquals(2, b.getLcsTargetSize());
+        assertEquals(1, b.getOperations());
+        assertTrue(b.getElapsedNanos() <= explanation.get(JsonPointer.parse("/a")).getElapsedNanos());
+
+        DiffExplanation.Node d0 = explanation.get(JsonPointer.parse("/d/0"));
+        assertEquals(BsonType.DOCUMENT, d0.getType());
+        assertFalse(d0.hasLcs());
+        assertEquals(2, d0.getNodesCompared());
+        assertEquals(1, d0.getOperations());
+
+        assertNull(explanation.get(JsonPointer.parse("/a/c")));
+        assertTrue(explanation.getPhaseNanos(DiffPhase.GENERATE_DIFFS) > 0);
+        assertTrue(explanation.getElapsedNanos() >= explanation.getPhaseNanos(DiffPhase.GENERATE_DIFFS));
+        assertTrue(explanation.toString().contains("/a/b ARRAY"));
+    }
+
+    @Test
+    public void skippedPhasesTakeNoTime() {
+        DiffExplanation explanation = BsonDiff.explain(new BsonInt32(1), new BsonInt32(2), DiffFlags.dontNormalizeOpIntoMoveAndCopy());
+        assertEquals(0, explanation.getPhaseNanos(DiffPhase.INTRODUCE_MOVE_OPERATION));
+        assertEquals(0, explanation.getPhaseNanos(DiffPhase.INTRODUCE_COPY_OPERATION));
+        assertEquals(BsonType.INT32, explanation.getRoot().getType());
+        assertEquals(1, explanation.getRoot().getOperations());
+        assertTrue(explanation.getRoot().getChildren().isEmpty());
+    }
+
+    @Test
+    public void generatedDiffsMatchAsBson() {
+        Random random = new Random();
+        EnumSet<DiffFlags> flags = DiffFlags.defaults();
+        for (int i = 0; i < 100; i++) {
+            BsonArray source = TestDataGenerator.generate(random.nextInt(10));
+            BsonArray target = TestDataGenerator.generate(random.nextInt(10));
+            DiffExplanation explanation = BsonDiff.explain(source, target, flags);
+            assertEquals(BsonDiff.asBson(source, target, flags), explanation.getPatch());
+            if (!source.equals(target)) {
+                assertEquals(source.size(), explanation.getRoot().getLcsSourceSize());
+            }
+        }
+    }
+}
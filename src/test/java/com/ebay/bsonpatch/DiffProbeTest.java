@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Random;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.junit.Test;
+
+public class DiffProbeTest {
+
+    private static final EnumSet<DiffFlags> RAW = DiffFlags.dontNormalizeOpIntoMoveAndCopy();
+
+    @Test
+    public void equalValuesHaveNoDifferences() {
+        BsonDocument source = BsonDocument.parse("{\"a\": [1, 2, {\"b\": 3}]}");
+        BsonDocument target = BsonDocument.parse("{\"a\": [1, 2, {\"b\": 3}]}");
+        assertFalse(BsonDiff.hasDifferences(source, target));
+        assertNull(BsonDiff.firstDifference(source, target));
+        assertEquals(0, BsonDiff.countAtMost(source, target, 5));
+    }
+
+    @Test
+    public void firstDifferencePointsIntoNestedDocument() {
+        BsonDocument source = BsonDocument.parse("{\"a\": {\"b\": {\"c\": 1}}, \"d\": 2}");
+        BsonDocument target = BsonDocument.parse("{\"a\": {\"b\": {\"c\": 2}}, \"d\": 3}");
+        assertTrue(BsonDiff.hasDifferences(source, target));
+        assertEquals("/a/b/c", BsonDiff.firstDifference(source, target).toString());
+    }
+
+    @Test
+    public void countStopsAtLimit() {
+        BsonDocument source = BsonDocument.parse("{\"a\": 1, \"b\": 2, \"c\": 3}");
+        BsonDocument target = BsonDocument.parse("{\"a\": 4, \"b\": 5, \"c\": 6}");
+        assertEquals(2, BsonDiff.countAtMost(source, target, 2));
+        assertEquals(3, BsonDiff.countAtMost(source, target, 10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void countRejectsNonPositiveLimit() {
+        BsonDiff.countAtMost(new BsonDocument(), new BsonDocument(), 0);
+    }
+
+    @Test
+    public void probeAgreesWithGeneratedPatch() throws IOException {
+        BsonArray samples = BsonArray.parse(TestUtils.loadFromResources("/testdata/sample.json"));
+        for (BsonValue sample : samples) {
+            assertAgreesWithPatch(sample.asDocument().get("first"), sample.asDocument().get("second"));
+        }
+        Random random = new Random();
+        for (int i = 0; i < 200; i++) {
+            assertAgreesWithPatch(TestDataGenerator.generate(random.nextInt(10)), TestDataGenerator.generate(random.nextInt(10)));
+        }
+    }
+
+    private static void assertAgreesWithPatch(BsonValue source, BsonValue target) {
+        BsonArray patch = new DiffContext().asBson(source, target, RAW);
+        assertEquals(patch.size(), BsonDiff.countAtMost(source, target, Integer.MAX_VALUE));
+        JsonPointer first = BsonDiff.firstDifference(source, target);
+        if (patch.isEmpty()) {
+            assertNull(first);
+        } else {
+            assertEquals(patch.get(0).asDocument().getString("path").getValue(), first.toString());
+        }
+    }
+}
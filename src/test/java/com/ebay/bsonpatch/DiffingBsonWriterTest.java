@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import static org.bson.codecs.configuration.CodecRegistries.fromProviders;
+import static org.bson.codecs.configuration.CodecRegistries.fromRegistries;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonJavaScriptWithScope;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.codecs.pojo.PojoCodecProvider;
+import org.junit.Test;
+
+import com.mongodb.MongoClientSettings;
+
+public class DiffingBsonWriterTest {
+
+    private static final CodecRegistry REGISTRY = fromRegistries(MongoClientSettings.getDefaultCodecRegistry(),
+            fromProviders(PojoCodecProvider.builder().automatic(true).build()));
+
+    public static class Address {
+        public String city;
+        public int zip;
+    }
+
+    public static class Customer {
+        public String name;
+        public Address address;
+        public List<String> tags;
+    }
+
+    private static Customer customer(String name, String city, String... tags) {
+        Customer customer = new Customer();
+        customer.name = name;
+        customer.address = new Address();
+        customer.address.city = city;
+        customer.address.zip = 75001;
+        customer.tags = Arrays.asList(tags);
+        return customer;
+    }
+
+    @Test
+    public void diffsAPojoAgainstTheStoredDocument() {
+        BsonDocument stored = BsonDocument.parse("{\"address\": {\"city\": \"Paris\", \"zip\": 75001, \"floor\": 2},"
+                + "\"name\": \"Ann\", \"tags\": [\"a\", \"b\"], \"legacy\": true}");
+        Customer customer = customer("Ann", "Lyon", "b", "c");
+        BsonArray patch = BsonDiff.asBsonOfEncoded(stored, customer, REGISTRY.get(Customer.class));
+
+        BsonDocument encoded = new BsonDocument();
+        REGISTRY.get(Customer.class).encode(new BsonDocumentWriter(encoded), customer,
+                EncoderContext.builder().build());
+        assertEquals(encoded, BsonPatch.apply(patch, stored));
+        assertEquals(BsonArray.parse("["
+                + "{\"op\": \"replace\", \"path\": \"/address/city\", \"value\": \"Lyon\"},"
+                + "{\"op\": \"remove\", \"path\": \"/address/floor\"},"
+                + "{\"op\": \"remove\", \"path\": \"/tags/0\"},"
+                + "{\"op\": \"add\", \"path\": \"/tags/1\", \"value\": \"c\"},"
+                + "{\"op\": \"remove\", \"path\": \"/legacy\"}]"), patch);
+    }
+
+    @Test
+    public void unchangedDocumentGivesAnEmptyPatch() {
+        Customer customer = customer("Ann", "Paris", "a");
+        BsonDocument stored = new BsonDocument();
+        REGISTRY.get(Customer.class).encode(new BsonDocumentWriter(stored), customer,
+                EncoderContext.builder().build());
+        assertEquals(new BsonArray(), BsonDiff.asBsonOfEncoded(stored, customer, REGISTRY.get(Customer.class)));
+    }
+
+    @Test
+    public void valuesOfAnotherTypeAreMaterialized() {
+        BsonDocument stored = BsonDocument.parse("{\"a\": \"text\", \"b\": {\"c\": 1}, \"d\": {\"e\": 1}}");
+        Document target = new Document("a", new Document("x", Arrays.asList(1, new Document("y", 2))))
+                .append("b", "text")
+                .append("d", new Document("e", 1).append("f", new BsonJavaScriptWithScope("f()", BsonDocument.parse("{\"s\": 1}"))));
+        BsonArray patch = BsonDiff.asBsonOfEncoded(stored, target, new DocumentCodec());
+        assertEquals(BsonArray.parse("["
+                + "{\"op\": \"replace\", \"path\": \"/a\", \"value\": {\"x\": [1, {\"y\": 2}]}},"
+                + "{\"op\": \"replace\", \"path\": \"/b\", \"value\": \"text\"},"
+                + "{\"op\": \"add\", \"path\": \"/d/f\", \"value\": {\"$code\": \"f()\", \"$scope\": {\"s\": 1}}}]"), patch);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void patchNeedsACompleteDocument() {
+        DiffingBsonWriter writer = new DiffingBsonWriter(new BsonDocument());
+        writer.writeStartDocument();
+        writer.writeString("a", "b");
+        writer.getPatch();
+    }
+
+    @Test
+    public void generatedDocumentsDiffLikeBsonDiff() {
+        Random random = new Random();
+        for (int i = 0; i < 200; i++) {
+            BsonDocument source = new BsonDocument("items", TestDataGenerator.generate(random.nextInt(10)))
+                    .append("same", TestDataGenerator.generate(3))
+                    .append("gone", new BsonString("x"));
+            BsonDocument target = new BsonDocument("items", TestDataGenerator.generate(random.nextInt(10)))
+                    .append("same", source.get("same"))
+                    .append("nested", new BsonDocument("items", TestDataGenerator.generate(random.nextInt(3))));
+
+            BsonArray patch = BsonDiff.asBsonOfEncoded(source, target, new BsonDocumentCodec());
+            assertEquals(target, BsonPatch.apply(patch, source));
+            Document document = (Document) MapValues.fromBson(target);
+            assertEquals(patch, BsonDiff.asBsonOfEncoded(source, document, new DocumentCodec()));
+        }
+    }
+}
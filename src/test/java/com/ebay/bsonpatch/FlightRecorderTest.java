@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class FlightRecorderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void noEventsWhileNotRecording() {
+        assertNull(FlightRecorder.beginDiff());
+        assertNull(FlightRecorder.beginApply());
+    }
+
+    @Test
+    public void recordsDiffAndApplyEvents() throws IOException {
+        BsonDocument source = BsonDocument.parse("{\"a\": [1, 2, 3], \"b\": 1}");
+        BsonDocument target = BsonDocument.parse("{\"a\": [1, 3, 4, 5], \"b\": 2, \"c\": 3}");
+        BsonArray failing = BsonArray.parse("[{\"op\": \"add\", \"path\": \"/x\", \"value\": 1}, {\"op\": \"remove\", \"path\": \"/y/z\"}]");
+
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable("com.ebay.bsonpatch.Diff").withThreshold(Duration.ZERO);
+            recording.enable("com.ebay.bsonpatch.Apply").withThreshold(Duration.ZERO);
+            recording.start();
+
+            BsonArray patch = BsonDiff.asBson(source, target);
+            BsonPatch.apply(patch, source);
+            BsonPatch.validate(patch);
+            try {
+                BsonPatch.applyInPlace(failing, source.clone());
+                fail("remove should have failed");
+            } catch (BsonPatchApplicationException e) {
+                // expected
+            }
+
+            recording.stop();
+            File file = folder.newFile("bsonpatch.jfr");
+            recording.dump(file.toPath());
+            events = RecordingFile.readAllEvents(file.toPath());
+        }
+
+        List<RecordedEvent> diffs = new ArrayList<RecordedEvent>();
+        List<RecordedEvent> applies = new ArrayList<RecordedEvent>();
+        for (RecordedEvent event : events) {
+            if (event.getEventType().getName().equals("com.ebay.bsonpatch.Diff")) diffs.add(event);
+            if (event.getEventType().getName().equals("com.ebay.bsonpatch.Apply")) applies.add(event);
+        }
+
+        assertEquals(1, diffs.size());
+        RecordedEvent diff = diffs.get(0);
+        assertEquals(2, diff.getInt("sourceSize"));
+        assertEquals(3, diff.getInt("targetSize"));
+        assertEquals(1, diff.getInt("lcsArrays"));
+        assertEquals(4, diff.getInt("largestLcsArray"));
+        assertEquals(12, diff.getLong("lcsCells"));
+        assertTrue(diff.getInt("operations") > 0);
+
+        // validation is not reported
+        assertEquals(2, applies.size());
+        RecordedEvent applied = applies.get(0);
+        assertFalse(applied.getBoolean("inPlace"));
+        assertFalse(applied.getBoolean("failed"));
+        assertEquals(diff.getInt("operations"), applied.getInt("operations"));
+        assertEquals(applied.getInt("operations"), applied.getInt("applied"));
+        RecordedEvent failed = applies.get(1);
+        assertTrue(failed.getBoolean("inPlace"));
+        assertTrue(failed.getBoolean("failed"));
+        assertEquals(2, failed.getInt("operations"));
+        assertEquals(1, failed.getInt("applied"));
+    }
+}
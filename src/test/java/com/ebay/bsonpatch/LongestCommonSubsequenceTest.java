@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonValue;
+import org.junit.Test;
+
+public class LongestCommonSubsequenceTest {
+
+    @Test
+    public void kernelsFindTheSameSubsequence() {
+        Random random = new Random();
+        DiffContext context = new DiffContext();
+        int[] sizes = {1, 2, 5, 63, 64, 65, 130, 300};
+        for (int rows : sizes) {
+            for (int columns : sizes) {
+                for (int alphabet : new int[] {2, 10, 1000}) {
+                    BsonArray first = randomArray(random, rows, alphabet);
+                    BsonArray second = randomArray(random, columns, alphabet);
+                    List<BsonValue> dynamic = new ArrayList<BsonValue>();
+                    List<BsonValue> bitParallel = new ArrayList<BsonValue>();
+                    LongestCommonSubsequence.dynamic(first, second, 0, rows, columns, dynamic, context);
+                    LongestCommonSubsequence.bitParallel(first, second, 0, rows, columns, bitParallel, context);
+                    assertEquals(dynamic, bitParallel);
+                    assertEquals(InternalUtils.longestCommonSubsequence(InternalUtils.toList(first), InternalUtils.toList(second)).size(),
+                            bitParallel.size());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rangesAreOffset() {
+        BsonArray first = BsonArray.parse("[0, 1, 2, 3, 9]");
+        BsonArray second = BsonArray.parse("[0, 3, 1, 2, 9, 9]");
+        List<BsonValue> lcs = new ArrayList<BsonValue>();
+        LongestCommonSubsequence.bitParallel(first, second, 1, 3, 4, lcs, new DiffContext());
+        assertEquals(BsonArray.parse("[1, 2]"), new BsonArray(lcs));
+    }
+
+    @Test
+    public void documentsAreInternedByValue() {
+        BsonArray first = new BsonArray();
+        BsonArray second = new BsonArray();
+        for (int i = 0; i < 100; i++) {
+            first.add(BsonDocument.parse("{\"sku\": " + i + ", \"tags\": [\"a\", \"b\"]}"));
+            if (i % 3 != 0) {
+                second.add(BsonDocument.parse("{\"tags\": [\"a\", \"b\"], \"sku\": " + i + "}"));
+            }
+        }
+        List<BsonValue> lcs = new ArrayList<BsonValue>();
+        LongestCommonSubsequence.bitParallel(first, second, 0, first.size(), second.size(), lcs, new DiffContext());
+        assertEquals(second, new BsonArray(lcs));
+    }
+
+    private static BsonArray randomArray(Random random, int size, int alphabet) {
+        BsonArray array = new BsonArray();
+        for (int i = 0; i < size; i++) {
+            array.add(new BsonInt32(random.nextInt(alphabet)));
+        }
+        return array;
+    }
+}
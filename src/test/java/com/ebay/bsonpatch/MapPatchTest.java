@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+public class MapPatchTest {
+
+    private static Document document(String json) {
+        return Document.parse(json);
+    }
+
+    @Test
+    public void diffsDocumentsLikeTheirBson() {
+        Document source = document("{\"_id\": {\"$oid\": \"5f1d7a3c9d1e8a1b2c3d4e5f\"}, \"name\": \"a\", \"tags\": [\"x\", \"y\"],"
+                + "\"address\": {\"city\": \"Paris\", \"zip\": 75001}, \"count\": {\"$numberLong\": \"1\"}}");
+        Document target = document("{\"_id\": {\"$oid\": \"5f1d7a3c9d1e8a1b2c3d4e5f\"}, \"name\": \"b\", \"tags\": [\"y\", \"z\"],"
+                + "\"address\": {\"city\": \"Lyon\", \"zip\": 75001}, \"count\": {\"$numberLong\": \"2\"}, \"created\": {\"$date\": 0}}");
+        BsonArray patch = BsonDiff.asBsonOfMaps(source, target);
+        assertEquals(BsonDiff.asBson(MapValues.toBson(source), MapValues.toBson(target)), patch);
+
+        Object patched = BsonPatch.applyToMap(patch, source);
+        assertEquals(target, patched);
+        assertTrue(((Document) patched).get("created") instanceof Date);
+        assertEquals(document("{\"city\": \"Paris\", \"zip\": 75001}"), source.get("address"));
+    }
+
+    @Test
+    public void unchangedFieldsAreNotConverted() {
+        Object opaque = new Object();
+        Document source = new Document("opaque", opaque).append("nested", new Document("opaque", opaque).append("n", 1));
+        Document target = new Document("opaque", opaque).append("nested", new Document("opaque", opaque).append("n", 2));
+        assertEquals(BsonArray.parse("[{\"op\": \"replace\", \"path\": \"/nested/n\", \"value\": 2}]"),
+                BsonDiff.asBsonOfMaps(source, target));
+        assertEquals(new BsonArray(), BsonDiff.asBsonOfMaps(source, new Document(source)));
+    }
+
+    @Test
+    public void appliesInPlace() {
+        List<Object> items = new ArrayList<Object>(Arrays.<Object>asList(1, 2, 3));
+        Document nested = new Document("items", items);
+        Document source = new Document("nested", nested).append("id", new ObjectId());
+        BsonArray patch = BsonArray.parse("["
+                + "{\"op\": \"remove\", \"path\": \"/nested/items/0\"},"
+                + "{\"op\": \"add\", \"path\": \"/nested/items/-\", \"value\": {\"a\": [1, {\"$numberLong\": \"2\"}]}},"
+                + "{\"op\": \"copy\", \"from\": \"/nested/items/2\", \"path\": \"/copied\"},"
+                + "{\"op\": \"move\", \"from\": \"/id\", \"path\": \"/nested/id\"},"
+                + "{\"op\": \"test\", \"path\": \"/copied/a/1\", \"value\": {\"$numberLong\": \"2\"}}]");
+        BsonPatch.applyInPlaceToMap(patch, source);
+
+        assertSame(nested, source.get("nested"));
+        assertSame(items, nested.get("items"));
+        assertEquals(Arrays.asList(2, 3, new Document("a", Arrays.asList(1, 2L))), items);
+        assertEquals(items.get(2), source.get("copied"));
+        ((Document) source.get("copied")).put("a", 0);
+        assertEquals(new Document("a", Arrays.asList(1, 2L)), items.get(2));
+        assertTrue(nested.get("id") instanceof ObjectId);
+        assertEquals(2, source.size());
+    }
+
+    @Test
+    public void bsonValuesInTheTreeStayBson() {
+        Document source = new Document("bson", new BsonDocument("a", new BsonInt32(1)));
+        BsonPatch.applyInPlaceToMap(BsonArray.parse("[{\"op\": \"add\", \"path\": \"/bson/b\", \"value\": [1]},"
+                + "{\"op\": \"copy\", \"from\": \"/bson\", \"path\": \"/bson/c\"}]"), source);
+        assertEquals(BsonDocument.parse("{\"a\": 1, \"b\": [1], \"c\": {\"a\": 1, \"b\": [1]}}"), source.get("bson"));
+    }
+
+    @Test
+    public void reportsFailures() {
+        Document source = document("{\"a\": [1]}");
+        try {
+            BsonPatch.applyToMap(BsonArray.parse("[{\"op\": \"test\", \"path\": \"/a/0\", \"value\": 2}]"), source);
+            fail("test should have failed");
+        } catch (BsonPatchApplicationException e) {
+            assertEquals(Operation.TEST, e.operation);
+        }
+        BsonArray patch = BsonArray.parse("[{\"op\": \"replace\", \"path\": \"/a/1/c\", \"value\": 2}]");
+        try {
+            BsonPatch.applyToMap(patch, source);
+            fail("replace should have failed");
+        } catch (BsonPatchApplicationException e) {
+            try {
+                BsonPatch.apply(patch, MapValues.toBson(source));
+                fail("replace should have failed");
+            } catch (BsonPatchApplicationException expected) {
+                assertEquals(expected.toString(), e.toString());
+            }
+        }
+    }
+
+    @Test
+    public void generatedPatchesApply() {
+        Random random = new Random();
+        for (int i = 0; i < 200; i++) {
+            BsonDocument sourceBson = new BsonDocument("items", TestDataGenerator.generate(random.nextInt(10)))
+                    .append("same", TestDataGenerator.generate(3));
+            BsonDocument targetBson = new BsonDocument("items", TestDataGenerator.generate(random.nextInt(10)))
+                    .append("same", sourceBson.get("same"));
+            @SuppressWarnings("unchecked")
+            Map<String, Object> source = (Map<String, Object>) MapValues.fromBson(sourceBson);
+            @SuppressWarnings("unchecked")
+            Map<String, Object> target = (Map<String, Object>) MapValues.fromBson(targetBson);
+
+            BsonArray patch = BsonDiff.asBsonOfMaps(source, target);
+            assertEquals(target, BsonPatch.applyToMap(patch, source));
+            assertEquals(targetBson, BsonPatch.apply(patch, sourceBson));
+            BsonPatch.applyInPlaceToMap(patch, source);
+            assertEquals(target, source);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonValue;
+import org.junit.Test;
+
+public class MergePatchTest {
+
+    // RFC 7396, Appendix A: original, patch, result
+    private static final String[][] EXAMPLES = {
+        {"{\"a\":\"b\"}", "{\"a\":\"c\"}", "{\"a\":\"c\"}"},
+        {"{\"a\":\"b\"}", "{\"b\":\"c\"}", "{\"a\":\"b\",\"b\":\"c\"}"},
+        {"{\"a\":\"b\"}", "{\"a\":null}", "{}"},
+        {"{\"a\":\"b\",\"b\":\"c\"}", "{\"a\":null}", "{\"b\":\"c\"}"},
+        {"{\"a\":[\"b\"]}", "{\"a\":\"c\"}", "{\"a\":\"c\"}"},
+        {"{\"a\":\"c\"}", "{\"a\":[\"b\"]}", "{\"a\":[\"b\"]}"},
+        {"{\"a\":{\"b\":\"c\"}}", "{\"a\":{\"b\":\"d\",\"c\":null}}", "{\"a\":{\"b\":\"d\"}}"},
+        {"{\"a\":[{\"b\":\"c\"}]}", "{\"a\":[1]}", "{\"a\":[1]}"},
+        {"{\"e\":null}", "{\"a\":1}", "{\"e\":null,\"a\":1}"},
+        {"[1,2]", "{\"a\":\"b\",\"c\":null}", "{\"a\":\"b\"}"},
+        {"{}", "{\"a\":{\"bb\":{\"ccc\":null}}}", "{\"a\":{\"bb\":{}}}"},
+    };
+
+    private static BsonValue parse(String json) {
+        return json.startsWith("[") ? BsonArray.parse(json) : BsonDocument.parse(json);
+    }
+
+    @Test
+    public void appliesRfcExamples() {
+        for (String[] example : EXAMPLES) {
+            BsonValue source = parse(example[0]);
+            BsonValue original = parse(example[0]);
+            assertEquals(example[1], parse(example[2]), BsonPatch.applyMerge(parse(example[1]), source));
+            assertEquals(original, source);
+        }
+        assertEquals(BsonArray.parse("[\"c\"]"),
+                BsonPatch.applyMerge(BsonArray.parse("[\"c\"]"), BsonArray.parse("[\"a\", \"b\"]")));
+        assertEquals(new BsonInt32(1), BsonPatch.applyMerge(new BsonInt32(1), BsonDocument.parse("{\"a\": \"foo\"}")));
+    }
+
+    @Test
+    public void appliesInPlace() {
+        BsonDocument source = BsonDocument.parse("{\"title\": \"Hello!\", \"author\": {\"givenName\": \"John\", \"familyName\": \"Doe\"},"
+                + "\"tags\": [\"example\", \"sample\"], \"content\": \"This will be unchanged\"}");
+        BsonDocument inner = source.getDocument("author");
+        BsonPatch.applyMergeInPlace(BsonDocument.parse("{\"title\": \"Hello!\", \"phoneNumber\": \"+01-123-456-7890\","
+                + "\"author\": {\"familyName\": null}, \"tags\": [\"example\"]}"), source);
+        assertEquals(BsonDocument.parse("{\"title\": \"Hello!\", \"author\": {\"givenName\": \"John\"}, \"tags\": [\"example\"],"
+                + "\"content\": \"This will be unchanged\", \"phoneNumber\": \"+01-123-456-7890\"}"), source);
+        assertSame(inner, source.getDocument("author"));
+    }
+
+    @Test
+    public void inPlaceRootReplacementFails() {
+        try {
+            BsonPatch.applyMergeInPlace(new BsonInt32(1), BsonDocument.parse("{}"));
+            fail("root replacement should have failed");
+        } catch (BsonPatchApplicationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void generatesMinimalPatch() {
+        BsonDocument source = BsonDocument.parse("{\"a\": 1, \"b\": {\"c\": 2, \"d\": [1, 2]}, \"e\": \"same\"}");
+        BsonDocument target = BsonDocument.parse("{\"b\": {\"c\": 3, \"d\": [1, 2]}, \"e\": \"same\", \"f\": {\"g\": true}}");
+        BsonValue patch = BsonDiff.asMergePatch(source, target);
+        assertEquals(BsonDocument.parse("{\"a\": null, \"b\": {\"c\": 3}, \"f\": {\"g\": true}}"), patch);
+        assertEquals(target, BsonPatch.applyMerge(patch, source));
+        assertEquals(new BsonDocument(), BsonDiff.asMergePatch(source, source.clone()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullValuesCannotBeExpressed() {
+        BsonDiff.asMergePatch(BsonDocument.parse("{\"a\": 1}"), BsonDocument.parse("{\"a\": null}"));
+    }
+
+    @Test
+    public void generatedMergePatchesRoundTrip() {
+        Random random = new Random();
+        for (int i = 0; i < 200; i++) {
+            BsonDocument source = new BsonDocument("items", TestDataGenerator.generate(random.nextInt(5)));
+            BsonDocument target = new BsonDocument("items", TestDataGenerator.generate(random.nextInt(5)));
+            for (BsonValue item : TestDataGenerator.generate(random.nextInt(3))) {
+                source.put("s" + random.nextInt(3), item);
+            }
+            for (BsonValue item : TestDataGenerator.generate(random.nextInt(3))) {
+                target.put("s" + random.nextInt(3), item);
+            }
+            BsonValue patch = BsonDiff.asMergePatch(source, target);
+            assertEquals(target, BsonPatch.applyMerge(patch, source));
+            BsonPatch.applyMergeInPlace(patch, source);
+            assertEquals(target, source);
+        }
+    }
+}
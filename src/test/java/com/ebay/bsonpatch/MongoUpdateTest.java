@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Map;
+import java.util.Random;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonNull;
+import org.bson.BsonValue;
+import org.junit.Test;
+
+public class MongoUpdateTest {
+
+    @Test
+    public void fieldChangesBecomeSetAndUnset() {
+        BsonDocument source = BsonDocument.parse("{\"_id\": 1, \"a\": 1, \"b\": {\"c\": 2, \"d\": 3}}");
+        BsonDocument target = BsonDocument.parse("{\"_id\": 1, \"a\": 2, \"b\": {\"c\": 2}, \"e\": \"new\"}");
+        BsonDocument update = MongoUpdate.fromDiff(source, target);
+        assertEquals(BsonDocument.parse("{\"$set\": {\"a\": 2, \"e\": \"new\"}, \"$unset\": {\"b.d\": \"\"}}"), update);
+        assertEquals(target, applyUpdate(update, source));
+    }
+
+    @Test
+    public void appendedElementsArePushed() {
+        BsonDocument source = BsonDocument.parse("{\"a\": [1, 2]}");
+        BsonArray patch = BsonArray.parse("[{\"op\": \"add\", \"path\": \"/a/-\", \"value\": 3},"
+                + "{\"op\": \"add\", \"path\": \"/a/3\", \"value\": 4}]");
+        BsonDocument update = MongoUpdate.fromPatch(patch, source);
+        assertEquals(BsonDocument.parse("{\"$push\": {\"a\": {\"$each\": [3, 4]}}}"), update);
+    }
+
+    @Test
+    public void insertedElementsArePushedAtTheirPosition() {
+        BsonDocument source = BsonDocument.parse("{\"a\": {\"b\": [1, 2, 3]}}");
+        BsonArray patch = BsonArray.parse("[{\"op\": \"add\", \"path\": \"/a/b/1\", \"value\": {\"x\": 1}}]");
+        BsonDocument update = MongoUpdate.fromPatch(patch, source);
+        assertEquals(BsonDocument.parse("{\"$push\": {\"a.b\": {\"$each\": [{\"x\": 1}], \"$position\": 1}}}"), update);
+        assertEquals(BsonPatch.apply(patch, source), applyUpdate(update, source));
+    }
+
+    @Test
+    public void removedStringsArePulled() {
+        BsonDocument source = BsonDocument.parse("{\"tags\": [\"a\", \"b\", \"c\"]}");
+        BsonArray patch = BsonArray.parse("[{\"op\": \"remove\", \"path\": \"/tags/1\"}]");
+        assertEquals(BsonDocument.parse("{\"$pull\": {\"tags\": {\"$in\": [\"b\"]}}}"), MongoUpdate.fromPatch(patch, source));
+    }
+
+    @Test
+    public void ambiguousRemovalsFallBackToSettingTheArray() {
+        // $pull would remove both "a" elements, and numbers compare by value in MongoDB
+        BsonDocument source = BsonDocument.parse("{\"tags\": [\"a\", \"b\", \"a\"], \"n\": [1, 2]}");
+        BsonArray patch = BsonArray.parse("[{\"op\": \"remove\", \"path\": \"/tags/0\"}, {\"op\": \"remove\", \"path\": \"/n/0\"}]");
+        assertEquals(BsonDocument.parse("{\"$set\": {\"tags\": [\"b\", \"a\"], \"n\": [2]}}"), MongoUpdate.fromPatch(patch, source));
+    }
+
+    @Test
+    public void replacedElementsAreSetIndividually() {
+        BsonDocument source = BsonDocument.parse("{\"a\": [{\"b\": 1}, {\"b\": 2}]}");
+        BsonArray patch = BsonArray.parse("[{\"op\": \"replace\", \"path\": \"/a/1/b\", \"value\": 3},"
+                + "{\"op\": \"add\", \"path\": \"/a/0/c\", \"value\": 4}]");
+        assertEquals(BsonDocument.parse("{\"$set\": {\"a.1.b\": 3, \"a.0.c\": 4}}"), MongoUpdate.fromPatch(patch, source));
+    }
+
+    @Test
+    public void nestedChangesAreCollapsedIntoTheirAncestor() {
+        BsonDocument source = BsonDocument.parse("{\"a\": {\"b\": 1}}");
+        BsonArray patch = BsonArray.parse("[{\"op\": \"replace\", \"path\": \"/a\", \"value\": {\"b\": 2}},"
+                + "{\"op\": \"add\", \"path\": \"/a/c\", \"value\": 3}]");
+        assertEquals(BsonDocument.parse("{\"$set\": {\"a\": {\"b\": 2, \"c\": 3}}}"), MongoUpdate.fromPatch(patch, source));
+    }
+
+    @Test
+    public void unaddressableFieldsAreSetThroughTheirParent() {
+        BsonDocument source = BsonDocument.parse("{\"a\": {\"x.y\": 1, \"z\": 2}}");
+        BsonArray patch = BsonArray.parse("[{\"op\": \"replace\", \"path\": \"/a/x.y\", \"value\": 5}]");
+        assertEquals(BsonDocument.parse("{\"$set\": {\"a\": {\"x.y\": 5, \"z\": 2}}}"), MongoUpdate.fromPatch(patch, source));
+    }
+
+    @Test
+    public void changesThatNeedAReplacementReturnNull() {
+        BsonDocument source = BsonDocument.parse("{\"_id\": 1, \"$weird\": 1}");
+        assertNull(MongoUpdate.fromDiff(source, BsonDocument.parse("{\"_id\": 2, \"$weird\": 1}")));
+        assertNull(MongoUpdate.fromDiff(source, BsonDocument.parse("{\"_id\": 1, \"$weird\": 2}")));
+        assertNull(MongoUpdate.fromPatch(BsonArray.parse("[{\"op\": \"replace\", \"path\": \"\", \"value\": {}}]"), source));
+    }
+
+    @Test
+    public void noChangesGiveAnEmptyUpdate() {
+        BsonDocument source = BsonDocument.parse("{\"a\": [1, 2]}");
+        assertEquals(new BsonDocument(), MongoUpdate.fromDiff(source, source.clone()));
+        BsonArray patch = BsonArray.parse("[{\"op\": \"add\", \"path\": \"/b\", \"value\": 1}, {\"op\": \"remove\", \"path\": \"/b\"}]");
+        assertEquals(new BsonDocument(), MongoUpdate.fromPatch(patch, source));
+    }
+
+    @Test
+    public void generatedUpdatesMatchThePatchedDocument() {
+        Random random = new Random();
+        for (int i = 0; i < 500; i++) {
+            BsonDocument source = generateDocument(random);
+            BsonDocument target = generateDocument(random);
+            if (random.nextBoolean()) {
+                target.put("items", source.getArray("items").clone());
+                target.getArray("items").add(random.nextInt(target.getArray("items").size() + 1),
+                        TestDataGenerator.generate(1).get(0));
+            }
+
+            BsonDocument update = MongoUpdate.fromDiff(source, target);
+            assertEquals(target, applyUpdate(update, source));
+
+            BsonArray patch = BsonDiff.asBson(source, target);
+            assertEquals(target, applyUpdate(MongoUpdate.fromPatch(patch, source), source));
+        }
+    }
+
+    private static BsonDocument generateDocument(Random random) {
+        BsonDocument document = new BsonDocument("_id", BsonNull.VALUE);
+        document.put("items", TestDataGenerator.generate(random.nextInt(6)));
+        BsonArray more = TestDataGenerator.generate(random.nextInt(3));
+        if (!more.isEmpty()) document.put("first", more.get(0));
+        return document;
+    }
+
+    /** Applies the subset of MongoDB update operators produced by {@link MongoUpdate} to a copy of {@code source}. */
+    private static BsonDocument applyUpdate(BsonDocument update, BsonDocument source) {
+        BsonDocument result = source.clone();
+        for (Map.Entry<String, BsonValue> operator : update.entrySet()) {
+            for (Map.Entry<String, BsonValue> entry : operator.getValue().asDocument().entrySet()) {
+                String[] path = entry.getKey().split("\\.");
+                BsonValue parent = result;
+                for (int i = 0; i < path.length - 1; i++) {
+                    parent = child(parent, path[i]);
+                }
+                String last = path[path.length - 1];
+                if (operator.getKey().equals("$set")) {
+                    if (parent.isArray()) parent.asArray().set(Integer.parseInt(last), entry.getValue());
+                    else parent.asDocument().put(last, entry.getValue());
+                } else if (operator.getKey().equals("$unset")) {
+                    parent.asDocument().remove(last);
+                } else if (operator.getKey().equals("$push")) {
+                    BsonArray array = child(parent, last).asArray();
+                    BsonDocument each = entry.getValue().asDocument();
+                    int position = each.containsKey("$position") ? each.getInt32("$position").getValue() : array.size();
+                    array.addAll(position, each.getArray("$each"));
+                } else if (operator.getKey().equals("$pull")) {
+                    child(parent, last).asArray().removeAll(entry.getValue().asDocument().getArray("$in"));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static BsonValue child(BsonValue parent, String field) {
+        return parent.isArray() ? parent.asArray().get(Integer.parseInt(field)) : parent.asDocument().get(field);
+    }
+}
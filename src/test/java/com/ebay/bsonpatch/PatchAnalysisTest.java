@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.junit.Test;
+
+public class PatchAnalysisTest {
+
+    @Test
+    public void groupsOperationsOnOverlappingContainers() {
+        PatchAnalysis analysis = PatchAnalysis.analyze(BsonArray.parse("["
+                + "{\"op\": \"replace\", \"path\": \"/a/b\", \"value\": 1},"      // 0: changes /a
+                + "{\"op\": \"add\", \"path\": \"/items/0/x\", \"value\": 1},"     // 1: changes /items/0
+                + "{\"op\": \"remove\", \"path\": \"/a/c\"},"                        // 2: changes /a, like 0
+                + "{\"op\": \"replace\", \"path\": \"/items/1/x\", \"value\": 1}," // 3: changes /items/1
+                + "{\"op\": \"test\", \"path\": \"/d/e/f\", \"value\": 1},"        // 4: reads /d/e
+                + "{\"op\": \"move\", \"from\": \"/d/e/f\", \"path\": \"/g/h\"},"   // 5: reads /d/e, changes /g
+                + "{\"op\": \"replace\", \"path\": \"/g/h/i/j\", \"value\": 1}," // 6: below /g
+                + "{\"op\": \"add\", \"path\": \"/k/-\", \"value\": 1}]"));        // 7: changes /k
+        assertEquals(Arrays.asList(Arrays.asList(0, 2), Arrays.asList(1), Arrays.asList(3), Arrays.asList(4, 5, 6), Arrays.asList(7)),
+                analysis.getGroups());
+        assertTrue(analysis.areIndependent(1, 3));
+        assertFalse(analysis.areIndependent(4, 6));
+        assertEquals(8, analysis.getOperationCount());
+    }
+
+    @Test
+    public void arrayShiftsJoinTheElements() {
+        PatchAnalysis analysis = PatchAnalysis.analyze(BsonArray.parse("["
+                + "{\"op\": \"replace\", \"path\": \"/items/0/x\", \"value\": 1},"
+                + "{\"op\": \"replace\", \"path\": \"/items/1/x\", \"value\": 1},"
+                + "{\"op\": \"remove\", \"path\": \"/items/0\"},"
+                + "{\"op\": \"replace\", \"path\": \"/other/y\", \"value\": 1},"
+                + "{\"op\": \"add\", \"path\": \"/top\", \"value\": 1}]"));
+        // the last operation changes the root, which holds everything
+        assertEquals(1, analysis.getGroups().size());
+
+        analysis = PatchAnalysis.analyze(BsonArray.parse("["
+                + "{\"op\": \"replace\", \"path\": \"/items/0/x\", \"value\": 1},"
+                + "{\"op\": \"replace\", \"path\": \"/items/1/x\", \"value\": 1},"
+                + "{\"op\": \"remove\", \"path\": \"/items/0\"},"
+                + "{\"op\": \"replace\", \"path\": \"/other/y\", \"value\": 1}]"));
+        assertEquals(Arrays.asList(Arrays.asList(0, 1, 2), Arrays.asList(3)), analysis.getGroups());
+    }
+
+    private static BsonDocument lineItems(Random random, int size) {
+        BsonArray items = new BsonArray();
+        for (int i = 0; i < size; i++) {
+            items.add(new BsonDocument("sku", new BsonString("s" + i))
+                    .append("quantity", new BsonInt32(random.nextInt(5)))
+                    .append("tags", BsonArray.parse("[\"a\", \"b\"]")));
+        }
+        return new BsonDocument("order", new BsonDocument("lineItems", items));
+    }
+
+    @Test
+    public void parallelApplicationMatchesSequential() {
+        Random random = new Random();
+        for (int i = 0; i < 20; i++) {
+            BsonDocument source = lineItems(random, 500);
+            BsonDocument target = source.clone();
+            for (int j = 0; j < 300; j++) {
+                BsonDocument item = target.getDocument("order").getArray("lineItems").get(random.nextInt(500)).asDocument();
+                item.put("quantity", new BsonInt32(random.nextInt(100)));
+                item.getArray("tags").add(new BsonString("t" + j));
+            }
+            BsonArray patch = BsonDiff.asBson(source, target);
+            assertTrue(PatchAnalysis.analyze(patch).getGroups().size() > 1);
+            BsonPatch.applyInPlaceInParallel(patch, source);
+            assertEquals(target, source);
+        }
+    }
+
+    @Test
+    public void generatedPatchesApplyInParallel() {
+        Random random = new Random();
+        for (int i = 0; i < 200; i++) {
+            BsonDocument source = new BsonDocument("a", TestDataGenerator.generate(random.nextInt(10)))
+                    .append("b", TestDataGenerator.generate(random.nextInt(10)));
+            BsonDocument target = new BsonDocument("a", TestDataGenerator.generate(random.nextInt(10)))
+                    .append("b", TestDataGenerator.generate(random.nextInt(10)));
+            BsonPatch.applyInPlaceInParallel(BsonDiff.asBson(source, target), source);
+            assertEquals(target, source);
+        }
+    }
+
+    @Test
+    public void reportsFirstFailureAndAppliesOtherGroups() {
+        BsonDocument source = BsonDocument.parse("{\"a\": {\"x\": 1}, \"b\": {\"x\": 1}, \"c\": {\"x\": 1}}");
+        BsonArray patch = BsonArray.parse("["
+                + "{\"op\": \"replace\", \"path\": \"/a/x\", \"value\": 2},"
+                + "{\"op\": \"replace\", \"path\": \"/b/missing\", \"value\": 2},"
+                + "{\"op\": \"replace\", \"path\": \"/c/missing\", \"value\": 2},"
+                + "{\"op\": \"replace\", \"path\": \"/b/x\", \"value\": 2}]");
+        try {
+            BsonPatch.applyInPlaceInParallel(patch, source);
+            fail("patch should have failed");
+        } catch (BsonPatchApplicationException e) {
+            assertEquals(JsonPointer.parse("/b"), e.path);
+        }
+        assertEquals(BsonDocument.parse("{\"a\": {\"x\": 2}, \"b\": {\"x\": 1}, \"c\": {\"x\": 1}}"), source);
+    }
+
+    @Test(expected = InvalidBsonPatchException.class)
+    public void validatesBeforeApplying() {
+        BsonDocument source = BsonDocument.parse("{\"a\": {\"x\": 1}}");
+        try {
+            BsonPatch.applyInPlaceInParallel(BsonArray.parse("[{\"op\": \"replace\", \"path\": \"/a/x\", \"value\": 2},"
+                    + "{\"op\": \"replace\", \"path\": \"/a/y\"}]"), source);
+        } finally {
+            assertEquals(BsonDocument.parse("{\"a\": {\"x\": 1}}"), source);
+        }
+    }
+}
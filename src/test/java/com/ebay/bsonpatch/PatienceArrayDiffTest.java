@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonValue;
+import org.junit.Test;
+
+public class PatienceArrayDiffTest {
+
+    private static final EnumSet<DiffFlags> PATIENCE = EnumSet.of(DiffFlags.OMIT_VALUE_ON_REMOVE, DiffFlags.PATIENCE_ARRAY_DIFF);
+
+    @Test
+    public void movesElementOutOfOrder() {
+        BsonArray source = BsonArray.parse("[\"a\", \"b\", \"c\", \"d\", \"e\"]");
+        BsonArray target = BsonArray.parse("[\"b\", \"c\", \"d\", \"e\", \"a\"]");
+        assertEquals(BsonArray.parse("[{\"op\": \"move\", \"from\": \"/0\", \"path\": \"/4\"}]"), BsonDiff.asBson(source, target, PATIENCE));
+    }
+
+    @Test
+    public void removesMovesInsertsAndDiffs() {
+        BsonDocument source = BsonDocument.parse("{\"ranked\": [{\"id\": 1}, {\"id\": 2}, {\"id\": 3}, {\"id\": 4, \"v\": 0}, {\"id\": 5}]}");
+        BsonDocument target = BsonDocument.parse("{\"ranked\": [{\"id\": 5}, {\"id\": 1}, {\"id\": 6}, {\"id\": 3}, {\"id\": 4, \"v\": 1}]}");
+        BsonArray patch = BsonDiff.asBson(source, target, PATIENCE);
+        // {"id": 2} and {"id": 6} are between the same elements kept in place, so they are diffed
+        assertEquals(BsonArray.parse("["
+                + "{\"op\": \"move\", \"from\": \"/ranked/4\", \"path\": \"/ranked/0\"},"
+                + "{\"op\": \"replace\", \"path\": \"/ranked/2/id\", \"value\": 6},"
+                + "{\"op\": \"replace\", \"path\": \"/ranked/4/v\", \"value\": 1}]"), patch);
+        assertEquals(target, BsonPatch.apply(patch, source));
+    }
+
+    @Test
+    public void copiesFollowingMovesApply() {
+        BsonArray source = BsonArray.parse("[{\"k\": [0, 2, 2]}, 2, 3]");
+        BsonArray target = BsonArray.parse("[3, 2, 2, {\"k\": [0, 2, 2]}]");
+        BsonArray patch = BsonDiff.asBson(source, target, PATIENCE);
+        assertEquals(patch.toString(), target, BsonPatch.apply(patch, source));
+    }
+
+    @Test
+    public void repeatedElementsFallBackToLcs() {
+        BsonArray source = BsonArray.parse("[1, 1, 2, 2, 3, 3]");
+        BsonArray target = BsonArray.parse("[3, 3, 1, 1, 2, 2]");
+        assertEquals(BsonDiff.asBson(source, target), BsonDiff.asBson(source, target, PATIENCE));
+    }
+
+    @Test
+    public void generatedReorderingsApply() {
+        Random random = new Random();
+        List<EnumSet<DiffFlags>> flagSets = new ArrayList<EnumSet<DiffFlags>>();
+        flagSets.add(PATIENCE);
+        flagSets.add(EnumSet.of(DiffFlags.PATIENCE_ARRAY_DIFF, DiffFlags.OMIT_COPY_OPERATION));
+        flagSets.add(EnumSet.of(DiffFlags.PATIENCE_ARRAY_DIFF, DiffFlags.OMIT_COPY_OPERATION, DiffFlags.EMIT_TEST_OPERATIONS,
+                DiffFlags.ADD_ORIGINAL_VALUE_ON_REPLACE));
+        flagSets.add(EnumSet.of(DiffFlags.PATIENCE_ARRAY_DIFF, DiffFlags.OMIT_MOVE_OPERATION, DiffFlags.OMIT_COPY_OPERATION));
+        for (int n = 0; n < 500; n++) {
+            BsonDocument source = new BsonDocument("items", rankedList(random, random.nextInt(30)))
+                    .append("other", rankedList(random, random.nextInt(5)));
+            BsonDocument target = new BsonDocument("items", reorder(random, source.getArray("items")))
+                    .append("other", reorder(random, source.getArray("other")));
+            for (EnumSet<DiffFlags> flags : flagSets) {
+                BsonArray patch = BsonDiff.asBson(source, target, flags);
+                assertEquals(patch.toString(), target, BsonPatch.apply(patch, source));
+                ReversiblePatch reversible = BsonDiff.asReversibleBson(source, target, flags);
+                assertEquals(source, BsonPatch.apply(reversible.getInverse(), target));
+            }
+        }
+    }
+
+    @Test
+    public void fewerOperationsForRankedLists() {
+        Random random = new Random(7);
+        BsonArray source = rankedList(random, 200);
+        List<BsonValue> shuffled = new ArrayList<BsonValue>(source);
+        for (int k = 0; k < 10; k++) {
+            Collections.swap(shuffled, random.nextInt(200), random.nextInt(200));
+        }
+        BsonArray target = new BsonArray(shuffled);
+        BsonArray patch = BsonDiff.asBson(source, target, PATIENCE);
+        assertEquals(target, BsonPatch.apply(patch, source));
+        assertTrue(patch.size() <= 20);
+        assertTrue(patch.size() <= BsonDiff.asBson(source, target).size());
+    }
+
+    private static BsonArray rankedList(Random random, int size) {
+        BsonArray list = new BsonArray();
+        for (int i = 0; i < size; i++) {
+            list.add(random.nextInt(4) == 0 ? new BsonInt32(random.nextInt(5))
+                    : new BsonDocument("id", new BsonInt32(i)).append("score", new BsonInt32(random.nextInt(100))));
+        }
+        return list;
+    }
+
+    private static BsonArray reorder(Random random, BsonArray source) {
+        List<BsonValue> elements = new ArrayList<BsonValue>();
+        for (BsonValue element : source) {
+            int choice = random.nextInt(10);
+            if (choice == 0) {
+                continue;
+            }
+            if (choice == 1 && element.isDocument()) {
+                element = element.asDocument().clone().append("score", new BsonInt32(-1));
+            }
+            elements.add(element);
+        }
+        for (int k = random.nextInt(4); k > 0 && elements.size() > 1; k--) {
+            elements.add(random.nextInt(elements.size()), elements.remove(random.nextInt(elements.size())));
+        }
+        for (int k = random.nextInt(3); k > 0; k--) {
+            elements.add(random.nextInt(elements.size() + 1), new BsonDocument("id", new BsonInt32(1000 + random.nextInt(100))));
+        }
+        return new BsonArray(elements);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.junit.Test;
+
+public class ReversiblePatchTest {
+
+    private static final List<EnumSet<DiffFlags>> FLAGS = Arrays.asList(
+            DiffFlags.defaults(),
+            DiffFlags.dontNormalizeOpIntoMoveAndCopy(),
+            EnumSet.of(DiffFlags.EMIT_TEST_OPERATIONS),
+            EnumSet.of(DiffFlags.ADD_ORIGINAL_VALUE_ON_REPLACE, DiffFlags.OMIT_VALUE_ON_REMOVE));
+
+    @Test
+    public void inverseOfMoveMovesBack() {
+        BsonValue source = BsonDocument.parse("{\"a\": 0, \"b\": [1, 2]}");
+        BsonValue target = BsonDocument.parse("{\"b\": [1, 2, 0]}");
+        ReversiblePatch patch = BsonDiff.asReversibleBson(source, target);
+        assertEquals(BsonArray.parse("[{\"op\": \"move\", \"from\": \"/a\", \"path\": \"/b/2\"}]"), patch.getPatch());
+        assertEquals(BsonArray.parse("[{\"op\": \"move\", \"from\": \"/b/2\", \"path\": \"/a\"}]"), patch.getInverse());
+    }
+
+    @Test
+    public void inverseIsGuardedByTestOperations() {
+        BsonValue source = BsonDocument.parse("{\"key\": \"original\"}");
+        BsonValue target = BsonDocument.parse("{\"key\": \"replaced\"}");
+        ReversiblePatch patch = BsonDiff.asReversibleBson(source, target, EnumSet.of(DiffFlags.EMIT_TEST_OPERATIONS));
+        assertEquals(BsonArray.parse("[{\"op\": \"test\", \"path\": \"/key\", \"value\": \"replaced\"},"
+                + "{\"op\": \"replace\", \"path\": \"/key\", \"value\": \"original\"}]"), patch.getInverse());
+    }
+
+    @Test
+    public void inverseRestoresSampleSources() throws IOException {
+        BsonArray samples = BsonArray.parse(TestUtils.loadFromResources("/testdata/sample.json"));
+        for (EnumSet<DiffFlags> flags : FLAGS) {
+            for (BsonValue sample : samples) {
+                assertRoundTrip(sample.asDocument().get("first"), sample.asDocument().get("second"), flags);
+            }
+        }
+    }
+
+    @Test
+    public void inverseRestoresGeneratedSources() {
+        Random random = new Random();
+        for (EnumSet<DiffFlags> flags : FLAGS) {
+            for (int i = 0; i < 250; i++) {
+                assertRoundTrip(TestDataGenerator.generate(random.nextInt(10)), TestDataGenerator.generate(random.nextInt(10)), flags);
+            }
+        }
+    }
+
+    private static void assertRoundTrip(BsonValue source, BsonValue target, EnumSet<DiffFlags> flags) {
+        ReversiblePatch patch = BsonDiff.asReversibleBson(source, target, flags);
+        assertEquals(BsonDiff.asBson(source, target, flags), patch.getPatch());
+        BsonValue applied = BsonPatch.apply(patch.getPatch(), source);
+        assertEquals(target, applied);
+        assertEquals("inverse of " + patch.getPatch(), source, BsonPatch.apply(patch.getInverse(), applied));
+    }
+}
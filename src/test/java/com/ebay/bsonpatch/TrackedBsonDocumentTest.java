@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.ebay.bsonpatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.junit.Test;
+
+public class TrackedBsonDocumentTest {
+
+    private static final BsonDocument ORIGINAL = BsonDocument.parse("{\"name\": \"order\", \"customer\": {\"id\": 7, \"tags\": [\"a\"]},"
+            + "\"items\": [{\"sku\": \"x\", \"qty\": 1}, {\"sku\": \"y\", \"qty\": 2}]}");
+
+    @Test
+    public void recordsChangesAsTheyAreMade() {
+        BsonDocument document = ORIGINAL.clone();
+        TrackedBsonDocument tracked = TrackedBsonDocument.track(document);
+        tracked.put("status", new BsonString("open"));
+        tracked.getDocument("customer").put("id", new BsonInt32(8));
+        tracked.getDocument("customer").getArray("tags").add(new BsonString("b"));
+        tracked.getArray("items").remove(0);
+        tracked.remove("name");
+
+        assertEquals(BsonArray.parse("[{\"op\": \"add\", \"path\": \"/status\", \"value\": \"open\"},"
+                + "{\"op\": \"replace\", \"path\": \"/customer/id\", \"value\": 8},"
+                + "{\"op\": \"add\", \"path\": \"/customer/tags/1\", \"value\": \"b\"},"
+                + "{\"op\": \"remove\", \"path\": \"/items/0\"},"
+                + "{\"op\": \"remove\", \"path\": \"/name\"}]"), tracked.getPatch());
+        assertEquals(document, tracked);
+        assertEquals(document, BsonPatch.apply(tracked.getPatch(), ORIGINAL));
+    }
+
+    @Test
+    public void coalescesSupersededChanges() {
+        TrackedBsonDocument tracked = TrackedBsonDocument.track(ORIGINAL.clone());
+        tracked.put("status", new BsonString("open"));
+        tracked.put("status", new BsonString("closed"));
+        tracked.put("note", new BsonString("temporary"));
+        tracked.remove("note");
+        tracked.put("shipping", BsonDocument.parse("{\"city\": \"Paris\"}"));
+        tracked.getDocument("shipping").put("zip", new BsonString("75001"));
+        tracked.getDocument("customer").put("id", new BsonInt32(8));
+        tracked.getDocument("customer").getArray("tags").add(new BsonString("b"));
+        tracked.remove("customer");
+
+        assertEquals(BsonArray.parse("[{\"op\": \"add\", \"path\": \"/status\", \"value\": \"closed\"},"
+                + "{\"op\": \"add\", \"path\": \"/shipping\", \"value\": {\"city\": \"Paris\", \"zip\": \"75001\"}},"
+                + "{\"op\": \"remove\", \"path\": \"/customer\"}]"), tracked.getPatch());
+    }
+
+    @Test
+    public void arrayIndexesFollowShifts() {
+        BsonDocument document = ORIGINAL.clone();
+        TrackedBsonDocument tracked = TrackedBsonDocument.track(document);
+        BsonArray items = tracked.getArray("items");
+        BsonDocument second = items.get(1).asDocument();
+        items.add(0, BsonDocument.parse("{\"sku\": \"w\", \"qty\": 3}"));
+        second.put("qty", new BsonInt32(5));
+        items.remove(1);
+        items.set(1, BsonDocument.parse("{\"sku\": \"z\"}"));
+
+        assertEquals(BsonArray.parse("[{\"op\": \"add\", \"path\": \"/items/0\", \"value\": {\"sku\": \"w\", \"qty\": 3}},"
+                + "{\"op\": \"replace\", \"path\": \"/items/2/qty\", \"value\": 5},"
+                + "{\"op\": \"remove\", \"path\": \"/items/1\"},"
+                + "{\"op\": \"replace\", \"path\": \"/items/1\", \"value\": {\"sku\": \"z\"}}]"), tracked.getPatch());
+        assertEquals(document, BsonPatch.apply(tracked.getPatch(), ORIGINAL));
+    }
+
+    @Test
+    public void detachedViewsStopRecording() {
+        TrackedBsonDocument tracked = TrackedBsonDocument.track(ORIGINAL.clone());
+        BsonDocument customer = tracked.getDocument("customer");
+        tracked.put("customer", new BsonDocument("id", new BsonInt32(9)));
+        customer.put("id", new BsonInt32(10));
+        assertEquals(BsonArray.parse("[{\"op\": \"replace\", \"path\": \"/customer\", \"value\": {\"id\": 9}}]"), tracked.getPatch());
+
+        tracked.clearChanges();
+        assertFalse(tracked.hasChanges());
+        tracked.getDocument("customer").put("id", new BsonInt32(11));
+        assertTrue(tracked.hasChanges());
+        assertEquals(new BsonInt32(11), tracked.unwrap().getDocument("customer").get("id"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void iteratorsAreReadOnly() {
+        TrackedBsonDocument tracked = TrackedBsonDocument.track(ORIGINAL.clone());
+        Iterator<BsonValue> items = tracked.getArray("items").iterator();
+        items.next();
+        items.remove();
+    }
+
+    @Test
+    public void randomChangesReplayOnTheOriginal() {
+        Random random = new Random();
+        for (int i = 0; i < 200; i++) {
+            BsonDocument original = new BsonDocument("items", TestDataGenerator.generate(random.nextInt(6)));
+            BsonDocument document = original.clone();
+            TrackedBsonDocument tracked = TrackedBsonDocument.track(document);
+            for (int j = random.nextInt(30); j > 0; j--) {
+                mutate(random, tracked);
+            }
+            assertEquals(document, BsonPatch.apply(tracked.getPatch(), original));
+        }
+    }
+
+    private static void mutate(Random random, BsonValue root) {
+        BsonValue value = root;
+        List<BsonValue> containers = new ArrayList<BsonValue>();
+        while (value.isDocument() || value.isArray()) {
+            containers.add(value);
+            List<BsonValue> children = value.isDocument()
+                    ? new ArrayList<BsonValue>(value.asDocument().values()) : value.asArray().getValues();
+            if (children.isEmpty() || random.nextInt(3) == 0) {
+                break;
+            }
+            value = children.get(random.nextInt(children.size()));
+        }
+        BsonValue container = containers.get(containers.size() - 1);
+        BsonValue newValue = random.nextBoolean() ? new BsonInt32(random.nextInt(5))
+                : BsonDocument.parse("{\"n\": " + random.nextInt(5) + ", \"l\": [1, 2]}");
+        if (container.isDocument()) {
+            BsonDocument document = container.asDocument();
+            String key = "k" + random.nextInt(4);
+            if (random.nextBoolean()) {
+                document.remove(key);
+            } else {
+                document.put(key, newValue);
+            }
+        } else {
+            BsonArray array = container.asArray();
+            int operation = array.isEmpty() ? 0 : random.nextInt(3);
+            if (operation == 0) {
+                array.add(random.nextInt(array.size() + 1), newValue);
+            } else if (operation == 1) {
+                array.remove(random.nextInt(array.size()));
+            } else {
+                array.set(random.nextInt(array.size()), newValue);
+            }
+        }
+    }
+}